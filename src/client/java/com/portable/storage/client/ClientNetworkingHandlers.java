@@ -6,7 +6,7 @@ import com.portable.storage.net.payload.CraftingOverlayActionC2SPayload;
 import com.portable.storage.net.payload.IncrementalStorageSyncS2CPayload;
 import com.portable.storage.net.payload.OverlayCraftingSyncS2CPayload;
 import com.portable.storage.net.payload.StorageSyncS2CPayload;
-import com.portable.storage.net.payload.SyncControlC2SPayload;
+import com.portable.storage.net.payload.StorageTemplatesS2CPayload;
 import com.portable.storage.net.payload.XpBottleMaintenanceToggleC2SPayload;
 import com.portable.storage.net.payload.RequestFilterRulesSyncS2CPayload;
 import com.portable.storage.net.payload.OpenBarrelFilterS2CPayload;
@@ -24,17 +24,8 @@ public final class ClientNetworkingHandlers {
 			IncrementalStorageSyncS2CPayload.ID,
 			(payload, context) -> context.client().execute(() -> {
 				if (context.client().player == null) return;
-				ClientStorageState.applyDiff(payload.sessionId(), payload.seq(), payload.diff());
-				// 增量应用后立即ACK当前序号（无需阻塞UI）
-				try {
-					net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking.send(
-						new SyncControlC2SPayload(
-							SyncControlC2SPayload.Op.ACK,
-							payload.seq(),
-							true
-						)
-					);
-				} catch (Throwable ignored) {}
+				// 按序应用并回复累计ACK（缺包时请求重发）
+				ClientStorageState.applyDiff(payload);
 			})
 		);
 
@@ -42,7 +33,23 @@ public final class ClientNetworkingHandlers {
 		ClientPlayNetworking.registerGlobalReceiver(StorageSyncS2CPayload.ID, (payload, context) -> {
 			context.client().execute(() -> {
 				if (context.client().player == null) return;
-				ClientStorageState.updateFromNbt(payload.nbt(), context.client().player.getRegistryManager());
+				ClientStorageState.applyFullSync(payload.sessionId(), payload.defines(), payload.stubs(), payload.entries());
+			});
+		});
+
+		// 模板缓存：进入时加载并上报已缓存的键，离开时写回
+		net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents.JOIN.register(
+			(handler, sender, client) -> ClientTemplateCache.onJoin(client, handler.getRegistryManager())
+		);
+		net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents.DISCONNECT.register(
+			(handler, client) -> ClientTemplateCache.onDisconnect()
+		);
+
+		// 窗口化同步：按需请求的完整物品模板
+		ClientPlayNetworking.registerGlobalReceiver(StorageTemplatesS2CPayload.ID, (payload, context) -> {
+			context.client().execute(() -> {
+				if (context.client().player == null) return;
+				ClientStorageState.applyTemplates(payload.sessionId(), payload.defines());
 			});
 		});
 		
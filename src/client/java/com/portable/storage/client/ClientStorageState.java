@@ -1,28 +1,43 @@
 package com.portable.storage.client;
 
-import com.mojang.serialization.DynamicOps;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.portable.storage.net.payload.IncrementalStorageSyncS2CPayload;
+import com.portable.storage.net.payload.StorageSyncCodec;
+import com.portable.storage.net.payload.StorageTemplateRequestC2SPayload;
 import com.portable.storage.net.payload.SyncControlC2SPayload;
 import com.portable.storage.storage.StorageType;
 
-import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
-import net.minecraft.nbt.NbtCompound;
-import net.minecraft.nbt.NbtElement;
-import net.minecraft.nbt.NbtList;
-import net.minecraft.nbt.NbtOps;
-import net.minecraft.registry.Registries;
 import net.minecraft.util.collection.DefaultedList;
 
 public final class ClientStorageState {
     private static DefaultedList<ItemStack> display = DefaultedList.ofSize(54, ItemStack.EMPTY);
     private static long[] counts = new long[54];
     private static long[] timestamps = new long[54];
+    // 每个槽位保存服务端在本会话内为该条目分配的键编号（-1 表示空）
+    private static int[] ids = new int[54];
+    // 编号 -> 模板、编号 -> 槽位，以及空槽位（取最小者，保持与"首个空位"一致的布局）
+    private static final Map<Integer, ItemStack> templates = new HashMap<>();
+    private static final Map<Integer, Integer> slotById = new HashMap<>();
+    private static final PriorityQueue<Integer> freeSlots = new PriorityQueue<>();
+    // 窗口化同步：仍为占位模板的编号，以及已发出请求、等待回应的编号
+    private static final Set<Integer> pendingIds = new HashSet<>();
+    private static final Set<Integer> requestedIds = new HashSet<>();
     private static int capacity = 54;
     private static boolean storageEnabled = false; // 默认未启用，等待服务端同步
     private static StorageType storageType = StorageType.FULL; // 默认完整仓库
     // 增量会话与序列
     private static long clientSessionId = 0L;
     private static int expectedSeq = 1;
+    // 先于缺失序号到达的分包，等缺口补齐（服务端重发）后按序应用
+    private static final java.util.TreeMap<Integer, IncrementalStorageSyncS2CPayload> outOfOrder = new java.util.TreeMap<>();
+    private static final int MAX_OUT_OF_ORDER = 64;
 
     private ClientStorageState() {}
 
@@ -50,164 +65,214 @@ public final class ClientStorageState {
         storageType = type;
     }
 
-    public static void updateFromNbt(NbtCompound nbt, net.minecraft.registry.RegistryWrapper.WrapperLookup lookup) {
-        // 可兼容读取 sessionId 以重置序列
-        if (nbt.contains("sessionId")) {
-            clientSessionId = nbt.getLong("sessionId");
-            expectedSeq = 1;
+    /**
+     * 应用全量同步：开启新会话，清空编号表并按服务端顺序填充。
+     * 窗口化同步下条目以轻量定义到达，先用占位模板显示，完整模板由 {@link #requestTemplates} 按需请求。
+     */
+    public static void applyFullSync(long sessionId, List<StorageSyncCodec.Define> defines, List<StorageSyncCodec.Stub> stubs,
+                                     List<StorageSyncCodec.Update> entries) {
+        clientSessionId = sessionId;
+        expectedSeq = 1;
+        outOfOrder.clear();
+        templates.clear();
+        pendingIds.clear();
+        requestedIds.clear();
+        define(defines);
+        for (StorageSyncCodec.Stub stub : stubs) {
+            // 本地缓存中已有的键直接使用完整模板
+            ItemStack cached = ClientTemplateCache.get(stub.key());
+            if (cached != null) {
+                templates.put(stub.id(), cached);
+                continue;
+            }
+            ItemStack placeholder = stub.toPlaceholder();
+            if (placeholder.isEmpty()) continue;
+            templates.put(stub.id(), placeholder);
+            pendingIds.add(stub.id());
         }
-        int cap = nbt.getInt("capacity");
+        int cap = entries.size();
         if (cap <= 0) cap = 54;
         capacity = cap;
         display = DefaultedList.ofSize(capacity, ItemStack.EMPTY);
         counts = new long[capacity];
         timestamps = new long[capacity];
-        if (!nbt.contains("entries", NbtElement.LIST_TYPE)) return;
-        NbtList list = nbt.getList("entries", NbtElement.COMPOUND_TYPE);
+        ids = new int[capacity];
+        java.util.Arrays.fill(ids, -1);
+        slotById.clear();
+        freeSlots.clear();
         int idx = 0;
-        for (int i = 0; i < list.size() && idx < capacity; i++) {
-            NbtCompound e = list.getCompound(i);
-            ItemStack stack = ItemStack.EMPTY;
-            // 优先完整模板
-            if (e.contains("item_full")) {
-                final DynamicOps<net.minecraft.nbt.NbtElement> ops =
-                    (lookup != null) ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup) : NbtOps.INSTANCE;
-                var parse = ItemStack.CODEC.parse(ops, e.get("item_full"));
-                stack = parse.result().orElse(ItemStack.EMPTY);
-            }
-            // 兼容旧字段
-            if (stack.isEmpty() && e.contains("item", NbtElement.COMPOUND_TYPE)) {
-                NbtCompound itemTag = e.getCompound("item");
-                if (itemTag.contains("id")) {
-                    var id = net.minecraft.util.Identifier.tryParse(itemTag.getString("id"));
-                    if (id != null) {
-                        Item it = Registries.ITEM.get(id);
-                        if (it != null && it != net.minecraft.item.Items.AIR) {
-                            stack = new ItemStack(it);
-                            if (itemTag.contains("custom", NbtElement.COMPOUND_TYPE)) {
-                                stack.set(net.minecraft.component.DataComponentTypes.CUSTOM_DATA, net.minecraft.component.type.NbtComponent.of(itemTag.getCompound("custom")));
-                            }
-                            if (itemTag.contains("block_entity", NbtElement.COMPOUND_TYPE)) {
-                                stack.set(net.minecraft.component.DataComponentTypes.BLOCK_ENTITY_DATA, net.minecraft.component.type.NbtComponent.of(itemTag.getCompound("block_entity")));
-                            }
-                            if (itemTag.contains("glint", NbtElement.BYTE_TYPE) && itemTag.getBoolean("glint")) {
-                                stack.set(net.minecraft.component.DataComponentTypes.ENCHANTMENT_GLINT_OVERRIDE, true);
-                            }
-                        }
-                    }
-                }
-            }
-            long count = Math.max(0, e.getLong("count"));
-            long timestamp = e.contains("ts") ? e.getLong("ts") : 0L;
-            if (stack.isEmpty() || count <= 0) continue;
-            counts[idx] = count;
-            timestamps[idx] = timestamp;
-            stack.setCount((int)Math.min(stack.getMaxCount(), count));
-            display.set(idx, stack);
-            idx++;
+        for (StorageSyncCodec.Update e : entries) {
+            ItemStack template = templates.get(e.id());
+            if (template == null || e.delta() <= 0 || slotById.containsKey(e.id())) continue;
+            setSlot(idx++, e.id(), template, e.delta(), e.ts());
         }
+        for (int i = idx; i < capacity; i++) freeSlots.add(i);
     }
 
-    public static void applyDiff(long sessionId, int seq, NbtCompound diff) {
-        if (sessionId != clientSessionId || seq != expectedSeq) {
-            // 会话或序号不匹配：请求全量回退
-            try {
-                net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking.send(
-                    new SyncControlC2SPayload(
-                        SyncControlC2SPayload.Op.REQUEST,
-                        0L,
-                        false
-                    )
-                );
-            } catch (Throwable ignored) {}
-            return;
-        }
-        if (diff == null) {
-            expectedSeq++;
+    /**
+     * 应用增量分包并回复累计 ACK（已连续应用到的序号）。
+     * 重复的分包直接忽略；超前到达的分包先缓存，并以 success=false 通知服务端重发缺口之后的分包；
+     * 只有会话不匹配或缓存溢出时才请求全量同步。
+     */
+    public static void applyDiff(IncrementalStorageSyncS2CPayload payload) {
+        if (payload.sessionId() != clientSessionId) {
+            requestFullSync();
             return;
         }
-        // removes
-        if (diff.contains("removes", NbtElement.LIST_TYPE)) {
-            NbtList rm = diff.getList("removes", NbtElement.STRING_TYPE);
-            for (int i = 0; i < rm.size(); i++) {
-                String key = rm.getString(i);
-                removeByKey(key);
+        boolean inOrder = true;
+        if (payload.seq() > expectedSeq) {
+            if (outOfOrder.size() >= MAX_OUT_OF_ORDER) {
+                outOfOrder.clear();
+                requestFullSync();
+                return;
             }
+            outOfOrder.put(payload.seq(), payload);
+            inOrder = false;
+        } else if (payload.seq() == expectedSeq) {
+            apply(payload);
+            // 缺口补齐后依次应用已缓存的后续分包
+            IncrementalStorageSyncS2CPayload next;
+            while ((next = outOfOrder.remove(expectedSeq)) != null) apply(next);
+            outOfOrder.headMap(expectedSeq).clear();
+            inOrder = outOfOrder.isEmpty();
         }
-        // upserts
-        if (diff.contains("upserts", NbtElement.LIST_TYPE)) {
-            NbtList up = diff.getList("upserts", NbtElement.COMPOUND_TYPE);
-            for (int i = 0; i < up.size(); i++) {
-                NbtCompound e = up.getCompound(i);
-                upsertEntry(e, lookupForClient());
-            }
+        sendControl(SyncControlC2SPayload.Op.ACK, clientSessionId, expectedSeq - 1, inOrder);
+    }
+
+    private static void apply(IncrementalStorageSyncS2CPayload payload) {
+        define(payload.defines());
+        for (StorageSyncCodec.Update u : payload.updates()) {
+            applyUpdate(u);
         }
         expectedSeq++;
     }
 
-    private static void removeByKey(String key) {
-        // 简化实现：线性扫描并清理匹配项；后续可改为 Map
-        for (int i = 0; i < capacity; i++) {
-            ItemStack s = display.get(i);
-            if (s.isEmpty()) continue;
-            if (key.equals(makeKeyForStack(s))) {
-                display.set(i, ItemStack.EMPTY);
-                counts[i] = 0L;
-                timestamps[i] = 0L;
-            }
+    private static void requestFullSync() {
+        sendControl(SyncControlC2SPayload.Op.REQUEST, 0L, 0L, false);
+    }
+
+    private static void sendControl(SyncControlC2SPayload.Op op, long sessionId, long syncId, boolean success) {
+        try {
+            net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking.send(
+                new SyncControlC2SPayload(op, sessionId, syncId, success)
+            );
+        } catch (Throwable ignored) {}
+    }
+
+    /**
+     * 应用按需请求到的完整模板：替换占位模板并刷新已显示的槽位
+     */
+    public static void applyTemplates(long sessionId, List<StorageSyncCodec.Define> defines) {
+        if (sessionId != clientSessionId) return;
+        define(defines);
+        for (StorageSyncCodec.Define d : defines) {
+            Integer slot = slotById.get(d.id());
+            ItemStack template = templates.get(d.id());
+            if (slot != null && template != null) setSlot(slot, d.id(), template, counts[slot], timestamps[slot]);
         }
     }
 
-    private static void upsertEntry(NbtCompound e, net.minecraft.registry.RegistryWrapper.WrapperLookup lookup) {
-        if (e == null) return;
-        String key = e.getString("key");
-        long count = Math.max(0, e.getLong("count"));
-        long ts = e.contains("ts") ? e.getLong("ts") : 0L;
-        ItemStack stack = ItemStack.EMPTY;
-        if (e.contains("display")) {
-            final DynamicOps<net.minecraft.nbt.NbtElement> ops = (lookup != null)
-                ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup)
-                : NbtOps.INSTANCE;
-            var parse = ItemStack.CODEC.parse(ops, e.get("display"));
-            stack = parse.result().orElse(ItemStack.EMPTY);
+    /**
+     * 为 indices[from, to) 中仍为占位模板的槽位请求完整模板（负数为虚拟条目，跳过）
+     */
+    public static void requestTemplates(List<Integer> indices, int from, int to) {
+        if (pendingIds.isEmpty()) return;
+        List<Integer> want = new java.util.ArrayList<>();
+        for (int i = Math.max(0, from); i < Math.min(indices.size(), to) && want.size() < StorageTemplateRequestC2SPayload.MAX_IDS; i++) {
+            int idx = indices.get(i);
+            if (idx < 0 || idx >= ids.length) continue;
+            int id = ids[idx];
+            if (id >= 0 && pendingIds.contains(id) && requestedIds.add(id)) want.add(id);
         }
-        if (stack.isEmpty() || count <= 0) {
-            removeByKey(key);
-            return;
+        if (!want.isEmpty()) sendTemplateRequests(want);
+    }
+
+    /**
+     * 登记定义：带模板的写入本地缓存；只有键的从缓存取用，缓存意外缺失时先显示占位物品并立即请求模板
+     */
+    private static void define(List<StorageSyncCodec.Define> defines) {
+        List<Integer> missing = null;
+        for (StorageSyncCodec.Define d : defines) {
+            ItemStack template = d.template();
+            if (template != null && !template.isEmpty()) {
+                ClientTemplateCache.put(d.key(), template);
+            } else if (template == null) {
+                template = ClientTemplateCache.get(d.key());
+            }
+            if (template != null && !template.isEmpty()) {
+                templates.put(d.id(), template);
+                pendingIds.remove(d.id());
+                requestedIds.remove(d.id());
+            } else if (d.template() == null && !templates.containsKey(d.id())) {
+                templates.put(d.id(), new ItemStack(net.minecraft.item.Items.BARRIER));
+                pendingIds.add(d.id());
+                requestedIds.add(d.id());
+                if (missing == null) missing = new java.util.ArrayList<>();
+                missing.add(d.id());
+            }
         }
-        // 查找已有槽位就地更新，否则放入首个空位（简化版）
-        int idx = findIndexByKey(key);
-        if (idx < 0) idx = findFirstEmpty();
-        if (idx < 0) return; // 已满，后续可扩容或触发全量
-        counts[idx] = count;
-        timestamps[idx] = ts;
-        stack.setCount((int)Math.min(stack.getMaxCount(), count));
-        display.set(idx, stack);
+        if (missing != null) sendTemplateRequests(missing);
     }
 
-    private static int findIndexByKey(String key) {
-        for (int i = 0; i < capacity; i++) {
-            ItemStack s = display.get(i);
-            if (s.isEmpty()) continue;
-            if (key.equals(makeKeyForStack(s))) return i;
+    private static void sendTemplateRequests(List<Integer> ids) {
+        for (int from = 0; from < ids.size(); from += StorageTemplateRequestC2SPayload.MAX_IDS) {
+            int to = Math.min(ids.size(), from + StorageTemplateRequestC2SPayload.MAX_IDS);
+            try {
+                net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking.send(
+                    new StorageTemplateRequestC2SPayload(clientSessionId, new java.util.ArrayList<>(ids.subList(from, to)))
+                );
+            } catch (Throwable ignored) {}
         }
-        return -1;
     }
 
-    private static int findFirstEmpty() {
-        for (int i = 0; i < capacity; i++) if (display.get(i).isEmpty()) return i;
-        return -1;
+    private static void applyUpdate(StorageSyncCodec.Update u) {
+        Integer slot = slotById.get(u.id());
+        if (slot != null) {
+            int idx = slot;
+            long count = counts[idx] + u.delta();
+            if (count <= 0) {
+                // 数量归零：移除并回收槽位
+                display.set(idx, ItemStack.EMPTY);
+                counts[idx] = 0L;
+                timestamps[idx] = 0L;
+                ids[idx] = -1;
+                slotById.remove(u.id());
+                freeSlots.add(idx);
+                return;
+            }
+            setSlot(idx, u.id(), templates.get(u.id()), count, u.ts());
+            return;
+        }
+        ItemStack template = templates.get(u.id());
+        if (template == null || u.delta() <= 0) return;
+        // 新条目放入最小的空槽位，没有空位时扩容
+        if (freeSlots.isEmpty()) grow();
+        setSlot(freeSlots.poll(), u.id(), template, u.delta(), u.ts());
     }
 
-    private static String makeKeyForStack(ItemStack s) {
-        // 直接使用 ItemKeyHasher 生成键，确保与新版储存系统完全一致
-        return com.portable.storage.newstore.ItemKeyHasher.hash(s, lookupForClient());
+    private static void setSlot(int idx, int id, ItemStack template, long count, long ts) {
+        ItemStack stack = template.copy();
+        stack.setCount((int)Math.min(stack.getMaxCount(), count));
+        display.set(idx, stack);
+        counts[idx] = count;
+        timestamps[idx] = ts;
+        ids[idx] = id;
+        slotById.put(id, idx);
     }
 
-    private static net.minecraft.registry.RegistryWrapper.WrapperLookup lookupForClient() {
-        var mc = net.minecraft.client.MinecraftClient.getInstance();
-        return (mc != null && mc.player != null) ? mc.player.getRegistryManager() : null;
+    /**
+     * 容量按 1.5 倍增长（至少 54），新增槽位加入空位集合
+     */
+    private static void grow() {
+        int newCapacity = Math.max(capacity + 54, capacity + (capacity >> 1));
+        DefaultedList<ItemStack> grown = DefaultedList.ofSize(newCapacity, ItemStack.EMPTY);
+        for (int i = 0; i < capacity; i++) grown.set(i, display.get(i));
+        display = grown;
+        counts = java.util.Arrays.copyOf(counts, newCapacity);
+        timestamps = java.util.Arrays.copyOf(timestamps, newCapacity);
+        ids = java.util.Arrays.copyOf(ids, newCapacity);
+        java.util.Arrays.fill(ids, capacity, newCapacity, -1);
+        for (int i = capacity; i < newCapacity; i++) freeSlots.add(i);
+        capacity = newCapacity;
     }
 }
-
-
@@ -0,0 +1,133 @@
+package com.portable.storage.client;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.portable.storage.PortableStorage;
+import com.portable.storage.net.payload.TemplateCacheKeysC2SPayload;
+import com.portable.storage.newstore.ItemKey;
+
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
+import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.registry.RegistryOps;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.util.WorldSavePath;
+
+/**
+ * 客户端物品模板缓存：物品键 -> 模板，按服务器地址（单人游戏为存档目录）分别持久化到
+ * .minecraft/portable-storage/template-cache/ 下。
+ * 进入时加载并把已缓存的键上报服务端，之后服务端对这些键只发送键，
+ * 潜影盒等大体积物品在同一服务器/世界只需序列化一次。按最近使用淘汰，上限见 {@link TemplateCacheKeysC2SPayload#CACHE_LIMIT}。
+ */
+public final class ClientTemplateCache {
+    private static final Map<ItemKey, ItemStack> CACHE = new LinkedHashMap<>(256, 0.75f, true);
+    private static Path file;
+    private static RegistryWrapper.WrapperLookup registries;
+    private static boolean dirty = false;
+
+    private ClientTemplateCache() {}
+
+    public static ItemStack get(ItemKey key) {
+        return key != null ? CACHE.get(key) : null;
+    }
+
+    public static void put(ItemKey key, ItemStack template) {
+        if (key == null || template == null || template.isEmpty()) return;
+        CACHE.put(key, template);
+        dirty = true;
+        if (CACHE.size() > TemplateCacheKeysC2SPayload.CACHE_LIMIT) {
+            var it = CACHE.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * 进入服务器/世界：加载对应缓存文件并上报已缓存的键
+     */
+    public static void onJoin(MinecraftClient client, RegistryWrapper.WrapperLookup lookup) {
+        CACHE.clear();
+        dirty = false;
+        registries = lookup;
+        file = resolveFile(client);
+        if (file != null && Files.exists(file)) {
+            try {
+                NbtCompound root = NbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
+                var ops = RegistryOps.of(NbtOps.INSTANCE, registries);
+                NbtList list = root.getList("entries", NbtElement.COMPOUND_TYPE);
+                for (int i = 0; i < list.size(); i++) {
+                    NbtCompound e = list.getCompound(i);
+                    ItemStack.CODEC.parse(ops, e.get("item")).result().ifPresent(stack ->
+                        CACHE.put(ItemKey.of(e.getLong("hi"), e.getLong("lo")), stack));
+                }
+            } catch (Exception ex) {
+                PortableStorage.LOGGER.warn("读取物品模板缓存失败，将重新建立: {}", file, ex);
+                CACHE.clear();
+            }
+        }
+        List<ItemKey> keys = new ArrayList<>(CACHE.keySet());
+        for (int from = 0; from < keys.size(); from += TemplateCacheKeysC2SPayload.MAX_KEYS) {
+            int to = Math.min(keys.size(), from + TemplateCacheKeysC2SPayload.MAX_KEYS);
+            try {
+                ClientPlayNetworking.send(new TemplateCacheKeysC2SPayload(new ArrayList<>(keys.subList(from, to))));
+            } catch (Throwable ignored) {}
+        }
+    }
+
+    /**
+     * 离开服务器/世界：有改动时写回缓存文件
+     */
+    public static void onDisconnect() {
+        if (dirty && file != null && registries != null) {
+            try {
+                var ops = RegistryOps.of(NbtOps.INSTANCE, registries);
+                NbtList list = new NbtList();
+                for (var en : CACHE.entrySet()) {
+                    NbtCompound e = new NbtCompound();
+                    e.putLong("hi", en.getKey().hi());
+                    e.putLong("lo", en.getKey().lo());
+                    var encoded = ItemStack.CODEC.encodeStart(ops, en.getValue()).result();
+                    if (encoded.isEmpty()) continue;
+                    e.put("item", encoded.get());
+                    list.add(e);
+                }
+                NbtCompound root = new NbtCompound();
+                root.put("entries", list);
+                Files.createDirectories(file.getParent());
+                NbtIo.writeCompressed(root, file);
+            } catch (Exception ex) {
+                PortableStorage.LOGGER.warn("保存物品模板缓存失败: {}", file, ex);
+            }
+        }
+        CACHE.clear();
+        dirty = false;
+        file = null;
+        registries = null;
+    }
+
+    private static Path resolveFile(MinecraftClient client) {
+        String name;
+        if (client.getServer() != null) {
+            Path root = client.getServer().getSavePath(WorldSavePath.ROOT).normalize();
+            name = "local_" + root.getFileName();
+        } else if (client.getCurrentServerEntry() != null) {
+            name = "server_" + client.getCurrentServerEntry().address;
+        } else {
+            return null;
+        }
+        name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        return FabricLoader.getInstance().getGameDir().resolve("portable-storage").resolve("template-cache").resolve(name + ".nbt");
+    }
+}
@@ -372,6 +372,9 @@ public class StorageUIComponent {
         int maxScrollRows = Math.max(0, totalRows - visibleRows);
         int rowOffset = (int)Math.floor(scroll * maxScrollRows + 0.5f);
         rowOffset = Math.max(0, Math.min(maxScrollRows, rowOffset));
+        // 窗口化同步：为可见区域及上下各一屏预取完整模板
+        ClientStorageState.requestTemplates(filtered, Math.max(0, (rowOffset - visibleRows) * cols),
+            Math.min(filteredSize, (rowOffset + 2 * visibleRows) * cols));
         
         ItemStack hoveredStack = ItemStack.EMPTY;
         int hoveredIndex = -1;
@@ -103,6 +103,8 @@ public class PortableStorage implements ModInitializer {
 		
 		// 注册增量同步调度器（周期性向正在查看的玩家推送diff）
 		IncrementalSyncTickHandler.register();
+		// 注册去抖同步调度器（高频变更每 tick 至多同步一次）
+		com.portable.storage.sync.SyncScheduler.register();
 		
 		// 注册仓库钥匙自动使用事件处理器
 		StorageKeyAutoUseHandler.register();
@@ -125,6 +127,13 @@ public class PortableStorage implements ModInitializer {
 		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
 			// 服务器关闭时清理内存缓存
 			StorageMemoryCache.shutdown();
+			com.portable.storage.sync.ChangeAccumulator.clear();
+			com.portable.storage.sync.ViewSubscriptions.clear();
+			com.portable.storage.player.StorageMembershipGraph.clear();
+			com.portable.storage.sync.SyncScheduler.clear();
+			com.portable.storage.sync.StateChannelVersions.clear();
+			com.portable.storage.newstore.StorageAvailability.clear();
+			com.portable.storage.newstore.MergedViewCache.clear();
 		});
 		
 		LOGGER.info("Portable Storage initialized");
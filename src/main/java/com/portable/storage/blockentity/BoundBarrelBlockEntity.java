@@ -52,10 +52,6 @@ public class BoundBarrelBlockEntity extends LootableContainerBlockEntity impleme
     private volatile boolean filterRulesEmpty = true;
     private volatile long lastFilterRulesCheckTick = -1;
     
-    // 物品键缓存，避免重复计算 SHA-256
-    private volatile String lastItemKey = null;
-    private volatile ItemStack lastItemForKey = ItemStack.EMPTY;
-    
     /**
      * 筛选规则类
      */
@@ -336,28 +332,12 @@ public class BoundBarrelBlockEntity extends LootableContainerBlockEntity impleme
     }
 
     /**
-     * 快速获取物品键（带缓存优化）
+     * 快速获取物品键（由 ItemKeyHasher 的共享缓存负责去重计算）
      */
-    private String getItemKeyFast(ItemStack itemStack) {
+    private com.portable.storage.newstore.ItemKey getItemKeyFast(ItemStack itemStack) {
         if (itemStack.isEmpty()) return null;
-        
-        // 检查缓存是否有效
-        if (ItemStack.areItemsAndComponentsEqual(itemStack, lastItemForKey)) {
-            return lastItemKey;
-        }
-        
-        // 计算新的物品键
-        if (world != null && world.getServer() != null) {
-            String key = com.portable.storage.newstore.ItemKeyHasher.hash(itemStack, world.getServer().getRegistryManager());
-            
-            // 更新缓存
-            lastItemKey = key;
-            lastItemForKey = itemStack.copy();
-            
-            return key;
-        }
-        
-        return null;
+        if (world == null || world.getServer() == null) return null;
+        return com.portable.storage.newstore.ItemKeyHasher.hash(itemStack, world.getServer().getRegistryManager());
     }
     
     /**
@@ -392,23 +372,17 @@ public class BoundBarrelBlockEntity extends LootableContainerBlockEntity impleme
         try {
             var server = world.getServer();
             
-            // 使用缓存的物品键，避免重复计算 SHA-256
-            String key = getItemKeyFast(stack);
-            if (key == null || key.isEmpty()) return;
+            // 使用共享缓存的物品键，避免重复计算 SHA-256
+            com.portable.storage.newstore.ItemKey key = getItemKeyFast(stack);
+            if (key == null) return;
             
             // 纯内存操作：不进行文件IO
             com.portable.storage.newstore.TemplateIndex index = com.portable.storage.newstore.StorageMemoryCache.getTemplateIndex();
             
             // 如果模板不存在，只在内存中创建
             if (index.find(key) == null) {
-                // 分配切片ID
-                int slice = index.getOrAllocateSlice();
-                
-                // 创建新模板条目（仅内存）
-                index.put(key, slice, 0);
-                
-                // 将模板添加到内存缓存
-                com.portable.storage.newstore.StorageMemoryCache.addTemplate(key, stack.copy());
+                // 创建新模板条目（仅内存，同时写入变更日志）
+                com.portable.storage.newstore.StorageMemoryCache.registerNewTemplate(key, stack.copy());
             }
             
             // 纯内存操作：更新玩家数据和引用计数
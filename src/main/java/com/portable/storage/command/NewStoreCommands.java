@@ -4,10 +4,12 @@ import java.util.Map;
 
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.BoolArgumentType;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
 import com.mojang.brigadier.context.CommandContext;
 import com.portable.storage.PortableStorage;
 import com.portable.storage.net.ServerNetworkingHandlers;
+import com.portable.storage.newstore.ItemKey;
 import com.portable.storage.newstore.ItemKeyHasher;
 import com.portable.storage.newstore.PlayerStore;
 import com.portable.storage.newstore.RefCountRebuilder;
@@ -85,13 +87,40 @@ public final class NewStoreCommands {
                 .then(CommandManager.literal("get-item-size")
                     .executes(NewStoreCommands::executeGetItemSize)
                 )
+                .then(CommandManager.literal("stats")
+                    .executes(NewStoreCommands::executeStats)
+                )
+                .then(CommandManager.literal("bench-slices")
+                    .executes(NewStoreCommands::executeBenchSlices)
+                )
+                .then(CommandManager.literal("compact")
+                    .executes(NewStoreCommands::executeCompact)
+                )
+                .then(CommandManager.literal("bench-sync")
+                    .executes(ctx -> executeBenchSync(ctx, 5000))
+                    .then(CommandManager.argument("variants", IntegerArgumentType.integer(1, 20000))
+                        .executes(ctx -> executeBenchSync(ctx, IntegerArgumentType.getInteger(ctx, "variants")))
+                    )
+                )
+                .then(CommandManager.literal("stress-save")
+                    .executes(ctx -> executeStressSave(ctx, 10))
+                    .then(CommandManager.argument("seconds", IntegerArgumentType.integer(1, 120))
+                        .executes(ctx -> executeStressSave(ctx, IntegerArgumentType.getInteger(ctx, "seconds")))
+                    )
+                )
             );
         dispatcher.register(root);
     }
 
     private static int executeRebuild(CommandContext<ServerCommandSource> ctx, boolean cleanup) {
         MinecraftServer server = ctx.getSource().getServer();
-        RefCountRebuilder.rebuild(server, cleanup);
+        try {
+            RefCountRebuilder.rebuild(server, cleanup);
+        } catch (java.io.IOException e) {
+            PortableStorage.LOGGER.error("Failed to save rebuilt template index", e);
+            ctx.getSource().sendError(Text.literal("Failed to save template index: " + e.getMessage()));
+            return 0;
+        }
         ctx.getSource().sendFeedback(() -> (cleanup
             ? Text.translatable("command." + PortableStorage.MOD_ID + ".newstore.rebuild_cleanup")
             : Text.translatable("command." + PortableStorage.MOD_ID + ".newstore.rebuild")
@@ -107,7 +136,7 @@ public final class NewStoreCommands {
         }
         MinecraftServer server = player.getServer();
         if (server == null) return 0;
-        Map<String, PlayerStore.Entry> m = PlayerStore.readAll(server, player.getUuid());
+        Map<ItemKey, PlayerStore.Entry> m = PlayerStore.view(server, player.getUuid());
         // 修复：直接使用 count 值，因为 readAll 已经过滤了 count <= 0 的条目
         long totalLocal = m.values().stream().mapToLong(e -> e.count).sum();
         final int size = m.size();
@@ -134,7 +163,7 @@ public final class NewStoreCommands {
         MinecraftServer server = player.getServer();
         if (server == null) return 0;
         
-        Map<String, PlayerStore.Entry> m = PlayerStore.readAll(server, player.getUuid());
+        Map<ItemKey, PlayerStore.Entry> m = PlayerStore.view(server, player.getUuid());
         int totalEntries = m.size();
         long totalCount = m.values().stream().mapToLong(e -> e.count).sum();
         
@@ -149,7 +178,7 @@ public final class NewStoreCommands {
             } else if (entry.count == 0) {
                 zeroEntries[0]++;
             }
-            if (entry.key == null || entry.key.isEmpty()) {
+            if (entry.key == null) {
                 invalidEntries[0]++;
             }
         }
@@ -224,8 +253,8 @@ public final class NewStoreCommands {
                 net.minecraft.item.ItemStack st = stacks.get(i);
                 long cnt = counts.get(i);
                 // 模板与索引
-                String key = ItemKeyHasher.hash(st, onlinePlayer ? online.getRegistryManager() : null);
-                if (key == null || key.isEmpty()) continue;
+                ItemKey key = ItemKeyHasher.hash(st, onlinePlayer ? online.getRegistryManager() : null);
+                if (key == null) continue;
                 if (index.find(key) == null) {
                     TemplateSlices.putTemplate(() -> server, index, key, st, onlinePlayer ? online.getRegistryManager() : null);
                 }
@@ -343,24 +372,16 @@ public final class NewStoreCommands {
         MinecraftServer server = player.getServer();
         if (server == null) return 0;
 
-        Map<String, PlayerStore.Entry> entries = PlayerStore.readAll(server, player.getUuid());
+        Map<ItemKey, PlayerStore.Entry> entries = PlayerStore.view(server, player.getUuid());
         int totalEntries = entries.size();
         long totalCount = entries.values().stream().mapToLong(e -> e.count).sum();
 
         ctx.getSource().sendFeedback(() -> trOrLiteral("[Player Store] Total Entries: " + totalEntries + ", Total Count: " + totalCount), false);
 
-        var index = com.portable.storage.newstore.StorageMemoryCache.getTemplateIndex();
-        var cache = com.portable.storage.newstore.StorageMemoryCache.getTemplateCache();
         DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
         for (PlayerStore.Entry e : entries.values()) {
-            net.minecraft.item.ItemStack stack = cache.get(e.key);
-            if (stack == null || stack.isEmpty()) {
-                stack = com.portable.storage.newstore.TemplateSlices.getTemplate(() -> server, index, e.key, server.getRegistryManager());
-                if (stack != null && !stack.isEmpty()) {
-                    com.portable.storage.newstore.StorageMemoryCache.addTemplate(e.key, stack);
-                }
-            }
+            net.minecraft.item.ItemStack stack = com.portable.storage.newstore.StorageMemoryCache.getOrLoadTemplate(server, e.key);
             String name = (stack != null && !stack.isEmpty()) ? stack.getName().getString() : "unknown";
             String tsStr = Instant.ofEpochMilli(e.ts).atZone(ZoneId.systemDefault()).format(fmt);
             ctx.getSource().sendFeedback(() -> trOrLiteral("[Player Store] Item: " + name + ", Key: " + e.key + ", Count: " + e.count + ", Timestamp: " + tsStr), false);
@@ -381,9 +402,9 @@ public final class NewStoreCommands {
         MinecraftServer server = player.getServer();
         if (server == null) return 0;
 
-        Map<String, PlayerStore.Entry> entries = PlayerStore.readAll(server, player.getUuid());
+        Map<ItemKey, PlayerStore.Entry> entries = PlayerStore.view(server, player.getUuid());
         TemplateIndex index = com.portable.storage.newstore.StorageMemoryCache.getTemplateIndex();
-        java.util.Map<String, net.minecraft.item.ItemStack> cache = com.portable.storage.newstore.StorageMemoryCache.getTemplateCache();
+        java.util.Map<ItemKey, net.minecraft.item.ItemStack> cache = com.portable.storage.newstore.StorageMemoryCache.getTemplateCache();
 
         int inspected = 0;
         int unknownCount = 0;
@@ -426,6 +447,84 @@ public final class NewStoreCommands {
         return inspected;
     }
 
+    private static int executeStats(CommandContext<ServerCommandSource> ctx) {
+        String stats = com.portable.storage.newstore.StorageMemoryCache.getCacheStats();
+        for (String line : stats.split("; ")) {
+            ctx.getSource().sendFeedback(() -> trOrLiteral("[Stats] " + line), false);
+        }
+        String sync = com.portable.storage.sync.ChangeAccumulator.getStats();
+        ctx.getSource().sendFeedback(() -> trOrLiteral("[Stats] Sync changes: " + sync), false);
+        String window = com.portable.storage.sync.StorageSyncManager.getStats();
+        ctx.getSource().sendFeedback(() -> trOrLiteral("[Stats] Sync window: " + window), false);
+        String scheduled = com.portable.storage.sync.SyncScheduler.getStats();
+        ctx.getSource().sendFeedback(() -> trOrLiteral("[Stats] Sync scheduler: " + scheduled), false);
+        String mergedViews = com.portable.storage.newstore.MergedViewCache.getStats();
+        ctx.getSource().sendFeedback(() -> trOrLiteral("[Stats] Merged views: " + mergedViews), false);
+        String availability = com.portable.storage.newstore.StorageAvailability.getStats();
+        ctx.getSource().sendFeedback(() -> trOrLiteral("[Stats] Availability: " + availability), false);
+        String channels = com.portable.storage.sync.StateChannelVersions.getStats();
+        ctx.getSource().sendFeedback(() -> trOrLiteral("[Stats] State channels: " + channels), false);
+        String subs = com.portable.storage.sync.ViewSubscriptions.getStats();
+        ctx.getSource().sendFeedback(() -> trOrLiteral("[Stats] Sync subscriptions: " + subs), false);
+        String groups = com.portable.storage.player.StorageMembershipGraph.getStats();
+        ctx.getSource().sendFeedback(() -> trOrLiteral("[Stats] Storage groups: " + groups), false);
+        return 1;
+    }
+
+    private static int executeBenchSync(CommandContext<ServerCommandSource> ctx, int variants) {
+        ServerPlayerEntity player = ctx.getSource().getPlayer();
+        if (player == null) {
+            ctx.getSource().sendError(Text.literal("Only players can run bench-sync"));
+            return 0;
+        }
+        ServerCommandSource source = ctx.getSource();
+        source.sendFeedback(() -> trOrLiteral("[Bench] measuring sync payload sizes..."), false);
+        // 需要读取玩家视图，在服务器线程上直接运行
+        com.portable.storage.sync.SyncPayloadBenchmark.run(player, variants,
+            line -> source.sendFeedback(() -> trOrLiteral("[Bench] " + line), false));
+        return 1;
+    }
+
+    private static int executeBenchSlices(CommandContext<ServerCommandSource> ctx) {
+        MinecraftServer server = ctx.getSource().getServer();
+        ServerCommandSource source = ctx.getSource();
+        source.sendFeedback(() -> trOrLiteral("[Bench] running slice lookup benchmark..."), false);
+        // 在后台线程运行，结果回到服务器线程输出
+        Thread worker = new Thread(() -> com.portable.storage.newstore.SliceBenchmark.run(server,
+            line -> server.execute(() -> source.sendFeedback(() -> trOrLiteral("[Bench] " + line), false))),
+            "SliceBenchmark");
+        worker.setDaemon(true);
+        worker.start();
+        return 1;
+    }
+
+    private static int executeCompact(CommandContext<ServerCommandSource> ctx) {
+        MinecraftServer server = ctx.getSource().getServer();
+        ServerCommandSource source = ctx.getSource();
+        source.sendFeedback(() -> trOrLiteral("[Compact] running template compaction..."), false);
+        // 压缩按 I/O 预算限速，在后台线程运行
+        Thread worker = new Thread(() -> {
+            var result = com.portable.storage.newstore.StorageMemoryCache.compactTemplates(server);
+            String line = result != null ? result.toString() : "skipped (storage not initialized)";
+            server.execute(() -> source.sendFeedback(() -> trOrLiteral("[Compact] " + line), false));
+        }, "TemplateCompaction");
+        worker.setDaemon(true);
+        worker.start();
+        return 1;
+    }
+
+    private static int executeStressSave(CommandContext<ServerCommandSource> ctx, int seconds) {
+        MinecraftServer server = ctx.getSource().getServer();
+        ServerCommandSource source = ctx.getSource();
+        source.sendFeedback(() -> trOrLiteral("[Stress] hammering add/remove while saving for " + seconds + "s..."), false);
+        Thread worker = new Thread(() -> com.portable.storage.newstore.SaveStressTest.run(seconds,
+            line -> server.execute(() -> source.sendFeedback(() -> trOrLiteral("[Stress] " + line), false))),
+            "SaveStressTest");
+        worker.setDaemon(true);
+        worker.start();
+        return 1;
+    }
+
     private static int executeListKeys(CommandContext<ServerCommandSource> ctx) {
         ServerPlayerEntity player = ctx.getSource().getPlayer();
         if (player == null) {
@@ -435,7 +534,7 @@ public final class NewStoreCommands {
         MinecraftServer server = player.getServer();
         if (server == null) return 0;
 
-        Map<String, PlayerStore.Entry> entries = PlayerStore.readAll(server, player.getUuid());
+        Map<ItemKey, PlayerStore.Entry> entries = PlayerStore.view(server, player.getUuid());
         int totalEntries = entries.size();
         long totalCount = entries.values().stream().mapToLong(e -> e.count).sum();
 
@@ -48,6 +48,10 @@ public class ServerConfig {
     private boolean enableSizeLimit = true;
     private long maxStorageSizeBytes = 100 * 1024; // 100KB
     private long singleItemStackLimit = -1; // -1 表示不限制
+    private int playerCacheMaxWeight = 200000; // 玩家缓存总权重上限（每名玩家 1 + 物品种类数）
+    private int windowedSyncThreshold = 2000; // 物品种类数超过此值时全量同步只发轻量信息，0 表示关闭
+    private int incrementalSyncWindow = 8; // 每名玩家未确认的增量分包上限
+    private boolean forceStateResync = false; // 全量同步时总是重发升级与各项配置（旧行为）
     
     // 初级仓库功能配置
     private boolean enablePrimaryStorage = true;
@@ -300,6 +304,29 @@ public class ServerConfig {
             # 默认值: -1
             single_item_stack_limit = -1
             
+            # 玩家仓库内存缓存的容量上限（权重）
+            # 每名已加载玩家的权重为 1 + 其仓库中的物品种类数
+            # 超出后按最久未访问淘汰，未保存的玩家会先写盘再移出缓存
+            # 默认值: 200000
+            player_cache_max_weight = 200000
+            
+            # 窗口化同步阈值（物品种类数）
+            # 超过此值时，全量同步只发送数量与物品ID等轻量信息，
+            # 完整物品数据由客户端在滚动到对应行时按需请求；0 表示关闭
+            # 默认值: 2000
+            windowed_sync_threshold = 2000
+            
+            # 增量同步发送窗口（分包数）
+            # 每名玩家最多同时有这么多个未确认的增量分包；窗口已满时新的变化合并到下一次发送
+            # 客户端缺包时只重发未确认的分包，不再回退为全量同步
+            # 默认值: 8
+            incremental_sync_window = 8
+            
+            # 全量同步时是否总是重发升级与各项配置
+            # 关闭时这些状态只在内容变化后才重新下发；开启则恢复每次全量同步都重发的旧行为
+            # 默认值: false
+            force_state_resync = false
+            
             [container_display]
             # 工作台升级在容器界面显示仓库的配置
             # 启用工作台升级后，以下容器界面将显示仓库界面
@@ -404,6 +431,10 @@ public class ServerConfig {
             enablePrimaryStorage = storageConfig.getOrElse("enable_primary_storage", true);
             primaryStorageItem = storageConfig.getOrElse("primary_storage_item", "minecraft:heart_of_the_sea");
             consumePrimaryStorageItem = storageConfig.getOrElse("consume_primary_storage_item", true);
+            playerCacheMaxWeight = Math.max(1, storageConfig.getOrElse("player_cache_max_weight", 200000));
+            windowedSyncThreshold = Math.max(0, storageConfig.getOrElse("windowed_sync_threshold", 2000));
+            incrementalSyncWindow = Math.max(1, storageConfig.getOrElse("incremental_sync_window", 8));
+            forceStateResync = storageConfig.getOrElse("force_state_resync", false);
         } else {
             PortableStorage.LOGGER.warn("配置文件中未找到 [storage] 部分，使用默认值");
         }
@@ -472,6 +503,10 @@ public class ServerConfig {
         storageConfig.set("enable_primary_storage", enablePrimaryStorage);
         storageConfig.set("primary_storage_item", primaryStorageItem);
         storageConfig.set("consume_primary_storage_item", consumePrimaryStorageItem);
+        storageConfig.set("player_cache_max_weight", playerCacheMaxWeight);
+        storageConfig.set("windowed_sync_threshold", windowedSyncThreshold);
+        storageConfig.set("incremental_sync_window", incrementalSyncWindow);
+        storageConfig.set("force_state_resync", forceStateResync);
         
         Config containerConfig = config.get("container_display");
         if (containerConfig == null) {
@@ -548,6 +583,22 @@ public class ServerConfig {
             storageConfig.set("single_item_stack_limit", -1);
             changed = true;
         }
+        if (storageConfig == null || !storageConfig.contains("player_cache_max_weight")) {
+            storageConfig.set("player_cache_max_weight", 200000);
+            changed = true;
+        }
+        if (storageConfig == null || !storageConfig.contains("windowed_sync_threshold")) {
+            storageConfig.set("windowed_sync_threshold", 2000);
+            changed = true;
+        }
+        if (storageConfig == null || !storageConfig.contains("incremental_sync_window")) {
+            storageConfig.set("incremental_sync_window", 8);
+            changed = true;
+        }
+        if (storageConfig == null || !storageConfig.contains("force_state_resync")) {
+            storageConfig.set("force_state_resync", false);
+            changed = true;
+        }
 
         Config containerConfig = config.get("container_display");
         if (containerConfig == null) {
@@ -614,6 +665,18 @@ public class ServerConfig {
             if (!containsKey(section, "single_item_stack_limit")) {
                 toAppend.append(buildSingleItemStackLimitBlock());
             }
+            if (!containsKey(section, "player_cache_max_weight")) {
+                toAppend.append(buildPlayerCacheMaxWeightBlock());
+            }
+            if (!containsKey(section, "windowed_sync_threshold")) {
+                toAppend.append(buildWindowedSyncThresholdBlock());
+            }
+            if (!containsKey(section, "incremental_sync_window")) {
+                toAppend.append(buildIncrementalSyncWindowBlock());
+            }
+            if (!containsKey(section, "force_state_resync")) {
+                toAppend.append(buildForceStateResyncBlock());
+            }
             
             // 检查容器配置部分
             int containerSectionStart = findSectionStart(content, "[container_display]");
@@ -689,6 +752,10 @@ public class ServerConfig {
         sb.append(buildIncrementalSyncBlock());
         sb.append(buildOnDemandSyncBlock());
         sb.append(buildSingleItemStackLimitBlock());
+        sb.append(buildPlayerCacheMaxWeightBlock());
+        sb.append(buildWindowedSyncThresholdBlock());
+        sb.append(buildIncrementalSyncWindowBlock());
+        sb.append(buildForceStateResyncBlock());
         sb.append(ls).append(buildFullContainerDisplaySection());
         return sb.toString();
     }
@@ -745,6 +812,41 @@ public class ServerConfig {
             + "single_item_stack_limit = -1" + ls + ls;
     }
 
+    private static String buildPlayerCacheMaxWeightBlock() {
+        String ls = System.lineSeparator();
+        return "# 玩家仓库内存缓存的容量上限（权重）" + ls
+            + "# 每名已加载玩家的权重为 1 + 其仓库中的物品种类数" + ls
+            + "# 超出后按最久未访问淘汰，未保存的玩家会先写盘再移出缓存" + ls
+            + "# 默认值: 200000" + ls
+            + "player_cache_max_weight = 200000" + ls + ls;
+    }
+
+    private static String buildWindowedSyncThresholdBlock() {
+        String ls = System.lineSeparator();
+        return "# 窗口化同步阈值（物品种类数）" + ls
+            + "# 超过此值时，全量同步只发送数量与物品ID等轻量信息，" + ls
+            + "# 完整物品数据由客户端在滚动到对应行时按需请求；0 表示关闭" + ls
+            + "# 默认值: 2000" + ls
+            + "windowed_sync_threshold = 2000" + ls + ls;
+    }
+
+    private static String buildIncrementalSyncWindowBlock() {
+        String ls = System.lineSeparator();
+        return "# 增量同步发送窗口（分包数）" + ls
+            + "# 每名玩家最多同时有这么多个未确认的增量分包；窗口已满时新的变化合并到下一次发送" + ls
+            + "# 客户端缺包时只重发未确认的分包，不再回退为全量同步" + ls
+            + "# 默认值: 8" + ls
+            + "incremental_sync_window = 8" + ls + ls;
+    }
+
+    private static String buildForceStateResyncBlock() {
+        String ls = System.lineSeparator();
+        return "# 全量同步时是否总是重发升级与各项配置" + ls
+            + "# 关闭时这些状态只在内容变化后才重新下发；开启则恢复每次全量同步都重发的旧行为" + ls
+            + "# 默认值: false" + ls
+            + "force_state_resync = false" + ls + ls;
+    }
+
     private static String buildFullContainerDisplaySection() {
         String ls = System.lineSeparator();
         StringBuilder sb = new StringBuilder();
@@ -844,6 +946,10 @@ public class ServerConfig {
         enableSizeLimit = true;
         maxStorageSizeBytes = 102400;
         singleItemStackLimit = -1;
+        playerCacheMaxWeight = 200000;
+        windowedSyncThreshold = 2000;
+        incrementalSyncWindow = 8;
+        forceStateResync = false;
         
         // 初级仓库配置默认值
         enablePrimaryStorage = true;
@@ -964,6 +1070,22 @@ public class ServerConfig {
         return singleItemStackLimit;
     }
     
+    public int getPlayerCacheMaxWeight() {
+        return playerCacheMaxWeight;
+    }
+    
+    public int getWindowedSyncThreshold() {
+        return windowedSyncThreshold;
+    }
+    
+    public int getIncrementalSyncWindow() {
+        return incrementalSyncWindow;
+    }
+    
+    public boolean isForceStateResync() {
+        return forceStateResync;
+    }
+    
     // Setter 方法（用于运行时修改配置）
     public void setRequireConditionToEnable(boolean requireConditionToEnable) {
         this.requireConditionToEnable = requireConditionToEnable;
@@ -10,7 +10,8 @@ import net.minecraft.server.network.ServerPlayerEntity;
 /**
  * 周期性增量同步调度：
  * 每 N tick 遍历正在查看界面的玩家并发送增量 diff。
- * 后续可接入服务器配置与 ChangeAccumulator 批次聚合。
+ * 发送窗口已满的玩家，新变化在 StorageSyncManager 中合并，收到 ACK 后再发送。
+ * diff 由 ChangeAccumulator 中自上次同步以来的变更事件生成，无变更的玩家不发送。
  */
 public final class IncrementalSyncTickHandler {
     private IncrementalSyncTickHandler() {}
@@ -187,8 +187,8 @@ public class PistonUpgradeHandler {
             }
         }
         
-        // 发送同步消息
-        ServerNetworkingHandlers.sendSync(player);
+        // 请求同步（同一 tick 内合并）
+        com.portable.storage.sync.SyncScheduler.requestStorageSync(player);
         
         // 显示补充提示消息
         showRefillMessage(player, targetStack, (int) taken, availableCount - taken);
@@ -23,6 +23,8 @@ public class PlayerJoinEventHandler {
     public static void register() {
         ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
             ServerPlayerEntity player = handler.player;
+            // 升级槽位中的绑定木桶加入共享成员关系图
+            PlayerStorageService.getUpgradeInventory(player).bindHolder(player.getUuid());
             // 玩家加入时发送启用状态同步
             ServerNetworkingHandlers.sendEnablementSync(player);
             // 1秒后（20tick）尝试迁移旧版到新版
@@ -36,6 +38,11 @@ public class PlayerJoinEventHandler {
             // 清理按需同步状态
             PlayerViewState.cleanupPlayer(player.getUuid());
             ChangeAccumulator.cleanupPlayer(player.getUuid());
+            com.portable.storage.sync.ViewSubscriptions.remove(player.getUuid());
+            com.portable.storage.sync.SyncScheduler.cleanupPlayer(player.getUuid());
+            com.portable.storage.sync.StateChannelVersions.cleanupPlayer(player.getUuid());
+            PlayerStorageService.getUpgradeInventory(player).bindHolder(null);
+            com.portable.storage.player.StorageMembershipGraph.removeViewer(player.getUuid());
             // 清理活塞升级处理器数据
             PistonUpgradeHandler.cleanupPlayer(player.getUuid());
             // 清空垃圾桶槽位（客户端缓存）
@@ -8,7 +8,6 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import com.portable.storage.net.ServerNetworkingHandlers;
 import com.portable.storage.newstore.NewStoreService;
 import com.portable.storage.player.PlayerStorageService;
-import com.portable.storage.storage.StorageInventory;
 import com.portable.storage.storage.UpgradeInventory;
 
 import net.minecraft.enchantment.EnchantmentHelper;
@@ -62,25 +61,10 @@ public abstract class BowItemMixin {
             // 检查是否有光灵箭升级
             boolean hasSpectralArrowUpgrade = upgrades.isSpectralArrowUpgradeActive();
 
-            // 构建合并视图（旧版+新版）
-            StorageInventory merged = ServerNetworkingHandlers.buildMergedSnapshot(serverPlayer);
-
-            // 优先查找普通箭，与PlayerEntityProjectileMixin保持一致
-            ItemStack matchedArrow = null;
-            
-            for (int i = 0; i < merged.getCapacity(); i++) {
-                ItemStack disp = merged.getDisplayStack(i);
-                if (disp.isEmpty()) continue;
-                if (isArrow(disp) && merged.getCountByIndex(i) > 0) {
-                    if (disp.isOf(Items.ARROW)) {
-                        matchedArrow = disp;
-                        break; // 优先使用普通箭
-                    } else if (disp.isOf(Items.SPECTRAL_ARROW) && matchedArrow == null) {
-                        matchedArrow = disp;
-                    }
-                }
-            }
-            if (matchedArrow == null) return; // 仓库也没有箭
+            // 按索引查询可用箭：优先普通箭，与PlayerEntityProjectileMixin保持一致
+            ItemStack matchedArrow = ServerNetworkingHandlers.findAvailableVariant(serverPlayer, Items.ARROW);
+            if (matchedArrow.isEmpty()) matchedArrow = ServerNetworkingHandlers.findAvailableVariant(serverPlayer, Items.SPECTRAL_ARROW);
+            if (matchedArrow.isEmpty()) return; // 仓库也没有箭
 
             // 检查是否是特殊箭（药箭、光灵箭），这些箭即使有无限附魔也要扣除
             boolean isSpecialArrow = matchedArrow.isOf(Items.TIPPED_ARROW) || matchedArrow.isOf(Items.SPECTRAL_ARROW);
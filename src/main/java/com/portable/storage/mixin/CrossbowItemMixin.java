@@ -8,7 +8,6 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import com.portable.storage.net.ServerNetworkingHandlers;
 import com.portable.storage.newstore.NewStoreService;
 import com.portable.storage.player.PlayerStorageService;
-import com.portable.storage.storage.StorageInventory;
 import com.portable.storage.storage.UpgradeInventory;
 
 import net.minecraft.enchantment.EnchantmentHelper;
@@ -63,24 +62,10 @@ public abstract class CrossbowItemMixin {
             // 检查是否有光灵箭升级
             boolean hasSpectralArrowUpgrade = upgrades.isSpectralArrowUpgradeActive();
             
-            // 构建合并视图（旧版+新版）
-            StorageInventory merged = ServerNetworkingHandlers.buildMergedSnapshot(serverPlayer);
-            
-            // 优先查找普通箭，与PlayerEntityProjectileMixin保持一致
-            ItemStack matchedAmmo = null;
-            
-            for (int i = 0; i < merged.getCapacity(); i++) {
-                ItemStack disp = merged.getDisplayStack(i);
-                if (!disp.isEmpty() && isCrossbowAmmo(disp) && merged.getCountByIndex(i) > 0) {
-                    if (disp.isOf(Items.ARROW)) {
-                        matchedAmmo = disp;
-                        break; // 优先使用普通箭
-                    } else if (disp.isOf(Items.SPECTRAL_ARROW) && matchedAmmo == null) {
-                        matchedAmmo = disp;
-                    }
-                }
-            }
-            if (matchedAmmo == null) return; // 仓库也没有弹药
+            // 按索引查询可用弹药：优先普通箭，与PlayerEntityProjectileMixin保持一致
+            ItemStack matchedAmmo = ServerNetworkingHandlers.findAvailableVariant(serverPlayer, Items.ARROW);
+            if (matchedAmmo.isEmpty()) matchedAmmo = ServerNetworkingHandlers.findAvailableVariant(serverPlayer, Items.SPECTRAL_ARROW);
+            if (matchedAmmo.isEmpty()) return; // 仓库也没有弹药
 
             // 如果有光灵箭升级且使用的是普通箭，按普通箭处理（但会在命中时施加光灵效果）
             if (hasSpectralArrowUpgrade && matchedAmmo.isOf(Items.ARROW)) {
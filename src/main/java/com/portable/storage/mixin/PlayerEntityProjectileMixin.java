@@ -6,7 +6,6 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import com.portable.storage.net.ServerNetworkingHandlers;
-import com.portable.storage.storage.StorageInventory;
 
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.item.BowItem;
@@ -37,48 +36,11 @@ public abstract class PlayerEntityProjectileMixin {
                 ServerPlayerEntity player = (ServerPlayerEntity) self;
                 var server = player.getServer();
                 if (server != null) {
-                    // 构建合并视图（旧版+新版）
-                    StorageInventory merged = ServerNetworkingHandlers.buildMergedSnapshot(player);
-                    
-                    // 优先查找普通箭
-                    int spectralIdx = -1;
-                    int normalIdx = -1;
-                    ItemStack matchedArrow = null;
-                    
-                    for (int i = 0; i < merged.getCapacity(); i++) {
-                        ItemStack disp = merged.getDisplayStack(i);
-                        if (!disp.isEmpty() && isArrow(disp) && merged.getCountByIndex(i) > 0) {
-                            if (disp.isOf(Items.ARROW)) {
-                                normalIdx = i;
-                                matchedArrow = disp;
-                                break; // 优先使用普通箭
-                            } else if (disp.isOf(Items.SPECTRAL_ARROW) && spectralIdx == -1) {
-                                spectralIdx = i;
-                                if (matchedArrow == null) {
-                                    matchedArrow = disp;
-                                }
-                            }
-                        }
-                    }
-                    
-                    if (matchedArrow == null) return; // 仓库也没有箭
-
-                    // 如果有普通箭，直接使用普通箭
-                    if (normalIdx >= 0) {
-                        ItemStack variant = merged.getDisplayStack(normalIdx).copy();
-                        variant.setCount(1);
-                        cir.setReturnValue(variant);
-                    } else if (spectralIdx >= 0) {
-                        // 没有普通箭但有光灵箭，使用光灵箭
-                        ItemStack variant = merged.getDisplayStack(spectralIdx).copy();
-                        variant.setCount(1);
-                        cir.setReturnValue(variant);
-                    } else {
-                        // 其他情况，返回与仓库中首个箭变体一致的 1 个箭
-                        ItemStack variant = merged.getDisplayStack(spectralIdx).copy();
-                        variant.setCount(1);
-                        cir.setReturnValue(variant);
-                    }
+                    // 按索引查询可用箭：优先普通箭，其次光灵箭，返回 1 支同变体的箭
+                    ItemStack variant = ServerNetworkingHandlers.findAvailableVariant(player, Items.ARROW);
+                    if (variant.isEmpty()) variant = ServerNetworkingHandlers.findAvailableVariant(player, Items.SPECTRAL_ARROW);
+                    if (variant.isEmpty()) return; // 仓库也没有箭
+                    cir.setReturnValue(variant);
                 }
             }
         }
@@ -95,48 +57,11 @@ public abstract class PlayerEntityProjectileMixin {
                 ServerPlayerEntity player = (ServerPlayerEntity) self;
                 var server = player.getServer();
                 if (server != null) {
-                    // 构建合并视图（旧版+新版）
-                    StorageInventory merged = ServerNetworkingHandlers.buildMergedSnapshot(player);
-                    
-                    // 优先查找普通箭
-                    int spectralIdx = -1;
-                    int normalIdx = -1;
-                    ItemStack matchedAmmo = null;
-                    
-                    for (int i = 0; i < merged.getCapacity(); i++) {
-                        ItemStack disp = merged.getDisplayStack(i);
-                        if (!disp.isEmpty() && isCrossbowAmmo(disp) && merged.getCountByIndex(i) > 0) {
-                            if (disp.isOf(Items.ARROW)) {
-                                normalIdx = i;
-                                matchedAmmo = disp;
-                                break; // 优先使用普通箭
-                            } else if (disp.isOf(Items.SPECTRAL_ARROW) && spectralIdx == -1) {
-                                spectralIdx = i;
-                                if (matchedAmmo == null) {
-                                    matchedAmmo = disp;
-                                }
-                            }
-                        }
-                    }
-                    
-                    if (matchedAmmo == null) return; // 仓库也没有弹药
-
-                    // 如果有普通箭，直接使用普通箭
-                    if (normalIdx >= 0) {
-                        ItemStack variant = merged.getDisplayStack(normalIdx).copy();
-                        variant.setCount(1);
-                        cir.setReturnValue(variant);
-                    } else if (spectralIdx >= 0) {
-                        // 没有普通箭但有光灵箭，使用光灵箭
-                        ItemStack variant = merged.getDisplayStack(spectralIdx).copy();
-                        variant.setCount(1);
-                        cir.setReturnValue(variant);
-                    } else {
-                        // 其他情况，返回与仓库中首个弹药变体一致的 1 个弹药
-                        ItemStack variant = merged.getDisplayStack(spectralIdx).copy();
-                        variant.setCount(1);
-                        cir.setReturnValue(variant);
-                    }
+                    // 按索引查询可用弹药：优先普通箭，其次光灵箭，返回 1 个同变体的弹药
+                    ItemStack variant = ServerNetworkingHandlers.findAvailableVariant(player, Items.ARROW);
+                    if (variant.isEmpty()) variant = ServerNetworkingHandlers.findAvailableVariant(player, Items.SPECTRAL_ARROW);
+                    if (variant.isEmpty()) return; // 仓库也没有弹药
+                    cir.setReturnValue(variant);
                 }
             }
         }
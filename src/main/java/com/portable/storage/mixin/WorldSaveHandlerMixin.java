@@ -0,0 +1,32 @@
+package com.portable.storage.mixin;
+
+import java.util.Optional;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+import com.portable.storage.newstore.StorageAvailability;
+
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.world.WorldSaveHandler;
+
+/**
+ * 原版保存/加载玩家数据文件时作废该玩家的旧版仓库索引（旧版仓库随玩家数据写入 "portable_storage"）
+ */
+@Mixin(WorldSaveHandler.class)
+public class WorldSaveHandlerMixin {
+
+    @Inject(method = "savePlayerData", at = @At("TAIL"))
+    private void portableStorage$invalidateOnSave(PlayerEntity player, CallbackInfo ci) {
+        StorageAvailability.invalidateLegacy(player.getUuid());
+    }
+
+    @Inject(method = "loadPlayerData", at = @At("TAIL"))
+    private void portableStorage$invalidateOnLoad(PlayerEntity player, CallbackInfoReturnable<Optional<NbtCompound>> cir) {
+        StorageAvailability.invalidateLegacy(player.getUuid());
+    }
+}
@@ -11,6 +11,9 @@ import com.portable.storage.net.payload.RequestOpenScreenC2SPayload;
 import com.portable.storage.net.payload.ScrollC2SPayload;
 import com.portable.storage.net.payload.StorageActionC2SPayload;
 import com.portable.storage.net.payload.StorageSyncS2CPayload;
+import com.portable.storage.net.payload.StorageTemplateRequestC2SPayload;
+import com.portable.storage.net.payload.StorageTemplatesS2CPayload;
+import com.portable.storage.net.payload.TemplateCacheKeysC2SPayload;
 import com.portable.storage.net.payload.SyncControlC2SPayload;
 import com.portable.storage.net.payload.UpgradeSlotClickC2SPayload;
 import com.portable.storage.net.payload.XpBottleClickC2SPayload;
@@ -41,8 +44,11 @@ public final class NetworkChannels {
 		PayloadTypeRegistry.playC2S().register(RequestOpenScreenC2SPayload.ID, RequestOpenScreenC2SPayload.CODEC);
 		PayloadTypeRegistry.playC2S().register(SyncFilterRulesC2SPayload.ID, SyncFilterRulesC2SPayload.CODEC);
 		PayloadTypeRegistry.playC2S().register(SyncBarrelFilterRulesC2SPayload.ID, SyncBarrelFilterRulesC2SPayload.CODEC);
+		PayloadTypeRegistry.playC2S().register(StorageTemplateRequestC2SPayload.ID, StorageTemplateRequestC2SPayload.CODEC);
+		PayloadTypeRegistry.playC2S().register(TemplateCacheKeysC2SPayload.ID, TemplateCacheKeysC2SPayload.CODEC);
 		PayloadTypeRegistry.playS2C().register(StorageSyncS2CPayload.ID, StorageSyncS2CPayload.CODEC);
 		PayloadTypeRegistry.playS2C().register(IncrementalStorageSyncS2CPayload.ID, IncrementalStorageSyncS2CPayload.CODEC);
+		PayloadTypeRegistry.playS2C().register(StorageTemplatesS2CPayload.ID, StorageTemplatesS2CPayload.CODEC);
 		PayloadTypeRegistry.playS2C().register(OverlayCraftingSyncS2CPayload.ID, OverlayCraftingSyncS2CPayload.PACKET_CODEC);
 		PayloadTypeRegistry.playS2C().register(ConfigSyncS2CPayload.ID, ConfigSyncS2CPayload.CODEC);
 		PayloadTypeRegistry.playS2C().register(RequestFilterRulesSyncS2CPayload.ID, RequestFilterRulesSyncS2CPayload.CODEC);
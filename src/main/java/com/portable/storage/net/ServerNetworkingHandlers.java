@@ -9,27 +9,35 @@ import com.portable.storage.net.payload.CraftingOverlayActionC2SPayload;
 import com.portable.storage.net.payload.FluidClickC2SPayload;
 import com.portable.storage.net.payload.FluidConversionC2SPayload;
 import com.portable.storage.net.payload.FluidSlotClickC2SPayload;
-import com.portable.storage.net.payload.IncrementalStorageSyncS2CPayload;
 import com.portable.storage.net.payload.OverlayCraftingSyncS2CPayload;
 import com.portable.storage.net.payload.RequestOpenScreenC2SPayload;
 import com.portable.storage.net.payload.StorageActionC2SPayload;
+import com.portable.storage.net.payload.StorageSyncCodec;
 import com.portable.storage.net.payload.StorageSyncS2CPayload;
+import com.portable.storage.net.payload.StorageTemplateRequestC2SPayload;
+import com.portable.storage.net.payload.StorageTemplatesS2CPayload;
+import com.portable.storage.net.payload.TemplateCacheKeysC2SPayload;
 import com.portable.storage.net.payload.SyncControlC2SPayload;
 import com.portable.storage.net.payload.XpBottleClickC2SPayload;
 import com.portable.storage.net.payload.XpBottleConversionC2SPayload;
 import com.portable.storage.net.payload.XpBottleMaintenanceToggleC2SPayload;
 import com.portable.storage.net.payload.SyncFilterRulesC2SPayload;
 import com.portable.storage.net.payload.SyncBarrelFilterRulesC2SPayload;
+import com.portable.storage.newstore.ItemKey;
 import com.portable.storage.newstore.NewStoreService;
 import com.portable.storage.player.PlayerStorageAccess;
 import com.portable.storage.player.PlayerStorageService;
+import com.portable.storage.player.StorageMembershipGraph;
 import com.portable.storage.screen.PortableCraftingScreenHandler;
 import com.portable.storage.storage.StorageInventory;
 import com.portable.storage.storage.StorageType;
 import com.portable.storage.storage.UpgradeInventory;
 import com.portable.storage.storage.AutoEatMode;
+import com.portable.storage.sync.ChangeAccumulator;
 import com.portable.storage.sync.PlayerViewState;
+import com.portable.storage.sync.StateChannelVersions;
 import com.portable.storage.sync.StorageSyncManager;
+import com.portable.storage.sync.ViewSubscriptions;
 import com.portable.storage.world.SpaceRiftManager;
 
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
@@ -96,24 +104,44 @@ public final class ServerNetworkingHandlers {
                         sendSync(player);
                     }
                 } else if (payload.op() == SyncControlC2SPayload.Op.ACK) {
-                    StorageSyncManager.handleSyncAck(player.getUuid(), payload.syncId(), payload.success());
+                    StorageSyncManager.handleSyncAck(player, payload.sessionId(), payload.syncId(), payload.success());
                 }
 			});
 		});
 
+		// 窗口化同步：按需下发完整物品模板
+		ServerPlayNetworking.registerGlobalReceiver(StorageTemplateRequestC2SPayload.ID, (payload, context) -> {
+			context.server().execute(() -> handleTemplateRequest((ServerPlayerEntity) context.player(), payload));
+		});
+
+		// 客户端上报已缓存的模板键，之后的定义对这些键只发送键
+		ServerPlayNetworking.registerGlobalReceiver(TemplateCacheKeysC2SPayload.ID, (payload, context) -> {
+			java.util.UUID playerId = context.player().getUuid();
+			if (!StorageSyncManager.acceptHeldReport(playerId)) return;
+			context.server().execute(() -> StorageSyncManager.markHeld(playerId, payload.keys()));
+		});
+
 		// 新统一动作包：服务端集中处理
 		ServerPlayNetworking.registerGlobalReceiver(StorageActionC2SPayload.ID, (payload, context) -> {
 			final StorageActionC2SPayload p = payload;
 			context.server().execute(() -> {
 				ServerPlayerEntity player = (ServerPlayerEntity) context.player();
-				if (checkAndRejectIfNotEnabled(player)) return;
-				switch (p.target()) {
-					case STORAGE -> handleStorageAction(player, p);
-					case UPGRADE -> handleUpgradeAction(player, p);
-					case FLUID -> handleFluidAction(player, p);
-					case XP_BOTTLE -> handleXpBottleAction(player, p);
-					case SLOT -> handleSlotDepositAction(player, p);
-					case TRASH -> handleTrashAction(player, p);
+				// 客户端会先在本地切换升级槽禁用状态：作废 UPGRADE 通道，处理结束后若未下发则补发一次，
+				// 被拒绝或未生效的操作也会把客户端纠正回服务端状态
+				boolean upgradeTarget = p.target() == StorageActionC2SPayload.Target.UPGRADE;
+				if (upgradeTarget) StateChannelVersions.invalidate(player.getUuid(), ConfigSyncS2CPayload.Topic.UPGRADE);
+				try {
+					if (checkAndRejectIfNotEnabled(player)) return;
+					switch (p.target()) {
+						case STORAGE -> handleStorageAction(player, p);
+						case UPGRADE -> handleUpgradeAction(player, p);
+						case FLUID -> handleFluidAction(player, p);
+						case XP_BOTTLE -> handleXpBottleAction(player, p);
+						case SLOT -> handleSlotDepositAction(player, p);
+						case TRASH -> handleTrashAction(player, p);
+					}
+				} finally {
+					if (upgradeTarget) sendUpgradeChannel(player);
 				}
 			});
 		});
@@ -469,24 +497,18 @@ public final class ServerNetworkingHandlers {
 				data.putBoolean("chestMinecart", config.isChestMinecart());
 				data.putBoolean("chestBoat", config.isChestBoat());
 				data.putBoolean("bambooChestRaft", config.isBambooChestRaft());
-				ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-					ConfigSyncS2CPayload.Topic.DISPLAY_CONFIG, data
-				));
+				sendStateChannel(player, ConfigSyncS2CPayload.Topic.DISPLAY_CONFIG, data);
 				
 				// 发送裂隙配置同步
 				NbtCompound riftData = new NbtCompound();
 				riftData.putString("riftUpgradeItem", config.getRiftUpgradeItem());
 				riftData.putInt("riftSize", config.getRiftSize());
-				ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-					ConfigSyncS2CPayload.Topic.RIFT_CONFIG, riftData
-				));
+				sendStateChannel(player, ConfigSyncS2CPayload.Topic.RIFT_CONFIG, riftData);
 				
 				// 发送虚拟合成配置同步
 				NbtCompound virtualCraftingData = new NbtCompound();
 				virtualCraftingData.putBoolean("enableVirtualCrafting", config.isEnableVirtualCrafting());
-				ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-					ConfigSyncS2CPayload.Topic.VIRTUAL_CRAFTING_CONFIG, virtualCraftingData
-				));
+				sendStateChannel(player, ConfigSyncS2CPayload.Topic.VIRTUAL_CRAFTING_CONFIG, virtualCraftingData);
 			}
 		});
 
@@ -778,22 +800,6 @@ public final class ServerNetworkingHandlers {
 	}
 
 
-	private static java.util.UUID getOwnerUuidFromItem(net.minecraft.item.ItemStack stack) {
-		try {
-			net.minecraft.component.type.NbtComponent comp = stack.get(net.minecraft.component.DataComponentTypes.CUSTOM_DATA);
-			if (comp == null) return null;
-			net.minecraft.nbt.NbtCompound nbt = comp.copyNbt();
-			if (nbt.contains("ps_owner_uuid_most") && nbt.contains("ps_owner_uuid_least")) {
-				return new java.util.UUID(nbt.getLong("ps_owner_uuid_most"), nbt.getLong("ps_owner_uuid_least"));
-			}
-			if (nbt.contains("ps_owner_uuid")) {
-				return nbt.getUuid("ps_owner_uuid");
-			}
-		} catch (Throwable ignored) {}
-		return null;
-	}
-
-
     private static void insertIntoPlayerInventory(ServerPlayerEntity player, ItemStack stack) {
 		Inventory inv = player.getInventory();
 		if (stack.isEmpty()) return;
@@ -860,17 +866,20 @@ public final class ServerNetworkingHandlers {
     }
 
     public static void sendSync(ServerPlayerEntity player) {
-        StorageInventory merged = buildMergedSnapshot(player);
-        NbtCompound nbt = new NbtCompound();
-        // 重置玩家会话并写入新的 sessionId，客户端据此重置 expectedSeq
-        StorageSyncManager.startNewSession(player.getUuid());
-        long sid = StorageSyncManager.getOrStartSession(player.getUuid());
-        nbt.putLong("sessionId", sid);
-        // 使用玩家注册表上下文，确保附魔等基于注册表的数据正确序列化
-        merged.writeNbt(nbt, player.getRegistryManager());
-        ServerPlayNetworking.send(player, new StorageSyncS2CPayload(nbt));
-        // 刷新服务器端"上次快照"，用于后续生成真实 diff
-        StorageSyncManager.setLastSnapshot(player.getUuid(), toSnapshotMap(merged));
+        boolean force = false;
+        try {
+            force = ServerConfig.getInstance().isForceStateResync();
+        } catch (Throwable ignored) {}
+        sendSync(player, force);
+    }
+
+    /**
+     * 全量同步仓库，并下发升级、启用状态与各项配置通道；
+     * forceStateChannels 为 false 时内容未变化的通道不重发（见 {@link StateChannelVersions}）
+     */
+    public static void sendSync(ServerPlayerEntity player, boolean forceStateChannels) {
+        if (forceStateChannels) StateChannelVersions.invalidate(player.getUuid());
+        sendStorageSync(player);
         sendUpgradeSync(player);
         sendEnablementSync(player);
         sendInfiniteFluidConfigSync(player);
@@ -879,120 +888,202 @@ public final class ServerNetworkingHandlers {
         sendContainerDisplayConfigSync(player);
     }
 
-    private static void sendIncrementalAll(ServerPlayerEntity player) {
-        // 会话不重置，仅生成下一序号
+    /**
+     * 只发送仓库全量同步（开启新会话），不附带升级与各项配置
+     */
+    public static void sendStorageSync(ServerPlayerEntity player) {
+        java.util.Set<java.util.UUID> sources = getSharedUuids(player);
+        StorageInventory merged = buildMergedSnapshot(player, sources);
+        // 重置玩家会话（同时清空键编号表），客户端据此重置 expectedSeq 与编号表
+        StorageSyncManager.startNewSession(player.getUuid());
         long sid = StorageSyncManager.getOrStartSession(player.getUuid());
-        int seq = StorageSyncManager.nextSeq(player.getUuid());
-        StorageInventory cur = buildMergedSnapshot(player);
-        NbtCompound diff = buildRealDiffFromSnapshots(player, cur);
-        // 分包：按配置上限切分 upserts+removes
-        int maxEntries = 512;
+        java.util.Map<ItemKey, StorageSyncManager.SnapshotEntry> snapshot = new java.util.HashMap<>();
+        int threshold = 0;
         try {
-            maxEntries = Math.max(1, ServerConfig.getInstance().getIncrementalSyncMaxEntries());
+            threshold = ServerConfig.getInstance().getWindowedSyncThreshold();
         } catch (Throwable ignored) {}
-        java.util.List<NbtCompound> chunks = splitDiff(diff, maxEntries);
-        for (NbtCompound part : chunks) {
-            ServerPlayNetworking.send(player, new IncrementalStorageSyncS2CPayload(sid, seq, part));
-            seq = StorageSyncManager.nextSeq(player.getUuid());
+        boolean windowed = threshold > 0 && merged.getCapacity() > threshold;
+        ServerPlayNetworking.send(player, encodeFullSync(merged, sid, StorageSyncManager.getDictionary(player.getUuid()), snapshot, windowed));
+        // 刷新服务器端"上次快照"，用于后续生成真实 diff
+        StorageSyncManager.setLastSnapshot(player.getUuid(), snapshot);
+        ChangeAccumulator.resetBaseline(player.getUuid(), sources, legacyStamps(player, sources));
+        ViewSubscriptions.update(player.getUuid(), sources);
+    }
+
+    /**
+     * 按视图顺序编码全量同步：每个条目分配编号并定义模板，数量作为 delta 下发。
+     * windowed 时只发送轻量定义，完整模板等客户端滚动到对应行时再请求。
+     * snapshot 不为 null 时同时填入"上次快照"，避免再次遍历与计算键。
+     */
+    public static StorageSyncS2CPayload encodeFullSync(StorageInventory merged, long sessionId, StorageSyncManager.KeyDictionary dictionary,
+                                                       java.util.Map<ItemKey, StorageSyncManager.SnapshotEntry> snapshot, boolean windowed) {
+        java.util.List<StorageSyncCodec.Define> defines = new java.util.ArrayList<>();
+        java.util.List<StorageSyncCodec.Stub> stubs = new java.util.ArrayList<>();
+        java.util.List<StorageSyncCodec.Update> entries = new java.util.ArrayList<>(merged.getCapacity());
+        for (int i = 0; i < merged.getCapacity(); i++) {
+            ItemStack disp = merged.getDisplayStack(i);
+            long cnt = merged.getCountByIndex(i);
+            if (disp.isEmpty() || cnt <= 0) continue;
+            ItemKey key = makeKeyForStack(disp);
+            if (key == null) continue;
+            long ts = merged.getTimestampByIndex(i);
+            int id = windowed ? dictionary.stub(key, disp, stubs) : dictionary.define(key, disp, defines);
+            entries.add(new StorageSyncCodec.Update(id, cnt, ts));
+            if (snapshot != null) snapshot.put(key, new StorageSyncManager.SnapshotEntry(cnt, ts));
+        }
+        return new StorageSyncS2CPayload(sessionId, defines, stubs, entries);
+    }
+
+    /**
+     * 窗口化同步：下发客户端请求的完整模板（仅限当前会话中以轻量定义发送过的编号）
+     */
+    private static void handleTemplateRequest(ServerPlayerEntity player, StorageTemplateRequestC2SPayload payload) {
+        if (!StorageSyncManager.isCurrentSession(player.getUuid(), payload.sessionId())) return;
+        StorageSyncManager.KeyDictionary dictionary = StorageSyncManager.getDictionary(player.getUuid());
+        java.util.List<StorageSyncCodec.Define> defines = new java.util.ArrayList<>();
+        for (int id : payload.ids()) {
+            StorageSyncCodec.Define define = dictionary.takePendingTemplate(id);
+            if (define != null) defines.add(define);
+        }
+        if (!defines.isEmpty()) {
+            ServerPlayNetworking.send(player, new StorageTemplatesS2CPayload(payload.sessionId(), defines));
         }
+    }
+
+    /**
+     * 待下发的单键变化：template 为 null 仅用于客户端已知编号的移除
+     */
+    private record SyncChange(ItemKey key, ItemStack template, long delta, long ts) {}
+
+    private static void sendIncrementalAll(ServerPlayerEntity player, java.util.Set<java.util.UUID> sources) {
+        StorageInventory cur = buildMergedSnapshot(player, sources);
+        java.util.Map<ItemKey, StorageSyncManager.SnapshotEntry> snapshot = new java.util.HashMap<>();
+        java.util.List<SyncChange> diff = buildRealDiffFromSnapshots(player, cur, snapshot);
+        sendDiffChunks(player, diff);
         // 更新快照
-        StorageSyncManager.setLastSnapshot(player.getUuid(), toSnapshotMap(cur));
+        StorageSyncManager.setLastSnapshot(player.getUuid(), snapshot);
+        ChangeAccumulator.resetBaseline(player.getUuid(), sources, legacyStamps(player, sources));
+    }
+
+    /**
+     * 各来源旧版仓库索引的身份，供积攒器发现不经事件日志的旧版仓库变化
+     */
+    private static java.util.Map<java.util.UUID, Object> legacyStamps(ServerPlayerEntity player, java.util.Set<java.util.UUID> sources) {
+        java.util.Map<java.util.UUID, Object> stamps = new java.util.HashMap<>();
+        for (java.util.UUID source : sources) {
+            stamps.put(source, com.portable.storage.newstore.StorageAvailability.legacyStamp(player.getServer(), source));
+        }
+        return stamps;
+    }
+
+    /**
+     * 由积攒器中的按键变更直接更新"上次快照"并生成 diff，不重建合并视图。
+     * 返回 false 表示无法增量描述（缺少模板或与快照不一致），调用方应回退为快照 diff。
+     */
+    private static boolean sendEventDiff(ServerPlayerEntity player, java.util.Map<ItemKey, ChangeAccumulator.Change> changes) {
+        var server = player.getServer();
+        java.util.Map<ItemKey, StorageSyncManager.SnapshotEntry> last = StorageSyncManager.getLastSnapshot(player.getUuid());
+        if (server == null || last == null) return false;
+
+        // 先在副本上计算，全部成功后再替换快照，避免半途回退时快照已被改动
+        java.util.Map<ItemKey, StorageSyncManager.SnapshotEntry> next = new java.util.HashMap<>(last);
+        java.util.List<SyncChange> diff = new java.util.ArrayList<>(changes.size());
+        for (var en : changes.entrySet()) {
+            ChangeAccumulator.Change c = en.getValue();
+            // 增量合并为 0 的键仍可能更新了时间戳，客户端已有该条目时照常下发
+            ItemStack template = com.portable.storage.newstore.StorageMemoryCache.getOrLoadTemplate(server, en.getKey());
+            if (template == null || template.isEmpty()) return false;
+            // 客户端以展示物品的键为索引，与快照 diff 保持一致
+            ItemKey viewKey = makeKeyForStack(template);
+            if (viewKey == null) return false;
+            StorageSyncManager.SnapshotEntry pre = next.get(viewKey);
+            if (pre == null && c.delta == 0) continue;
+            long cnt = (pre != null ? pre.count : 0L) + c.delta;
+            if (cnt < 0 || (pre == null && c.delta < 0)) return false;
+            if (cnt == 0) {
+                next.remove(viewKey);
+            } else {
+                next.put(viewKey, new StorageSyncManager.SnapshotEntry(cnt, c.ts));
+            }
+            diff.add(new SyncChange(viewKey, template, c.delta, c.ts));
+        }
+        sendDiffChunks(player, diff);
+        StorageSyncManager.setLastSnapshot(player.getUuid(), next);
+        return true;
     }
 
-    private static NbtCompound buildRealDiffFromSnapshots(ServerPlayerEntity player, StorageInventory current) {
-        NbtCompound diff = new NbtCompound();
-        net.minecraft.nbt.NbtList upserts = new net.minecraft.nbt.NbtList();
-        net.minecraft.nbt.NbtList removes = new net.minecraft.nbt.NbtList();
-        java.util.Map<String, StorageSyncManager.SnapshotEntry> last = StorageSyncManager.getLastSnapshot(player.getUuid());
-        java.util.Set<String> visited = new java.util.HashSet<>();
+    private static void sendDiffChunks(ServerPlayerEntity player, java.util.List<SyncChange> diff) {
+        if (diff.isEmpty()) return; // 无变化不发送，也不占用序号
+        // 分包、序号与发送窗口由 StorageSyncManager 负责；新编号的定义与首次使用它的更新放在同一包内
+        StorageSyncManager.KeyDictionary dictionary = StorageSyncManager.getDictionary(player.getUuid());
+        java.util.List<StorageSyncCodec.Define> defines = new java.util.ArrayList<>();
+        java.util.List<StorageSyncCodec.Update> updates = new java.util.ArrayList<>();
+        for (SyncChange ch : diff) {
+            int id = dictionary.lookup(ch.key());
+            if (id < 0) {
+                // 客户端从未见过的键：移除无需下发，新增则先定义
+                if (ch.template() == null || ch.delta() <= 0) continue;
+                id = dictionary.define(ch.key(), ch.template(), defines);
+            }
+            updates.add(new StorageSyncCodec.Update(id, ch.delta(), ch.ts()));
+        }
+        StorageSyncManager.submit(player, defines, updates);
+    }
+
+    /**
+     * 比较当前视图与上次快照，生成数量增量；同时把当前视图写入 snapshot 作为新的快照
+     */
+    private static java.util.List<SyncChange> buildRealDiffFromSnapshots(ServerPlayerEntity player, StorageInventory current,
+                                                                          java.util.Map<ItemKey, StorageSyncManager.SnapshotEntry> snapshot) {
+        java.util.List<SyncChange> diff = new java.util.ArrayList<>();
+        java.util.Map<ItemKey, StorageSyncManager.SnapshotEntry> last = StorageSyncManager.getLastSnapshot(player.getUuid());
         // upsert：当前存在且与上次不同
         for (int i = 0; i < current.getCapacity(); i++) {
             ItemStack disp = current.getDisplayStack(i);
             long cnt = current.getCountByIndex(i);
             if (disp.isEmpty() || cnt <= 0) continue;
-            String key = makeKeyForStack(disp);
+            ItemKey key = makeKeyForStack(disp);
+            if (key == null) continue;
             long ts = current.getTimestampByIndex(i);
             StorageSyncManager.SnapshotEntry pre = (last != null) ? last.get(key) : null;
             if (pre == null || pre.count != cnt || pre.timestamp != ts) {
-                NbtCompound e = new NbtCompound();
-                e.putString("key", key);
-                e.putLong("count", cnt);
-                e.putLong("ts", ts);
-                final var lookup = player.getRegistryManager();
-                final var ops = (lookup != null)
-                    ? net.minecraft.registry.RegistryOps.of(net.minecraft.nbt.NbtOps.INSTANCE, lookup)
-                    : net.minecraft.nbt.NbtOps.INSTANCE;
-                var encoded = ItemStack.CODEC.encodeStart(ops, disp.copy());
-                encoded.result().ifPresent(n -> e.put("display", n));
-                upserts.add(e);
+                diff.add(new SyncChange(key, disp, cnt - (pre != null ? pre.count : 0L), ts));
             }
-            visited.add(key);
+            snapshot.put(key, new StorageSyncManager.SnapshotEntry(cnt, ts));
         }
         // removes：上次有但这次没有
         if (last != null) {
             for (var entry : last.entrySet()) {
-                if (!visited.contains(entry.getKey())) {
-                    removes.add(net.minecraft.nbt.NbtString.of(entry.getKey()));
+                if (!snapshot.containsKey(entry.getKey())) {
+                    diff.add(new SyncChange(entry.getKey(), null, -entry.getValue().count, entry.getValue().timestamp));
                 }
             }
         }
-        if (!upserts.isEmpty()) diff.put("upserts", upserts);
-        if (!removes.isEmpty()) diff.put("removes", removes);
         return diff;
     }
 
-    private static java.util.List<NbtCompound> splitDiff(NbtCompound diff, int maxEntries) {
-        java.util.ArrayList<NbtCompound> parts = new java.util.ArrayList<>();
-        net.minecraft.nbt.NbtList up = diff.contains("upserts", net.minecraft.nbt.NbtElement.LIST_TYPE) ? diff.getList("upserts", net.minecraft.nbt.NbtElement.COMPOUND_TYPE) : new net.minecraft.nbt.NbtList();
-        net.minecraft.nbt.NbtList rm = diff.contains("removes", net.minecraft.nbt.NbtElement.LIST_TYPE) ? diff.getList("removes", net.minecraft.nbt.NbtElement.STRING_TYPE) : new net.minecraft.nbt.NbtList();
-        int ui = 0, ri = 0;
-        while (ui < up.size() || ri < rm.size()) {
-            NbtCompound part = new NbtCompound();
-            net.minecraft.nbt.NbtList upPart = new net.minecraft.nbt.NbtList();
-            net.minecraft.nbt.NbtList rmPart = new net.minecraft.nbt.NbtList();
-            int count = 0;
-            while (ui < up.size() && count < maxEntries) { upPart.add(up.get(ui++)); count++; }
-            while (ri < rm.size() && count < maxEntries) { rmPart.add(rm.get(ri++)); count++; }
-            if (!upPart.isEmpty()) part.put("upserts", upPart);
-            if (!rmPart.isEmpty()) part.put("removes", rmPart);
-            parts.add(part);
-        }
-        if (parts.isEmpty()) {
-            parts.add(new NbtCompound());
-        }
-        return parts;
-    }
-
-    private static java.util.Map<String, StorageSyncManager.SnapshotEntry> toSnapshotMap(StorageInventory inv) {
-        java.util.Map<String, StorageSyncManager.SnapshotEntry> map = new java.util.HashMap<>();
-        for (int i = 0; i < inv.getCapacity(); i++) {
-            ItemStack disp = inv.getDisplayStack(i);
-            long cnt = inv.getCountByIndex(i);
-            if (disp.isEmpty() || cnt <= 0) continue;
-            String key = makeKeyForStack(disp);
-            long ts = inv.getTimestampByIndex(i);
-            map.put(key, new StorageSyncManager.SnapshotEntry(cnt, ts));
-        }
-        return map;
-    }
-
-	private static String makeKeyForStack(ItemStack s) {
+	private static ItemKey makeKeyForStack(ItemStack s) {
 		// 直接使用 ItemKeyHasher 生成键，确保与新版储存系统完全一致
 		return com.portable.storage.newstore.ItemKeyHasher.hash(s, null);
 	}
 	
 	/**
-	 * 发送增量同步（初版：全量式 upsert，以打通协议与会话/序号）
+	 * 发送增量同步：始终重建合并视图并与上次快照比较
 	 */
 	public static void sendIncrementalSync(ServerPlayerEntity player) {
-		sendIncrementalAll(player);
+		sendIncrementalAll(player, getSharedUuids(player));
 	}
 	
 	/**
-	 * 发送按需增量同步（初版：全量式 upsert）
+	 * 发送按需增量同步：优先只处理积攒器中自上次同步以来被触及的键；
+	 * 无变更时不发送，无法增量描述时回退为快照 diff。
 	 */
 	public static void sendIncrementalSyncOnDemand(ServerPlayerEntity player) {
-		sendIncrementalAll(player);
+		java.util.Set<java.util.UUID> sources = getSharedUuids(player);
+		ViewSubscriptions.update(player.getUuid(), sources);
+		java.util.Map<ItemKey, ChangeAccumulator.Change> changes = ChangeAccumulator.collect(player.getUuid(), sources, legacyStamps(player, sources));
+		if (changes != null && sendEventDiff(player, changes)) return;
+		sendIncrementalAll(player, sources);
 	}
 
 	/**
@@ -1021,33 +1112,39 @@ public final class ServerNetworkingHandlers {
 		player.getWorld().spawnEntity(itemEntity);
 	}
 
-	public static void sendUpgradeSync(ServerPlayerEntity player) {
+	/**
+	 * 下发状态通道：内容与上次相同则跳过，否则附带递增的通道版本号
+	 */
+	private static void sendStateChannel(ServerPlayerEntity player, ConfigSyncS2CPayload.Topic topic, NbtCompound data) {
+		int version = StateChannelVersions.nextVersionIfChanged(player.getUuid(), topic, data);
+		if (version < 0) return;
+		NbtCompound out = data.copy();
+		out.putInt("stateVersion", version);
+		ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(topic, out));
+	}
+
+	private static void sendUpgradeChannel(ServerPlayerEntity player) {
 		UpgradeInventory up = PlayerStorageService.getUpgradeInventory(player);
-		NbtCompound nbt = new NbtCompound();
-		up.writeNbt(nbt);
-		{
-			NbtCompound data = nbt;
-			ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-				ConfigSyncS2CPayload.Topic.UPGRADE, data
-			));
-		}
+		NbtCompound data = new NbtCompound();
+		up.writeNbt(data);
+		sendStateChannel(player, ConfigSyncS2CPayload.Topic.UPGRADE, data);
+	}
+
+	public static void sendUpgradeSync(ServerPlayerEntity player) {
+		sendUpgradeChannel(player);
 		// 同步XP步长
 		{
 			int xpStep = xpStepIndexByPlayer.getOrDefault(player.getUuid(), 0);
 			NbtCompound data = new NbtCompound();
 			data.putInt("stepIndex", xpStep);
-			ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-				ConfigSyncS2CPayload.Topic.XP_STEP, data
-			));
+			sendStateChannel(player, ConfigSyncS2CPayload.Topic.XP_STEP, data);
 		}
 		// 同步自动进食模式
 		{
 			AutoEatMode mode = autoEatModeByPlayer.getOrDefault(player.getUuid(), AutoEatMode.DISABLED);
 			NbtCompound data = new NbtCompound();
 			data.putInt("modeIndex", mode.getIndex());
-			ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-				ConfigSyncS2CPayload.Topic.AUTO_EAT_MODE, data
-			));
+			sendStateChannel(player, ConfigSyncS2CPayload.Topic.AUTO_EAT_MODE, data);
 		}
 	}
 	
@@ -1058,9 +1155,7 @@ public final class ServerNetworkingHandlers {
 		NbtCompound data = new NbtCompound();
 		data.putBoolean("enabled", enabled);
 		data.putString("storageType", storageType.getKey());
-		ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-			ConfigSyncS2CPayload.Topic.STORAGE_ENABLEMENT, data
-		));
+		sendStateChannel(player, ConfigSyncS2CPayload.Topic.STORAGE_ENABLEMENT, data);
 	}
 	
 	public static void sendInfiniteFluidConfigSync(ServerPlayerEntity player) {
@@ -1070,9 +1165,7 @@ public final class ServerNetworkingHandlers {
 		data.putBoolean("enableInfiniteWater", config.isEnableInfiniteWater());
 		data.putInt("infiniteLavaThreshold", config.getInfiniteLavaThreshold());
 		data.putInt("infiniteWaterThreshold", config.getInfiniteWaterThreshold());
-		ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-			ConfigSyncS2CPayload.Topic.INFINITE_FLUID_CONFIG, data
-		));
+		sendStateChannel(player, ConfigSyncS2CPayload.Topic.INFINITE_FLUID_CONFIG, data);
 	}
 	
 	public static void sendRiftConfigSync(ServerPlayerEntity player) {
@@ -1080,18 +1173,14 @@ public final class ServerNetworkingHandlers {
 		NbtCompound data = new NbtCompound();
 		data.putString("riftUpgradeItem", config.getRiftUpgradeItem());
 		data.putInt("riftSize", config.getRiftSize());
-		ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-			ConfigSyncS2CPayload.Topic.RIFT_CONFIG, data
-		));
+		sendStateChannel(player, ConfigSyncS2CPayload.Topic.RIFT_CONFIG, data);
 	}
 	
 	public static void sendVirtualCraftingConfigSync(ServerPlayerEntity player) {
 		ServerConfig config = ServerConfig.getInstance();
 		NbtCompound data = new NbtCompound();
 		data.putBoolean("enableVirtualCrafting", config.isEnableVirtualCrafting());
-		ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-			ConfigSyncS2CPayload.Topic.VIRTUAL_CRAFTING_CONFIG, data
-		));
+		sendStateChannel(player, ConfigSyncS2CPayload.Topic.VIRTUAL_CRAFTING_CONFIG, data);
 	}
 	
 	public static void sendContainerDisplayConfigSync(ServerPlayerEntity player) {
@@ -1122,9 +1211,7 @@ public final class ServerNetworkingHandlers {
 		data.putBoolean("chestMinecart", config.isChestMinecart());
 		data.putBoolean("chestBoat", config.isChestBoat());
 		data.putBoolean("bambooChestRaft", config.isBambooChestRaft());
-		ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-			ConfigSyncS2CPayload.Topic.DISPLAY_CONFIG, data
-		));
+		sendStateChannel(player, ConfigSyncS2CPayload.Topic.DISPLAY_CONFIG, data);
 	}
 
     // ===== 统一动作处理 =====
@@ -1168,9 +1255,7 @@ public final class ServerNetworkingHandlers {
                 player.sendMessage(net.minecraft.text.Text.translatable(PortableStorage.MOD_ID + ".exp_bottle.step", step), true);
                 net.minecraft.nbt.NbtCompound data = new net.minecraft.nbt.NbtCompound();
                 data.putInt("stepIndex", idx);
-                ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-                    ConfigSyncS2CPayload.Topic.XP_STEP, data
-                ));
+                sendStateChannel(player, ConfigSyncS2CPayload.Topic.XP_STEP, data);
                 return;
             }
             if (slot == 9 && !upgrades.isSlotDisabled(9, player) && !upgrades.getStack(9).isEmpty()) {
@@ -1189,9 +1274,7 @@ public final class ServerNetworkingHandlers {
                 // 同步模式到客户端
                 net.minecraft.nbt.NbtCompound data = new net.minecraft.nbt.NbtCompound();
                 data.putInt("modeIndex", nextMode.getIndex());
-                ServerPlayNetworking.send(player, new ConfigSyncS2CPayload(
-                    ConfigSyncS2CPayload.Topic.AUTO_EAT_MODE, data
-                ));
+                sendStateChannel(player, ConfigSyncS2CPayload.Topic.AUTO_EAT_MODE, data);
                 return;
             }
             // 其他槽位右键：切换禁用状态（包括扩展槽位5、8）
@@ -1706,65 +1789,23 @@ public final class ServerNetworkingHandlers {
         sendSync(player);
     }
     public static StorageInventory buildMergedSnapshot(ServerPlayerEntity viewer) {
+        // 获取共享的玩家UUID集合
+        return buildMergedSnapshot(viewer, getSharedUuids(viewer));
+    }
+
+    private static StorageInventory buildMergedSnapshot(ServerPlayerEntity viewer, java.util.Set<java.util.UUID> sharedUuids) {
         var server = viewer.getServer();
         if (server == null) return new StorageInventory(0);
         
-        // 获取共享的玩家UUID集合
-        java.util.Set<java.util.UUID> sharedUuids = getSharedUuids(viewer);
-        
         // 使用新版存储服务构建共享视图
         return NewStoreService.buildSharedView(server, viewer.getUuid(), sharedUuids);
     }
     
     /**
-     * 获取共享仓库的玩家UUID集合
+     * 获取共享仓库的玩家UUID集合（来自成员关系图，只读）
      */
     private static java.util.Set<java.util.UUID> getSharedUuids(ServerPlayerEntity viewer) {
-        java.util.Set<java.util.UUID> sharedUuids = new java.util.LinkedHashSet<>();
-        sharedUuids.add(viewer.getUuid());
-        
-        // 统计"我所依附的根拥有者集合"
-        java.util.LinkedHashSet<java.util.UUID> rootOwners = new java.util.LinkedHashSet<>();
-        UpgradeInventory upgrades = PlayerStorageService.getUpgradeInventory(viewer);
-        for (int i = 0; i < upgrades.getSlotCount(); i++) {
-            ItemStack st = upgrades.getStack(i);
-            if (!st.isEmpty() && st.getItem() == net.minecraft.item.Items.BARREL) {
-                java.util.UUID owner = getOwnerUuidFromItem(st);
-                if (owner != null && !owner.equals(viewer.getUuid())) {
-                    rootOwners.add(owner);
-                }
-            }
-        }
-        
-        // 如果未依附任何人，则自己就是根拥有者之一
-        if (rootOwners.isEmpty()) {
-            rootOwners.add(viewer.getUuid());
-        }
-        
-        // 添加所有根拥有者
-        sharedUuids.addAll(rootOwners);
-        
-        // 添加所有"同依附该根拥有者"的玩家
-        var players = viewer.server.getPlayerManager().getPlayerList();
-        for (ServerPlayerEntity p : players) {
-            UpgradeInventory up = PlayerStorageService.getUpgradeInventory(p);
-            boolean usesRoot = false;
-            for (int i = 0; i < up.getSlotCount(); i++) {
-                ItemStack st = up.getStack(i);
-                if (!st.isEmpty() && st.getItem() == net.minecraft.item.Items.BARREL) {
-                    java.util.UUID owner = getOwnerUuidFromItem(st);
-                    if (owner != null && rootOwners.contains(owner)) { 
-                        usesRoot = true; 
-                        break; 
-                    }
-                }
-            }
-            if (usesRoot) {
-                sharedUuids.add(p.getUuid());
-            }
-        }
-        
-        return sharedUuids;
+        return StorageMembershipGraph.sharedSources(viewer.getUuid());
     }
 
     private static long takeFromMerged(ServerPlayerEntity viewer, ItemStack variant, int want) {
@@ -1778,15 +1819,24 @@ public final class ServerNetworkingHandlers {
         long got = NewStoreService.takeFromSharedView(server, viewer.getUuid(), sharedUuids, variant, want);
         
         // 取物后，向所有相关玩家广播更新（在线部分）
-        broadcastToRelated(viewer);
+        broadcastToRelated(viewer, sharedUuids);
         return got;
     }
 
     private static void broadcastToRelated(ServerPlayerEntity actor) {
-        // 给自身与所有"同组根拥有者相关"的在线玩家发送同步
-        var players = actor.server.getPlayerManager().getPlayerList();
-        for (ServerPlayerEntity p : players) {
-            sendIncrementalSyncOnDemand(p);
+        broadcastToRelated(actor, getSharedUuids(actor));
+    }
+
+    /**
+     * 给自身与订阅了任一受影响拥有者的在线查看者发送按需增量同步
+     */
+    private static void broadcastToRelated(ServerPlayerEntity actor, java.util.Set<java.util.UUID> owners) {
+        var playerManager = actor.server.getPlayerManager();
+        java.util.Set<java.util.UUID> viewers = ViewSubscriptions.subscribersOf(owners);
+        viewers.add(actor.getUuid());
+        for (java.util.UUID id : viewers) {
+            ServerPlayerEntity p = playerManager.getPlayer(id);
+            if (p != null) sendIncrementalSyncOnDemand(p);
         }
     }
 
@@ -1798,16 +1848,33 @@ public final class ServerNetworkingHandlers {
             return 0;
         }
         
-        // 使用合并的视图，确保与 takeFromStorage 一致
-        StorageInventory merged = buildMergedSnapshot(player);
-        long totalCount = 0;
-        for (int i = 0; i < merged.getCapacity(); i++) {
-            ItemStack disp = merged.getDisplayStack(i);
-            if (!disp.isEmpty() && ItemStack.areItemsAndComponentsEqual(disp, variant)) {
-                totalCount += merged.getCountByIndex(i);
-            }
+        // 与 takeFromStorage 使用同一组拥有者，按拥有者查索引，不构建合并视图
+        return com.portable.storage.newstore.StorageAvailability.count(player.getServer(), getSharedUuids(player), variant);
+    }
+
+    /**
+     * 仓库中是否存在指定物品变体
+     */
+    public static boolean isAvailable(ServerPlayerEntity player, ItemStack variant) {
+        if (variant.isEmpty()) {
+            return false;
         }
-        return totalCount;
+        return com.portable.storage.newstore.StorageAvailability.contains(player.getServer(), getSharedUuids(player), variant);
+    }
+
+    /**
+     * 查找仓库中任一该物品的变体（数量为 1），没有时返回空
+     */
+    public static ItemStack findAvailableVariant(ServerPlayerEntity player, net.minecraft.item.Item item) {
+        return com.portable.storage.newstore.StorageAvailability.findVariant(player.getServer(), getSharedUuids(player), item);
+    }
+
+    /**
+     * 查找仓库中数量最多、且满足 filter 的食物（数量为 1），没有时返回空
+     */
+    public static ItemStack findMostAbundantFood(ServerPlayerEntity player, java.util.function.Predicate<ItemStack> filter) {
+        var best = com.portable.storage.newstore.MergedViewCache.mostAbundantFood(player.getServer(), getSharedUuids(player), filter);
+        return best != null ? best.template() : ItemStack.EMPTY;
     }
 
     /**
@@ -1854,7 +1921,10 @@ public final class ServerNetworkingHandlers {
             }
         }
 
-        // 逐槽尝试填充：优先从合并仓库，其次玩家背包
+        // 逐槽规划填充：优先从合并仓库（同一事务内预留，最后一次性提交），其次玩家背包
+        java.util.Set<java.util.UUID> sources = getSharedUuids(player);
+        com.portable.storage.newstore.StorageTransaction tx = beginMergedTransaction(player);
+        java.util.Map<Slot, ItemStack> planned = new java.util.LinkedHashMap<>();
         for (int i = 0; i < 9; i++) {
             var ing = needs[i];
             if (ing == null || ing.isEmpty()) continue;
@@ -1862,16 +1932,20 @@ public final class ServerNetworkingHandlers {
             Slot slot = handler.getSlot(slotIndex);
             if (!slot.getStack().isEmpty()) continue;
 
-            ItemStack variant = findFirstMatchingInMerged(player, ing);
-            if (!variant.isEmpty()) {
-                long taken = takeFromMerged(player, variant, 1);
-                if (taken > 0) {
-                    ItemStack put = variant.copy();
-                    put.setCount((int) taken);
-                    slot.setStack(put);
-                    continue;
+            ItemStack reserved = ItemStack.EMPTY;
+            if (tx != null) {
+                // 按材料查合并视图的物品索引，只检查可匹配物品的变体
+                for (var v : com.portable.storage.newstore.MergedViewCache.matching(player.getServer(), sources, ing)) {
+                    if (tx.reserve(v.template(), 1) > 0) {
+                        reserved = v.template();
+                        break;
+                    }
                 }
             }
+            if (!reserved.isEmpty()) {
+                planned.put(slot, reserved);
+                continue;
+            }
             if (takeFromPlayerInventory(player, ing, 1)) {
                 ItemStack any = pickAnyFromIngredient(ing);
                 if (!any.isEmpty()) {
@@ -1880,22 +1954,24 @@ public final class ServerNetworkingHandlers {
                 }
             }
         }
+        if (tx != null) {
+            if (planned.isEmpty()) {
+                tx.abort();
+            } else if (tx.commit()) {
+                planned.forEach(Slot::setStack);
+                broadcastToRelated(player);
+            }
+        }
 
         handler.sendContentUpdates();
         sendSync(player);
         org.slf4j.LoggerFactory.getLogger("portable-storage/emi").debug("Server EmiRecipeFill finished: synced storage state");
     }
 
-    private static ItemStack findFirstMatchingInMerged(ServerPlayerEntity viewer, net.minecraft.recipe.Ingredient ing) {
-        // 使用合并快照而不是单独的存储视图，确保包含新版仓库物品
-        StorageInventory merged = buildMergedSnapshot(viewer);
-        for (int i = 0; i < merged.getCapacity(); i++) {
-            ItemStack disp = merged.getDisplayStack(i);
-            if (!disp.isEmpty() && ing.test(disp)) {
-                return disp;
-            }
-        }
-        return ItemStack.EMPTY;
+    private static com.portable.storage.newstore.StorageTransaction beginMergedTransaction(ServerPlayerEntity viewer) {
+        var server = viewer.getServer();
+        if (server == null) return null;
+        return com.portable.storage.newstore.StorageTransaction.begin(server, getSharedUuids(viewer));
     }
 
     private static boolean takeFromPlayerInventory(ServerPlayerEntity player, net.minecraft.recipe.Ingredient ing, int needed) {
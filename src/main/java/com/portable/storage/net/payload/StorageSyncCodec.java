@@ -0,0 +1,141 @@
+package com.portable.storage.net.payload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.portable.storage.newstore.ItemKey;
+
+import net.minecraft.component.DataComponentTypes;
+import net.minecraft.item.ItemStack;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.registry.Registries;
+import net.minecraft.text.Text;
+
+/**
+ * 仓库同步的二进制编码。
+ * 每个会话内服务端为每个物品键分配一个 varint 编号（见 {@link com.portable.storage.sync.StorageSyncManager}），
+ * 物品模板只在首次出现时以 {@link Define} 发送一次（{@link ItemStack#PACKET_CODEC}），
+ * 此后的变化只发送 {@link Update}：(编号, 数量增量, 时间戳)。
+ * 客户端在收到新会话的全量同步时清空编号表。
+ * 窗口化同步时全量同步只发送 {@link Stub}（物品ID与自定义名称，足以排序、搜索与显示图标），
+ * 完整模板由客户端按需请求（{@link StorageTemplateRequestC2SPayload} / {@link StorageTemplatesS2CPayload}）。
+ * 定义都附带 128 位物品键：客户端按服务器/世界持久化 键 -> 模板 缓存，并在进入时上报已缓存的键
+ * （{@link TemplateCacheKeysC2SPayload}）；对客户端已持有的键，服务端只发送键而不再序列化模板。
+ */
+public final class StorageSyncCodec {
+    private StorageSyncCodec() {}
+
+    /**
+     * 编号定义：本会话内 id 对应的物品键与模板（数量为 1）；
+     * template 为 null 表示客户端缓存中已有该键，按键取用
+     */
+    public record Define(int id, ItemKey key, ItemStack template) {}
+
+    /**
+     * 轻量定义：物品键、物品注册编号与自定义名称（空串表示无）；
+     * 客户端缓存中没有该键时先显示占位物品，完整模板稍后按需下发
+     */
+    public record Stub(int id, ItemKey key, int itemRawId, String customName) {
+        public static Stub of(int id, ItemKey key, ItemStack template) {
+            Text name = template.get(DataComponentTypes.CUSTOM_NAME);
+            return new Stub(id, key, Registries.ITEM.getRawId(template.getItem()), name != null ? name.getString() : "");
+        }
+
+        /**
+         * 客户端在完整模板到达前使用的占位物品
+         */
+        public ItemStack toPlaceholder() {
+            ItemStack stack = new ItemStack(Registries.ITEM.get(itemRawId));
+            if (!customName.isEmpty()) stack.set(DataComponentTypes.CUSTOM_NAME, Text.literal(customName));
+            return stack;
+        }
+    }
+
+    /**
+     * 数量变化：全量同步中 delta 即为总数；增量同步中数量降到 0 表示移除
+     */
+    public record Update(int id, long delta, long ts) {}
+
+    static void writeDefines(RegistryByteBuf buf, List<Define> defines) {
+        buf.writeVarInt(defines.size());
+        for (Define d : defines) {
+            buf.writeVarInt(d.id());
+            writeKey(buf, d.key());
+            buf.writeBoolean(d.template() != null);
+            if (d.template() != null) ItemStack.PACKET_CODEC.encode(buf, d.template());
+        }
+    }
+
+    static List<Define> readDefines(RegistryByteBuf buf) {
+        int n = buf.readVarInt();
+        List<Define> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int id = buf.readVarInt();
+            ItemKey key = readKey(buf);
+            ItemStack template = buf.readBoolean() ? ItemStack.PACKET_CODEC.decode(buf) : null;
+            out.add(new Define(id, key, template));
+        }
+        return out;
+    }
+
+    static void writeStubs(RegistryByteBuf buf, List<Stub> stubs) {
+        buf.writeVarInt(stubs.size());
+        for (Stub s : stubs) {
+            buf.writeVarInt(s.id());
+            writeKey(buf, s.key());
+            buf.writeVarInt(s.itemRawId());
+            buf.writeString(s.customName());
+        }
+    }
+
+    static List<Stub> readStubs(RegistryByteBuf buf) {
+        int n = buf.readVarInt();
+        List<Stub> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int id = buf.readVarInt();
+            ItemKey key = readKey(buf);
+            out.add(new Stub(id, key, buf.readVarInt(), buf.readString()));
+        }
+        return out;
+    }
+
+    static void writeKey(RegistryByteBuf buf, ItemKey key) {
+        buf.writeLong(key.hi());
+        buf.writeLong(key.lo());
+    }
+
+    static ItemKey readKey(RegistryByteBuf buf) {
+        long hi = buf.readLong();
+        return ItemKey.of(hi, buf.readLong());
+    }
+
+    /**
+     * 解码客户端发来的键：不进入驻留表
+     */
+    static ItemKey readClientKey(RegistryByteBuf buf) {
+        long hi = buf.readLong();
+        return ItemKey.detached(hi, buf.readLong());
+    }
+
+    static void writeUpdates(RegistryByteBuf buf, List<Update> updates) {
+        buf.writeVarInt(updates.size());
+        for (Update u : updates) {
+            buf.writeVarInt(u.id());
+            // 增量可能为负，使用 zigzag 编码避免负数占满 10 字节
+            buf.writeVarLong((u.delta() << 1) ^ (u.delta() >> 63));
+            buf.writeVarLong(u.ts());
+        }
+    }
+
+    static List<Update> readUpdates(RegistryByteBuf buf) {
+        int n = buf.readVarInt();
+        List<Update> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int id = buf.readVarInt();
+            long zz = buf.readVarLong();
+            long delta = (zz >>> 1) ^ -(zz & 1L);
+            out.add(new Update(id, delta, buf.readVarLong()));
+        }
+        return out;
+    }
+}
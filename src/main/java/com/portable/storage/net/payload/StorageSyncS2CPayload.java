@@ -1,19 +1,34 @@
 package com.portable.storage.net.payload;
 
+import java.util.List;
+
 import com.portable.storage.PortableStorage;
 
-import net.minecraft.nbt.NbtCompound;
 import net.minecraft.network.RegistryByteBuf;
 import net.minecraft.network.codec.PacketCodec;
-import net.minecraft.network.codec.PacketCodecs;
 import net.minecraft.network.packet.CustomPayload;
 import net.minecraft.util.Identifier;
 
-public record StorageSyncS2CPayload(NbtCompound nbt) implements CustomPayload {
+/**
+ * 全量同步（S2C）：开启新会话，按服务端排序给出全部条目。
+ * 编码见 {@link StorageSyncCodec}；entries 中的 delta 为该条目总数。
+ * 窗口化同步时条目只有 stubs，完整模板由客户端按需请求。
+ */
+public record StorageSyncS2CPayload(long sessionId, List<StorageSyncCodec.Define> defines, List<StorageSyncCodec.Stub> stubs, List<StorageSyncCodec.Update> entries) implements CustomPayload {
 	public static final Id<StorageSyncS2CPayload> ID = new Id<>(Identifier.of(PortableStorage.MOD_ID, "storage_sync"));
-	public static final PacketCodec<RegistryByteBuf, StorageSyncS2CPayload> CODEC = PacketCodec.tuple(
-		PacketCodecs.NBT_COMPOUND, StorageSyncS2CPayload::nbt,
-		StorageSyncS2CPayload::new
+	public static final PacketCodec<RegistryByteBuf, StorageSyncS2CPayload> CODEC = PacketCodec.of(
+		(value, buf) -> {
+			buf.writeVarLong(value.sessionId);
+			StorageSyncCodec.writeDefines(buf, value.defines);
+			StorageSyncCodec.writeStubs(buf, value.stubs);
+			StorageSyncCodec.writeUpdates(buf, value.entries);
+		},
+		buf -> new StorageSyncS2CPayload(
+			buf.readVarLong(),
+			StorageSyncCodec.readDefines(buf),
+			StorageSyncCodec.readStubs(buf),
+			StorageSyncCodec.readUpdates(buf)
+		)
 	);
 
 	@Override
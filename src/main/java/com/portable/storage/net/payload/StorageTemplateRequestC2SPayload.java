@@ -0,0 +1,44 @@
+package com.portable.storage.net.payload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.portable.storage.PortableStorage;
+
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+/**
+ * 窗口化同步（C2S）：请求当前会话中指定编号的完整物品模板（客户端即将渲染的行）。
+ */
+public record StorageTemplateRequestC2SPayload(long sessionId, List<Integer> ids) implements CustomPayload {
+    public static final Id<StorageTemplateRequestC2SPayload> ID = new Id<>(Identifier.of(PortableStorage.MOD_ID, "storage_template_request"));
+    /** 单次请求的编号上限，超出的请求解码时拒绝 */
+    public static final int MAX_IDS = 256;
+
+    public static final PacketCodec<RegistryByteBuf, StorageTemplateRequestC2SPayload> CODEC = PacketCodec.of(
+        (value, buf) -> {
+            buf.writeVarLong(value.sessionId);
+            int n = Math.min(MAX_IDS, value.ids.size());
+            buf.writeVarInt(n);
+            for (int i = 0; i < n; i++) buf.writeVarInt(value.ids.get(i));
+        },
+        buf -> {
+            long sid = buf.readVarLong();
+            // 先校验数量再分配，超限的包整体拒绝
+            int n = buf.readVarInt();
+            if (n < 0 || n > MAX_IDS) throw new DecoderException("Too many template ids: " + n);
+            List<Integer> ids = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) ids.add(buf.readVarInt());
+            return new StorageTemplateRequestC2SPayload(sid, ids);
+        }
+    );
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,31 @@
+package com.portable.storage.net.payload;
+
+import java.util.List;
+
+import com.portable.storage.PortableStorage;
+
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+/**
+ * 窗口化同步（S2C）：响应 {@link StorageTemplateRequestC2SPayload}，下发所请求编号的完整模板。
+ * 不占用增量序号，会话不匹配时客户端直接丢弃。
+ */
+public record StorageTemplatesS2CPayload(long sessionId, List<StorageSyncCodec.Define> defines) implements CustomPayload {
+    public static final Id<StorageTemplatesS2CPayload> ID = new Id<>(Identifier.of(PortableStorage.MOD_ID, "storage_templates"));
+
+    public static final PacketCodec<RegistryByteBuf, StorageTemplatesS2CPayload> CODEC = PacketCodec.of(
+        (value, buf) -> {
+            buf.writeVarLong(value.sessionId);
+            StorageSyncCodec.writeDefines(buf, value.defines);
+        },
+        buf -> new StorageTemplatesS2CPayload(buf.readVarLong(), StorageSyncCodec.readDefines(buf))
+    );
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
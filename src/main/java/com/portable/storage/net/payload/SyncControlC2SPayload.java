@@ -9,15 +9,17 @@ import net.minecraft.util.Identifier;
 
 /**
  * 统一的同步控制（C2S）：REQUEST / ACK。
- * 为简化，ACK 使用 seq 字段承载（当前会话内的序号）。
+ * ACK 的 syncId 为客户端已连续应用到的序号（累计确认），success=false 表示其后有缺包需要重发；
+ * sessionId 为该序号所属的会话，序号在每个新会话中从 1 重新开始，服务端忽略其他会话的 ACK。
  */
-public record SyncControlC2SPayload(Op op, long syncId, boolean success) implements CustomPayload {
+public record SyncControlC2SPayload(Op op, long sessionId, long syncId, boolean success) implements CustomPayload {
     public static final CustomPayload.Id<SyncControlC2SPayload> ID = new CustomPayload.Id<>(Identifier.of(MOD_ID, "sync_control"));
 
     public static final PacketCodec<RegistryByteBuf, SyncControlC2SPayload> CODEC = PacketCodec.of(
         (v, buf) -> {
             buf.writeVarInt(v.op.ordinal());
             if (v.op == Op.ACK) {
+                buf.writeLong(v.sessionId);
                 buf.writeVarLong(v.syncId);
                 buf.writeBoolean(v.success);
             }
@@ -25,14 +27,22 @@ public record SyncControlC2SPayload(Op op, long syncId, boolean success) impleme
         buf -> {
             Op op = Op.values()[buf.readVarInt()];
             if (op == Op.ACK) {
+                long session = buf.readLong();
                 long id = buf.readVarLong();
                 boolean ok = buf.readBoolean();
-                return new SyncControlC2SPayload(op, id, ok);
+                return new SyncControlC2SPayload(op, session, id, ok);
             }
-            return new SyncControlC2SPayload(op, 0L, false);
+            return new SyncControlC2SPayload(op, 0L, 0L, false);
         }
     );
 
+    /**
+     * 不属于任何会话的控制包（REQUEST）
+     */
+    public SyncControlC2SPayload(Op op, long syncId, boolean success) {
+        this(op, 0L, syncId, success);
+    }
+
     @Override
     public Id<? extends CustomPayload> getId() { return ID; }
 
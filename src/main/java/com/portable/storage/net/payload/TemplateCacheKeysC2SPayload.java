@@ -0,0 +1,49 @@
+package com.portable.storage.net.payload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.portable.storage.PortableStorage;
+import com.portable.storage.newstore.ItemKey;
+
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+/**
+ * 模板缓存（C2S）：客户端进入服务器/世界时上报本地已缓存模板的物品键，分多包发送。
+ * 服务端据此在定义中只发送键，不再重复序列化模板（见 {@link StorageSyncCodec}）。
+ */
+public record TemplateCacheKeysC2SPayload(List<ItemKey> keys) implements CustomPayload {
+    public static final Id<TemplateCacheKeysC2SPayload> ID = new Id<>(Identifier.of(PortableStorage.MOD_ID, "template_cache_keys"));
+    /** 单包键数上限 */
+    public static final int MAX_KEYS = 1024;
+    /** 客户端每个服务器/世界缓存的模板上限，服务端记录的已持有键同样以此为上限 */
+    public static final int CACHE_LIMIT = 8192;
+    /** 每次连接服务端接受的上报包数：恰好一次进服上报 */
+    public static final int MAX_PACKETS = CACHE_LIMIT / MAX_KEYS;
+
+    public static final PacketCodec<RegistryByteBuf, TemplateCacheKeysC2SPayload> CODEC = PacketCodec.of(
+        (value, buf) -> {
+            int n = Math.min(MAX_KEYS, value.keys.size());
+            buf.writeVarInt(n);
+            for (int i = 0; i < n; i++) StorageSyncCodec.writeKey(buf, value.keys.get(i));
+        },
+        buf -> {
+            // 先校验数量与剩余字节再分配，超限的包整体拒绝
+            int n = buf.readVarInt();
+            if (n < 0 || n > MAX_KEYS) throw new DecoderException("Too many template cache keys: " + n);
+            if ((long) n * 16L > buf.readableBytes()) throw new DecoderException("Truncated template cache keys: " + n);
+            List<ItemKey> keys = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) keys.add(StorageSyncCodec.readClientKey(buf));
+            return new TemplateCacheKeysC2SPayload(keys);
+        }
+    );
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,104 @@
+package com.portable.storage.newstore;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import net.minecraft.nbt.AbstractNbtNumber;
+import net.minecraft.nbt.NbtByteArray;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIntArray;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtLongArray;
+
+/**
+ * NBT 规范化流式摘要：直接遍历 {@link NbtElement} 树写入摘要，不构造 SNBT 字符串。
+ *
+ * 编码规则（键方案 v2，修改即需提升 {@link ItemKeyHasher#KEY_SCHEME}）：
+ * - 每个元素先写 1 字节类型号；
+ * - 数值按大端写入原始位（浮点使用 raw bits）；
+ * - 字符串写 UTF-16 代码单元数（int）后逐个写代码单元（2 字节）；
+ * - 复合标签写键数量后按键名升序写入「键 + 值」；
+ * - 列表写元素类型与长度后依次写入元素；数组写长度后依次写入元素。
+ */
+public final class CanonicalNbtDigest {
+    private CanonicalNbtDigest() {}
+
+    public static void update(MessageDigest md, NbtElement element) {
+        byte type = element.getType();
+        md.update(type);
+        switch (type) {
+            case NbtElement.BYTE_TYPE -> md.update(((AbstractNbtNumber) element).byteValue());
+            case NbtElement.SHORT_TYPE -> updateShort(md, ((AbstractNbtNumber) element).shortValue());
+            case NbtElement.INT_TYPE -> updateInt(md, ((AbstractNbtNumber) element).intValue());
+            case NbtElement.LONG_TYPE -> updateLong(md, ((AbstractNbtNumber) element).longValue());
+            case NbtElement.FLOAT_TYPE -> updateInt(md, Float.floatToRawIntBits(((AbstractNbtNumber) element).floatValue()));
+            case NbtElement.DOUBLE_TYPE -> updateLong(md, Double.doubleToRawLongBits(((AbstractNbtNumber) element).doubleValue()));
+            case NbtElement.STRING_TYPE -> updateString(md, element.asString());
+            case NbtElement.BYTE_ARRAY_TYPE -> {
+                byte[] arr = ((NbtByteArray) element).getByteArray();
+                updateInt(md, arr.length);
+                md.update(arr);
+            }
+            case NbtElement.INT_ARRAY_TYPE -> {
+                int[] arr = ((NbtIntArray) element).getIntArray();
+                updateInt(md, arr.length);
+                for (int v : arr) updateInt(md, v);
+            }
+            case NbtElement.LONG_ARRAY_TYPE -> {
+                long[] arr = ((NbtLongArray) element).getLongArray();
+                updateInt(md, arr.length);
+                for (long v : arr) updateLong(md, v);
+            }
+            case NbtElement.LIST_TYPE -> {
+                NbtList list = (NbtList) element;
+                md.update(list.getHeldType());
+                updateInt(md, list.size());
+                for (int i = 0; i < list.size(); i++) {
+                    update(md, list.get(i));
+                }
+            }
+            case NbtElement.COMPOUND_TYPE -> {
+                NbtCompound compound = (NbtCompound) element;
+                // 键顺序与 HashMap 实现无关：按键名排序后写入
+                String[] keys = compound.getKeys().toArray(new String[0]);
+                Arrays.sort(keys);
+                updateInt(md, keys.length);
+                for (String key : keys) {
+                    updateString(md, key);
+                    update(md, compound.get(key));
+                }
+            }
+            default -> {
+                // END 或未知类型：只写类型号
+            }
+        }
+    }
+
+    public static void updateString(MessageDigest md, String s) {
+        int len = s.length();
+        updateInt(md, len);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            md.update((byte) (c >>> 8));
+            md.update((byte) c);
+        }
+    }
+
+    private static void updateShort(MessageDigest md, short v) {
+        md.update((byte) (v >>> 8));
+        md.update((byte) v);
+    }
+
+    private static void updateInt(MessageDigest md, int v) {
+        md.update((byte) (v >>> 24));
+        md.update((byte) (v >>> 16));
+        md.update((byte) (v >>> 8));
+        md.update((byte) v);
+    }
+
+    private static void updateLong(MessageDigest md, long v) {
+        updateInt(md, (int) (v >>> 32));
+        updateInt(md, (int) v);
+    }
+}
@@ -0,0 +1,146 @@
+package com.portable.storage.newstore;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 物品变体键：物品摘要的前 128 位，以两个 long 保存。
+ * 内存中所有新版存储结构（玩家计数、模板索引、模板缓存、同步快照）均以此为键，
+ * 十六进制形式只出现在文件与网络边界。
+ *
+ * 可信来源的实例经由全局驻留表获取，相同摘要在进程内只有一个对象；客户端上报的键见 {@link #detached}。
+ */
+public final class ItemKey {
+    /** 当前写出的十六进制长度（128 位） */
+    public static final int HEX_LENGTH = 32;
+    /** 旧版 SHA-256 完整十六进制长度，读取时截取前 128 位 */
+    public static final int LEGACY_HEX_LENGTH = 64;
+
+    /** 驻留表的查找键：只含摘要位，不引用 ItemKey 本身 */
+    private record Bits(long hi, long lo) {}
+
+    /** 驻留的弱引用，回收后经队列找回自己的表项并移除 */
+    private static final class Ref extends WeakReference<ItemKey> {
+        final Bits bits;
+
+        Ref(ItemKey key, Bits bits, ReferenceQueue<ItemKey> queue) {
+            super(key, queue);
+            this.bits = bits;
+        }
+    }
+
+    /**
+     * 弱引用驻留表：无锁并发查找；不再被任何结构引用的键随 GC 回收，表项在之后的 {@link #of} 中清除，驻留表不会只增不减
+     */
+    private static final ConcurrentHashMap<Bits, Ref> INTERN = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<ItemKey> COLLECTED = new ReferenceQueue<>();
+
+    private final long hi;
+    private final long lo;
+
+    private ItemKey(long hi, long lo) {
+        this.hi = hi;
+        this.lo = lo;
+    }
+
+    public static ItemKey of(long hi, long lo) {
+        purge();
+        Bits bits = new Bits(hi, lo);
+        while (true) {
+            Ref ref = INTERN.get(bits);
+            ItemKey existing = ref != null ? ref.get() : null;
+            if (existing != null) return existing;
+            ItemKey created = new ItemKey(hi, lo);
+            Ref fresh = new Ref(created, bits, COLLECTED);
+            // 表项不存在或已失效时替换；与并发驻留竞争失败则重读
+            boolean won = ref == null ? INTERN.putIfAbsent(bits, fresh) == null : INTERN.replace(bits, ref, fresh);
+            if (won) return created;
+        }
+    }
+
+    private static void purge() {
+        Ref ref;
+        while ((ref = (Ref) COLLECTED.poll()) != null) {
+            INTERN.remove(ref.bits, ref);
+        }
+    }
+
+    /**
+     * 构造不进入驻留表的键，用于解码客户端上报等不可信输入，避免客户端通过任意键撑大驻留表。
+     * 键按值比较，与驻留实例可互换使用。
+     */
+    public static ItemKey detached(long hi, long lo) {
+        return new ItemKey(hi, lo);
+    }
+
+    /**
+     * 由摘要字节构造（大端取前 16 字节）。
+     */
+    public static ItemKey fromDigest(byte[] digest) {
+        long hi = 0L;
+        long lo = 0L;
+        for (int i = 0; i < 8; i++) hi = (hi << 8) | (digest[i] & 0xFFL);
+        for (int i = 8; i < 16; i++) lo = (lo << 8) | (digest[i] & 0xFFL);
+        return of(hi, lo);
+    }
+
+    /**
+     * 解析文件/网络中的十六进制键，兼容旧版 64 位十六进制；格式不合法时返回 null。
+     */
+    public static ItemKey fromHex(String hex) {
+        if (hex == null) return null;
+        if (hex.length() != HEX_LENGTH && hex.length() != LEGACY_HEX_LENGTH) return null;
+        try {
+            long hi = HexFormat.fromHexDigitsToLong(hex, 0, 16);
+            long lo = HexFormat.fromHexDigitsToLong(hex, 16, 32);
+            return of(hi, lo);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public long hi() { return hi; }
+    public long lo() { return lo; }
+
+    public String toHex() {
+        HexFormat hf = HexFormat.of();
+        return hf.toHexDigits(hi) + hf.toHexDigits(lo);
+    }
+
+    /**
+     * 判断文件中的十六进制名称（新旧两种长度）是否表示本键，不进入驻留表。
+     */
+    public boolean matchesHex(String hex) {
+        if (hex == null) return false;
+        if (hex.length() != HEX_LENGTH && hex.length() != LEGACY_HEX_LENGTH) return false;
+        return hex.regionMatches(true, 0, toHex(), 0, HEX_LENGTH);
+    }
+
+    /**
+     * 当前驻留的键数量（统计用）
+     */
+    public static int internedCount() {
+        purge();
+        return INTERN.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ItemKey other)) return false;
+        return hi == other.hi && lo == other.lo;
+    }
+
+    @Override
+    public int hashCode() {
+        // 摘要位分布均匀，直接折叠即可
+        return Long.hashCode(hi ^ lo);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
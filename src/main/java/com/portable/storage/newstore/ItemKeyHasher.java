@@ -2,9 +2,12 @@ package com.portable.storage.newstore;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.portable.storage.PortableStorage;
+import net.minecraft.component.ComponentChanges;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NbtOps;
@@ -13,47 +16,147 @@ import net.minecraft.registry.RegistryWrapper;
 import net.minecraft.util.Identifier;
 
 /**
- * 物品唯一Key生成：包含物品ID + Mojang DataComponent 序列化（稳定）后做 SHA-256。
+ * 物品唯一Key生成：物品ID + Mojang DataComponent 序列化结果做 SHA-256，
+ * 取摘要前 128 位作为 {@link ItemKey}。
+ *
+ * 键方案版本：
+ * - v1：对编码结果的 SNBT 字符串做摘要（依赖 toString 格式，大物品需构造长字符串）；
+ * - v2：经 {@link CanonicalNbtDigest} 直接流式遍历 NBT 树（当前方案）。
+ * 方案版本记录在 index.nbt 中，旧数据由 {@link KeySchemeMigration} 一次性迁移。
+ *
+ * 结果按（物品, 组件变更）做有界 LRU 缓存，常见变体的重复计算只需一次 Map 查找。
  */
 public final class ItemKeyHasher {
+    /** 当前键方案版本 */
+    public static final int KEY_SCHEME = 2;
+    /** 基于 SNBT 字符串的旧方案 */
+    public static final int LEGACY_KEY_SCHEME = 1;
+
+    private static final int MAX_CACHE_ENTRIES = 8192;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final Map<VariantKey, ItemKey> CACHE = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<VariantKey, ItemKey> eldest) {
+            if (size() > MAX_CACHE_ENTRIES) {
+                EVICTIONS.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    /**
+     * 缓存键：物品 + 组件变更快照（ComponentChanges 不可变，可安全作为键）。
+     * 是否带注册表上下文会影响编码结果，因此一并纳入。
+     */
+    private record VariantKey(Item item, ComponentChanges changes, boolean withLookup) {}
+
     private ItemKeyHasher() {}
 
-    public static String hash(ItemStack stack, RegistryWrapper.WrapperLookup lookup) {
+    public static ItemKey hash(ItemStack stack, RegistryWrapper.WrapperLookup lookup) {
         if (stack == null || stack.isEmpty()) {
-            return ""; // 空栈返回空key，调用侧需要自行判断
+            return null; // 空栈返回 null，调用侧需要自行判断
         }
 
+        VariantKey variant = new VariantKey(stack.getItem(), stack.getComponentChanges(), lookup != null);
+        synchronized (CACHE) {
+            ItemKey cached = CACHE.get(variant);
+            if (cached != null) {
+                HITS.incrementAndGet();
+                return cached;
+            }
+        }
+        MISSES.incrementAndGet();
+
+        ItemKey key = computeHash(stack, lookup);
+        if (key != null) {
+            synchronized (CACHE) {
+                CACHE.put(variant, key);
+            }
+        }
+        return key;
+    }
+
+    private static ItemKey computeHash(ItemStack stack, RegistryWrapper.WrapperLookup lookup) {
         try {
-            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            MessageDigest sha = SHA256.get();
+            sha.reset();
 
             // 1) 物品ID（必须包含）
-            Item item = stack.getItem();
-            Identifier id = Registries.ITEM.getId(item);
+            Identifier id = Registries.ITEM.getId(stack.getItem());
+            CanonicalNbtDigest.updateString(sha, id.toString());
+
+            // 2) DataComponent 完整序列化，按规范顺序流式写入摘要
+            var enc = ItemStack.CODEC.encodeStart(ops(lookup), stack.copyWithCount(1));
+            enc.result().ifPresent(nbt -> CanonicalNbtDigest.update(sha, nbt));
+
+            return ItemKey.fromDigest(sha.digest());
+        } catch (Exception e) {
+            PortableStorage.LOGGER.error("Failed to hash ItemStack", e);
+            return null;
+        }
+    }
+
+    /**
+     * 按 v1 方案计算键（仅供迁移使用，不进入缓存）。
+     */
+    public static ItemKey hashLegacy(ItemStack stack, RegistryWrapper.WrapperLookup lookup) {
+        if (stack == null || stack.isEmpty()) return null;
+        try {
+            MessageDigest sha = SHA256.get();
+            sha.reset();
+
+            Identifier id = Registries.ITEM.getId(stack.getItem());
             if (id != null) {
                 sha.update(id.toString().getBytes(StandardCharsets.UTF_8));
             }
+            var enc = ItemStack.CODEC.encodeStart(ops(lookup), stack.copyWithCount(1));
+            enc.result().ifPresent(nbt -> sha.update(nbt.toString().getBytes(StandardCharsets.UTF_8)));
 
-            // 2) DataComponent 完整稳定序列化
-            // 使用 ItemStack.CODEC，序列化完整的物品属性（包括所有组件）
-            // 通过 RegistryOps 确保跨世界/数据包环境一致
-            var ops = (lookup != null) ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup) : NbtOps.INSTANCE;
-            // 使用完整的ItemStack进行序列化，确保所有组件都被包含
-            ItemStack normalizedStack = stack.copy();
-            normalizedStack.setCount(1); // 只归一化数量，保留所有其他组件
-            var enc = ItemStack.CODEC.encodeStart(ops, normalizedStack);
-            enc.result().ifPresent(nbt -> {
-                // 直接以 NBT 的规范字节序列做哈希；这里转回字符串再入哈希，足够稳定
-                String canonical = nbt.toString();
-                sha.update(canonical.getBytes(StandardCharsets.UTF_8));
-            });
-
-            return HexFormat.of().formatHex(sha.digest());
+            return ItemKey.fromDigest(sha.digest());
         } catch (Exception e) {
-            PortableStorage.LOGGER.error("Failed to hash ItemStack", e);
-            return "";
+            PortableStorage.LOGGER.error("Failed to hash ItemStack (legacy scheme)", e);
+            return null;
         }
     }
 
-}
+    private static com.mojang.serialization.DynamicOps<net.minecraft.nbt.NbtElement> ops(RegistryWrapper.WrapperLookup lookup) {
+        // 通过 RegistryOps 确保跨世界/数据包环境一致
+        return (lookup != null) ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup) : NbtOps.INSTANCE;
+    }
 
+    /**
+     * 清空缓存（服务器重新初始化时调用，注册表上下文可能已变化）
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
 
+    /**
+     * 获取缓存统计信息
+     */
+    public static String getCacheStats() {
+        long hits = HITS.get();
+        long misses = MISSES.get();
+        long total = hits + misses;
+        int size;
+        synchronized (CACHE) {
+            size = CACHE.size();
+        }
+        return String.format("Key cache: %d/%d entries, hits %d, misses %d, evictions %d, hit rate %.1f%%",
+            size, MAX_CACHE_ENTRIES, hits, misses, EVICTIONS.get(), total == 0 ? 0.0 : hits * 100.0 / total);
+    }
+}
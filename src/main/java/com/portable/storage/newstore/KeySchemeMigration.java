@@ -0,0 +1,201 @@
+package com.portable.storage.newstore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.portable.storage.PortableStorage;
+import com.portable.storage.util.SafeNbtIo;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * 键方案迁移：索引记录的方案版本低于 {@link ItemKeyHasher#KEY_SCHEME} 时，
+ * 用模板切片中保存的完整物品重新计算键，并改写玩家文件、切片与索引。
+ *
+ * 流程：
+ * 1. 生成 旧键 -> 新键 映射并先写入 templates/key_migration.nbt；
+ * 2. 改写 players/*.nbt（同一新键的条目合并计数）；
+ * 3. 改写 slice_XXX.nbt 中的条目名；
+ * 4. 改写索引并记录新方案版本，索引落盘成功后才删除映射文件。
+ * 中途中断或任一步写入失败时保留映射，下次启动复用已写入的映射继续执行；各步骤对已迁移的数据是幂等的。
+ * 索引已是新方案但映射文件仍在（删除前中断）时直接清理映射。
+ * v1 只存在于旧版整文件切片中，因此迁移在切片格式转换（{@link TemplateSlices#convertLegacySlices}）之前执行。
+ */
+public final class KeySchemeMigration {
+    private static final String MAPPING = "mapping";
+    private static final String TARGET_SCHEME = "target_scheme";
+
+    private KeySchemeMigration() {}
+
+    /**
+     * @throws IOException 任一步骤失败；映射文件保留，下次启动从映射继续
+     */
+    public static void migrateIfNeeded(MinecraftServer server, TemplateIndex index) throws IOException {
+        int scheme = index.getKeyScheme();
+        if (scheme >= ItemKeyHasher.KEY_SCHEME) {
+            // 新方案的索引已落盘：遗留的映射不再需要
+            Files.deleteIfExists(StoragePaths.getKeyMigrationFile(server));
+            return;
+        }
+
+        PortableStorage.LOGGER.info("Migrating storage item keys from scheme v{} to v{}...", scheme, ItemKeyHasher.KEY_SCHEME);
+        long start = System.currentTimeMillis();
+        Map<ItemKey, ItemKey> mapping = loadPendingMapping(server);
+        if (mapping == null) {
+            mapping = buildMapping(server);
+            savePendingMapping(server, mapping);
+        }
+
+        int players = rekeyPlayers(server, mapping);
+        int slices = rekeySlices(server, mapping);
+        index.rekey(mapping, ItemKeyHasher.KEY_SCHEME);
+        // 索引写入失败时异常直接抛出，映射文件保留
+        index.save(server);
+        Files.deleteIfExists(StoragePaths.getKeyMigrationFile(server));
+
+        PortableStorage.LOGGER.info("Key scheme migration finished: {} keys remapped, {} player files, {} slices rewritten in {}ms",
+            mapping.size(), players, slices, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 遍历所有切片，用保存的完整物品按当前方案重新计算键。
+     */
+    private static Map<ItemKey, ItemKey> buildMapping(MinecraftServer server) throws IOException {
+        Map<ItemKey, ItemKey> mapping = new HashMap<>();
+        var ops = net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, server.getRegistryManager());
+        for (Path sliceFile : listSliceFiles(server)) {
+            NbtCompound root = SafeNbtIo.readCompressed(sliceFile, NbtSizeTracker.ofUnlimitedBytes());
+            if (root == null || !root.contains("templates")) continue;
+            NbtCompound templates = root.getCompound("templates");
+            for (String name : templates.getKeys()) {
+                ItemKey oldKey = ItemKey.fromHex(name);
+                if (oldKey == null) continue;
+                ItemStack stack = ItemStack.CODEC.parse(ops, templates.get(name)).result().orElse(ItemStack.EMPTY);
+                ItemKey newKey = ItemKeyHasher.hash(stack, server.getRegistryManager());
+                if (newKey != null && !newKey.equals(oldKey)) {
+                    mapping.put(oldKey, newKey);
+                }
+            }
+        }
+        return mapping;
+    }
+
+    private static int rekeyPlayers(MinecraftServer server, Map<ItemKey, ItemKey> mapping) throws IOException {
+        Path playersDir = StoragePaths.getPlayersDir(server);
+        if (!Files.exists(playersDir)) return 0;
+        List<Path> files;
+        try (var stream = Files.list(playersDir)) {
+            files = stream.filter(p -> p.getFileName().toString().endsWith(".nbt")).toList();
+        }
+
+        int rewritten = 0;
+        for (Path file : files) {
+            NbtCompound root = SafeNbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
+            if (root == null || !root.contains(PlayerStore.ENTRIES, NbtElement.LIST_TYPE)) continue;
+            NbtList list = root.getList(PlayerStore.ENTRIES, NbtElement.COMPOUND_TYPE);
+
+            boolean changed = false;
+            Map<ItemKey, NbtCompound> merged = new LinkedHashMap<>();
+            for (int i = 0; i < list.size(); i++) {
+                NbtCompound c = list.getCompound(i);
+                ItemKey key = ItemKey.fromHex(c.getString("key"));
+                if (key == null) continue;
+                ItemKey target = mapping.getOrDefault(key, key);
+                if (!target.equals(key) || c.getString("key").length() != ItemKey.HEX_LENGTH) changed = true;
+
+                NbtCompound existing = merged.get(target);
+                if (existing == null) {
+                    c.putString("key", target.toHex());
+                    merged.put(target, c);
+                } else {
+                    existing.putLong("count", existing.getLong("count") + c.getLong("count"));
+                    existing.putLong("ts", Math.max(existing.getLong("ts"), c.getLong("ts")));
+                    changed = true;
+                }
+            }
+            if (!changed) continue;
+
+            NbtList out = new NbtList();
+            out.addAll(merged.values());
+            root.put(PlayerStore.ENTRIES, out);
+            SafeNbtIo.writeCompressed(root, file);
+            rewritten++;
+        }
+        return rewritten;
+    }
+
+    private static int rekeySlices(MinecraftServer server, Map<ItemKey, ItemKey> mapping) throws IOException {
+        int rewritten = 0;
+        for (Path sliceFile : listSliceFiles(server)) {
+            NbtCompound root = SafeNbtIo.readCompressed(sliceFile, NbtSizeTracker.ofUnlimitedBytes());
+            if (root == null || !root.contains("templates")) continue;
+            NbtCompound templates = root.getCompound("templates");
+
+            boolean changed = false;
+            for (String name : new ArrayList<>(templates.getKeys())) {
+                ItemKey oldKey = ItemKey.fromHex(name);
+                if (oldKey == null) continue;
+                ItemKey target = mapping.get(oldKey);
+                if (target == null) continue;
+                NbtElement element = templates.get(name);
+                templates.remove(name);
+                if (!templates.contains(target.toHex())) {
+                    templates.put(target.toHex(), element);
+                }
+                changed = true;
+            }
+            if (!changed) continue;
+
+            root.put("templates", templates);
+            SafeNbtIo.writeCompressed(root, sliceFile);
+            rewritten++;
+        }
+        return rewritten;
+    }
+
+    private static Map<ItemKey, ItemKey> loadPendingMapping(MinecraftServer server) throws IOException {
+        Path file = StoragePaths.getKeyMigrationFile(server);
+        NbtCompound root = SafeNbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
+        if (root == null || root.getInt(TARGET_SCHEME) != ItemKeyHasher.KEY_SCHEME) return null;
+        Map<ItemKey, ItemKey> mapping = new HashMap<>();
+        NbtCompound m = root.getCompound(MAPPING);
+        for (String k : m.getKeys()) {
+            ItemKey from = ItemKey.fromHex(k);
+            ItemKey to = ItemKey.fromHex(m.getString(k));
+            if (from != null && to != null) mapping.put(from, to);
+        }
+        PortableStorage.LOGGER.info("Resuming interrupted key scheme migration ({} keys)", mapping.size());
+        return mapping;
+    }
+
+    private static void savePendingMapping(MinecraftServer server, Map<ItemKey, ItemKey> mapping) throws IOException {
+        NbtCompound m = new NbtCompound();
+        for (Map.Entry<ItemKey, ItemKey> en : mapping.entrySet()) {
+            m.putString(en.getKey().toHex(), en.getValue().toHex());
+        }
+        NbtCompound root = new NbtCompound();
+        root.putInt(TARGET_SCHEME, ItemKeyHasher.KEY_SCHEME);
+        root.put(MAPPING, m);
+        SafeNbtIo.writeCompressed(root, StoragePaths.getKeyMigrationFile(server));
+    }
+
+    private static List<Path> listSliceFiles(MinecraftServer server) throws IOException {
+        Path templatesDir = StoragePaths.getTemplatesDir(server);
+        if (!Files.exists(templatesDir)) return List.of();
+        try (var stream = Files.list(templatesDir)) {
+            return stream.filter(p -> p.getFileName().toString().matches("slice_\\d+\\.nbt")).sorted().toList();
+        }
+    }
+}
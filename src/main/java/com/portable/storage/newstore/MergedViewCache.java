@@ -0,0 +1,304 @@
+package com.portable.storage.newstore;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import com.portable.storage.storage.StorageInventory;
+
+import net.minecraft.component.DataComponentTypes;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.recipe.Ingredient;
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * 仓库组合并视图缓存：按拥有者集合保存“物品键 -> 合并行”，构建一次后由变更事件原地更新。
+ *
+ * - {@link PlayerStore} 的 add/remove 通过 {@link #onStoreChange} 只改动受影响的行，版本号递增；
+ * - 无法按键描述的变更（整体覆盖、旧版仓库写回）通过 {@link #markOwnerChanged} 使相关视图失效，下次访问时重建；
+ * - 旧版仓库以 {@link StorageAvailability} 的索引对象身份校验，玩家数据文件变化时同样重建；
+ * - {@link #snapshot} 返回只读 {@link StorageInventory}，同一版本内复用，构建时按键去重、不做线性查找。
+ * 行的时间戳取各来源中最近一次更新时间。缓存的组数有上限，最久未访问的视图先被丢弃。
+ *
+ * 每个视图同时维护二级索引，随行的增删与数量变化同步更新：
+ * - 物品 -> 该物品的各变体（{@link #variantsOf}、{@link #matching}）；
+ * - 带食物组件的变体（{@link #mostAbundantFood}）。
+ * 查询只访问相关物品的变体，不遍历整个视图；结果按数量降序。
+ */
+public final class MergedViewCache {
+    private static final int MAX_VIEWS = 256;
+
+    private static final class Row {
+        final ItemStack template;
+        long count;
+        long ts;
+
+        Row(ItemStack template, long count, long ts) {
+            this.template = template;
+            this.count = count;
+            this.ts = ts;
+        }
+    }
+
+    /**
+     * 查询结果：变体模板（数量为 1 的副本）与合并后的数量
+     */
+    public record Variant(ItemKey key, ItemStack template, long count) {}
+
+    private static final class ItemBucket {
+        final Map<ItemKey, Row> rows = new LinkedHashMap<>();
+    }
+
+    private static final class GroupView {
+        final Set<UUID> owners;
+        final Map<ItemKey, Row> rows = new LinkedHashMap<>();
+        final Map<Item, ItemBucket> byItem = new HashMap<>();
+        final Map<ItemKey, Row> food = new LinkedHashMap<>();
+        final Map<UUID, StorageAvailability.LegacyIndex> legacy = new HashMap<>();
+        long version;
+        StorageInventory snapshot;
+        long snapshotVersion = -1L;
+
+        GroupView(Set<UUID> owners) {
+            this.owners = owners;
+        }
+    }
+
+    private static final Map<Set<UUID>, GroupView> VIEWS = new LinkedHashMap<>(16, 0.75f, true);
+    private static long nextVersion = 1L;
+    private static long rebuilds = 0L;
+    private static long applied = 0L;
+    private static long invalidations = 0L;
+    private static long snapshots = 0L;
+    private static long snapshotReuses = 0L;
+    private static long indexQueries = 0L;
+
+    private MergedViewCache() {}
+
+    /**
+     * 仓库组当前合并视图的只读快照（同一版本内返回同一对象）
+     */
+    public static synchronized StorageInventory snapshot(MinecraftServer server, Set<UUID> owners) {
+        if (server == null || owners == null || owners.isEmpty()) return new StorageInventory(0).freeze();
+        GroupView view = view(server, owners);
+        if (view.snapshot != null && view.snapshotVersion == view.version) {
+            snapshotReuses++;
+            return view.snapshot;
+        }
+        StorageInventory inv = new StorageInventory(0);
+        for (Row row : view.rows.values()) {
+            inv.appendDistinctVariant(row.template, row.count, row.ts);
+        }
+        view.snapshot = inv.freeze();
+        view.snapshotVersion = view.version;
+        snapshots++;
+        return view.snapshot;
+    }
+
+    /**
+     * 仓库组内某物品的全部变体（任意组件）
+     */
+    public static synchronized List<Variant> variantsOf(MinecraftServer server, Set<UUID> owners, Item item) {
+        if (server == null || owners == null || owners.isEmpty() || item == null) return List.of();
+        indexQueries++;
+        ItemBucket bucket = view(server, owners).byItem.get(item);
+        return bucket != null ? toVariants(bucket.rows) : List.of();
+    }
+
+    /**
+     * 仓库组内满足配方材料的全部变体：按材料可匹配的物品查索引，只对这些物品的变体调用 {@link Ingredient#test}
+     */
+    public static synchronized List<Variant> matching(MinecraftServer server, Set<UUID> owners, Ingredient ingredient) {
+        if (server == null || owners == null || owners.isEmpty() || ingredient == null || ingredient.isEmpty()) return List.of();
+        indexQueries++;
+        GroupView view = view(server, owners);
+        Map<ItemKey, Row> rows = new LinkedHashMap<>();
+        Set<Item> seen = new HashSet<>();
+        for (ItemStack candidate : ingredient.getMatchingStacks()) {
+            if (candidate.isEmpty() || !seen.add(candidate.getItem())) continue;
+            ItemBucket bucket = view.byItem.get(candidate.getItem());
+            if (bucket == null) continue;
+            for (var e : bucket.rows.entrySet()) {
+                if (ingredient.test(e.getValue().template)) rows.put(e.getKey(), e.getValue());
+            }
+        }
+        return toVariants(rows);
+    }
+
+    /**
+     * 仓库组内数量最多、且满足 filter 的食物变体，没有时返回 null
+     */
+    public static synchronized Variant mostAbundantFood(MinecraftServer server, Set<UUID> owners, Predicate<ItemStack> filter) {
+        if (server == null || owners == null || owners.isEmpty()) return null;
+        indexQueries++;
+        Map.Entry<ItemKey, Row> best = null;
+        for (var e : view(server, owners).food.entrySet()) {
+            if (best != null && e.getValue().count <= best.getValue().count) continue;
+            if (filter != null && !filter.test(e.getValue().template)) continue;
+            best = e;
+        }
+        return best != null ? toVariant(best.getKey(), best.getValue()) : null;
+    }
+
+    /**
+     * 新版存储中某拥有者单个键的数量变化（由 {@link PlayerStore} 调用）
+     */
+    static synchronized void onStoreChange(MinecraftServer server, UUID owner, ItemKey key, long delta, long ts) {
+        if (VIEWS.isEmpty() || owner == null || key == null || delta == 0) return;
+        Iterator<GroupView> it = VIEWS.values().iterator();
+        while (it.hasNext()) {
+            GroupView view = it.next();
+            if (!view.owners.contains(owner)) continue;
+            Row row = view.rows.get(key);
+            if (row == null) {
+                ItemStack template = delta > 0 ? StorageMemoryCache.getOrLoadTemplate(server, key) : ItemStack.EMPTY;
+                if (template == null || template.isEmpty()) {
+                    // 无法原地补齐该行：丢弃视图，下次访问时重建
+                    it.remove();
+                    invalidations++;
+                    continue;
+                }
+                addRow(view, key, template, delta, ts);
+            } else {
+                adjustRow(view, key, row, delta, ts);
+            }
+            view.version = nextVersion++;
+            applied++;
+        }
+    }
+
+    /**
+     * 拥有者发生无法按键描述的变更：包含该拥有者的视图全部失效
+     */
+    public static synchronized void markOwnerChanged(UUID owner) {
+        if (VIEWS.isEmpty() || owner == null) return;
+        Iterator<GroupView> it = VIEWS.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().owners.contains(owner)) {
+                it.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    public static synchronized void clear() {
+        VIEWS.clear();
+    }
+
+    public static synchronized String getStats() {
+        return String.format("views=%d/%d, rebuilds=%d, applied=%d, invalidations=%d, snapshots=%d, reused=%d, indexQueries=%d",
+            VIEWS.size(), MAX_VIEWS, rebuilds, applied, invalidations, snapshots, snapshotReuses, indexQueries);
+    }
+
+    private static GroupView view(MinecraftServer server, Set<UUID> owners) {
+        GroupView view = VIEWS.get(owners);
+        if (view != null && legacyUnchanged(server, view)) return view;
+        view = build(server, Set.copyOf(owners));
+        VIEWS.put(view.owners, view);
+        while (VIEWS.size() > MAX_VIEWS) {
+            Iterator<GroupView> it = VIEWS.values().iterator();
+            it.next();
+            it.remove();
+        }
+        return view;
+    }
+
+    private static boolean legacyUnchanged(MinecraftServer server, GroupView view) {
+        for (UUID owner : view.owners) {
+            if (StorageAvailability.legacyIndex(server, owner) != view.legacy.get(owner)) return false;
+        }
+        return true;
+    }
+
+    private static GroupView build(MinecraftServer server, Set<UUID> owners) {
+        GroupView view = new GroupView(owners);
+        // 1) 旧版存储
+        for (UUID owner : owners) {
+            StorageAvailability.LegacyIndex legacy = StorageAvailability.legacyIndex(server, owner);
+            view.legacy.put(owner, legacy);
+            for (var e : legacy.counts.entrySet()) {
+                ItemStack template = legacy.templates.get(e.getKey());
+                if (template == null || e.getValue() <= 0) continue;
+                merge(view, e.getKey(), template, e.getValue(), legacy.timestamps.getOrDefault(e.getKey(), 0L));
+            }
+        }
+        // 2) 新版存储
+        for (UUID owner : owners) {
+            for (PlayerStore.Entry e : PlayerStore.view(server, owner).values()) {
+                if (e.count <= 0) continue;
+                ItemStack template = StorageMemoryCache.getOrLoadTemplate(server, e.key);
+                if (template == null || template.isEmpty()) continue;
+                merge(view, e.key, template, e.count, e.ts);
+            }
+        }
+        view.version = nextVersion++;
+        rebuilds++;
+        return view;
+    }
+
+    private static void merge(GroupView view, ItemKey key, ItemStack template, long count, long ts) {
+        Row row = view.rows.get(key);
+        if (row == null) {
+            addRow(view, key, template, count, ts);
+        } else {
+            adjustRow(view, key, row, count, ts);
+        }
+    }
+
+    // ===== 行与二级索引的同步维护 =====
+
+    private static void addRow(GroupView view, ItemKey key, ItemStack template, long count, long ts) {
+        Row row = new Row(template.copyWithCount(1), count, ts);
+        view.rows.put(key, row);
+        Item item = row.template.getItem();
+        ItemBucket bucket = view.byItem.get(item);
+        if (bucket == null) {
+            bucket = new ItemBucket();
+            view.byItem.put(item, bucket);
+        }
+        bucket.rows.put(key, row);
+        if (row.template.get(DataComponentTypes.FOOD) != null) view.food.put(key, row);
+    }
+
+    private static void adjustRow(GroupView view, ItemKey key, Row row, long delta, long ts) {
+        row.count = saturatedAdd(row.count, delta);
+        row.ts = Math.max(row.ts, ts);
+        if (row.count > 0) return;
+        view.rows.remove(key);
+        view.food.remove(key);
+        Item item = row.template.getItem();
+        ItemBucket bucket = view.byItem.get(item);
+        if (bucket != null) {
+            bucket.rows.remove(key);
+            if (bucket.rows.isEmpty()) view.byItem.remove(item);
+        }
+    }
+
+    private static List<Variant> toVariants(Map<ItemKey, Row> rows) {
+        List<Variant> out = new ArrayList<>(rows.size());
+        for (var e : rows.entrySet()) out.add(toVariant(e.getKey(), e.getValue()));
+        out.sort(Comparator.comparingLong(Variant::count).reversed());
+        return out;
+    }
+
+    private static Variant toVariant(ItemKey key, Row row) {
+        return new Variant(key, row.template.copyWithCount(1), row.count);
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        try {
+            return Math.addExact(a, b);
+        } catch (ArithmeticException ex) {
+            return b > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.portable.storage.newstore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.portable.storage.PortableStorage;
+
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * 新版存储的追加式变更日志（journal/segment_XXXXXXXX.log）。
+ *
+ * 两次快照保存之间的每次变更（增减计数、清空、新建模板）追加一条记录，
+ * 由后台线程每 {@link #GROUP_COMMIT_INTERVAL_MS} 毫秒批量写入并 fsync 一次（组提交）；
+ * 调用方不等待落盘，崩溃时最多丢失一个提交周期内的变更。
+ *
+ * 段文件格式：头部 [magic:int][version:int][baseSeq:long]，之后为若干记录
+ * [len:int][type:byte][seq:long][payload][crc32:int]，len 覆盖 type 至 payload。
+ * 每条记录带全局递增序号；玩家快照记录写出时已包含的最大序号，重放时只应用更新的记录。
+ *
+ * 生命周期：open -> replay -> start；定时保存开始时 {@link #roll()} 封存当前段，
+ * 快照全部写出后 {@link #deleteSegments(List)} 删除已封存段（压缩）。
+ */
+public final class MutationJournal {
+    public static final long GROUP_COMMIT_INTERVAL_MS = 50;
+
+    private static final int MAGIC = 0x50534A4C; // "PSJL"
+    private static final int VERSION = 1;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final byte TYPE_CLEAR = 3;
+    private static final byte TYPE_TEMPLATE = 4;
+
+    /**
+     * 重放回调，按序号顺序调用。
+     */
+    public interface ReplayHandler {
+        void onAdd(long seq, UUID player, ItemKey key, long count, long ts);
+        void onRemove(long seq, UUID player, ItemKey key, long count, long ts);
+        void onClear(long seq, UUID player, long ts);
+        void onTemplate(long seq, ItemKey key, NbtElement item);
+    }
+
+    /** 可直接访问内部数组的缓冲区，避免计算 CRC 时复制 */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer(int size) { super(size); }
+        byte[] array() { return buf; }
+    }
+
+    private final MinecraftServer server;
+    private final List<Path> sealedSegments = new ArrayList<>();
+    private long nextSegmentId = 1;
+
+    // 待写入缓冲（bufferLock 保护）
+    private final Object bufferLock = new Object();
+    private final RecordBuffer record = new RecordBuffer(256);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private RecordBuffer pending = new RecordBuffer(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private long nextSeq = 1;
+    private boolean activeHasRecords = false;
+
+    // 文件写入（ioLock 保护）
+    private final Object ioLock = new Object();
+    private FileChannel activeChannel;
+    private Path activePath;
+    private ScheduledExecutorService flusher;
+    private volatile boolean closed = false;
+
+    // 统计
+    private final AtomicLong recordsAppended = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong syncCount = new AtomicLong();
+
+    private MutationJournal(MinecraftServer server) {
+        this.server = server;
+    }
+
+    /**
+     * 打开日志目录，登记已有段（崩溃遗留）供重放；此时尚未开始写入。
+     */
+    public static MutationJournal open(MinecraftServer server) throws IOException {
+        MutationJournal journal = new MutationJournal(server);
+        StoragePaths.ensureDirectories(server);
+        Path dir = StoragePaths.getJournalDir(server);
+        try (var stream = Files.list(dir)) {
+            for (Path file : stream.filter(p -> p.getFileName().toString().matches("segment_\\d+\\.log")).sorted().toList()) {
+                journal.sealedSegments.add(file);
+                String name = file.getFileName().toString();
+                long id = Long.parseLong(name.substring("segment_".length(), name.length() - ".log".length()));
+                journal.nextSegmentId = Math.max(journal.nextSegmentId, id + 1);
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * 按顺序重放已有段中的全部有效记录，遇到第一条截断或校验失败的记录即停止整个重放。
+     * 只有最新的段可能因崩溃而截断；更早的段损坏时其后各段的增减缺少前提，直接抛出异常而不是跳过继续。
+     * @return 重放的记录数
+     * @throws IOException 段无法读取，或非最新段中存在损坏记录
+     */
+    public int replay(ReplayHandler handler) throws IOException {
+        int applied = 0;
+        for (int s = 0; s < sealedSegments.size(); s++) {
+            Path file = sealedSegments.get(s);
+            boolean newest = s == sealedSegments.size() - 1;
+            String torn = null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                try {
+                    if (in.readInt() != MAGIC) {
+                        torn = "bad header";
+                    } else {
+                        in.readInt(); // version
+                        nextSeq = Math.max(nextSeq, in.readLong());
+                    }
+                } catch (EOFException eof) {
+                    torn = "truncated header";
+                }
+
+                while (torn == null) {
+                    int len;
+                    try {
+                        len = in.readInt();
+                    } catch (EOFException eof) {
+                        break;
+                    }
+                    if (len <= 0 || len > MAX_RECORD_BYTES) {
+                        torn = "torn record";
+                        break;
+                    }
+                    byte[] body = new byte[len];
+                    int expectedCrc;
+                    try {
+                        in.readFully(body);
+                        expectedCrc = in.readInt();
+                    } catch (EOFException eof) {
+                        torn = "partial record";
+                        break;
+                    }
+                    CRC32 check = new CRC32();
+                    check.update(body, 0, len);
+                    if ((int) check.getValue() != expectedCrc) {
+                        torn = "record with bad checksum";
+                        break;
+                    }
+                    long seq = apply(body, handler);
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                    applied++;
+                }
+            }
+            if (torn != null) {
+                if (!newest) {
+                    throw new IOException("Journal segment " + file + " has a " + torn + " but newer segments exist; replay stopped after " + applied + " records");
+                }
+                PortableStorage.LOGGER.warn("Journal segment {} ends with a {}, stopping replay", file, torn);
+                break;
+            }
+        }
+        return applied;
+    }
+
+    private static long apply(byte[] body, ReplayHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        long seq = in.readLong();
+        switch (type) {
+            case TYPE_ADD, TYPE_REMOVE -> {
+                UUID player = new UUID(in.readLong(), in.readLong());
+                ItemKey key = ItemKey.of(in.readLong(), in.readLong());
+                long count = in.readLong();
+                long ts = in.readLong();
+                if (type == TYPE_ADD) handler.onAdd(seq, player, key, count, ts);
+                else handler.onRemove(seq, player, key, count, ts);
+            }
+            case TYPE_CLEAR -> handler.onClear(seq, new UUID(in.readLong(), in.readLong()), in.readLong());
+            case TYPE_TEMPLATE -> {
+                ItemKey key = ItemKey.of(in.readLong(), in.readLong());
+                NbtCompound wrapper = NbtIo.readCompound(in, NbtSizeTracker.ofUnlimitedBytes());
+                handler.onTemplate(seq, key, wrapper.get("item"));
+            }
+            default -> PortableStorage.LOGGER.warn("Unknown journal record type {} (seq {})", type, seq);
+        }
+        return seq;
+    }
+
+    /**
+     * 创建新的活动段并启动组提交线程。
+     */
+    public void start() throws IOException {
+        synchronized (ioLock) {
+            openNewSegment();
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "StorageJournal-Flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (Exception e) {
+                PortableStorage.LOGGER.error("Failed to flush storage journal", e);
+            }
+        }, GROUP_COMMIT_INTERVAL_MS, GROUP_COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // ===== 追加记录 =====
+
+    public void logAdd(UUID player, ItemKey key, long count, long ts) {
+        appendCount(TYPE_ADD, player, key, count, ts);
+    }
+
+    public void logRemove(UUID player, ItemKey key, long count, long ts) {
+        appendCount(TYPE_REMOVE, player, key, count, ts);
+    }
+
+    public void logClear(UUID player, long ts) {
+        synchronized (bufferLock) {
+            if (closed) return;
+            try {
+                beginRecord(TYPE_CLEAR);
+                recordOut.writeLong(player.getMostSignificantBits());
+                recordOut.writeLong(player.getLeastSignificantBits());
+                recordOut.writeLong(ts);
+                endRecord();
+            } catch (IOException e) {
+                PortableStorage.LOGGER.error("Failed to encode journal record", e);
+            }
+        }
+    }
+
+    public void logTemplate(ItemKey key, NbtElement item) {
+        if (item == null) return;
+        NbtCompound wrapper = new NbtCompound();
+        wrapper.put("item", item);
+        synchronized (bufferLock) {
+            if (closed) return;
+            try {
+                beginRecord(TYPE_TEMPLATE);
+                recordOut.writeLong(key.hi());
+                recordOut.writeLong(key.lo());
+                NbtIo.writeCompound(wrapper, recordOut);
+                endRecord();
+            } catch (IOException e) {
+                PortableStorage.LOGGER.error("Failed to encode journal record", e);
+            }
+        }
+    }
+
+    private void appendCount(byte type, UUID player, ItemKey key, long count, long ts) {
+        synchronized (bufferLock) {
+            if (closed) return;
+            try {
+                beginRecord(type);
+                recordOut.writeLong(player.getMostSignificantBits());
+                recordOut.writeLong(player.getLeastSignificantBits());
+                recordOut.writeLong(key.hi());
+                recordOut.writeLong(key.lo());
+                recordOut.writeLong(count);
+                recordOut.writeLong(ts);
+                endRecord();
+            } catch (IOException e) {
+                PortableStorage.LOGGER.error("Failed to encode journal record", e);
+            }
+        }
+    }
+
+    private void beginRecord(byte type) throws IOException {
+        record.reset();
+        recordOut.writeByte(type);
+        recordOut.writeLong(nextSeq++);
+    }
+
+    private void endRecord() throws IOException {
+        int len = record.size();
+        crc.reset();
+        crc.update(record.array(), 0, len);
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(len);
+        out.write(record.array(), 0, len);
+        out.writeInt((int) crc.getValue());
+        activeHasRecords = true;
+        recordsAppended.incrementAndGet();
+    }
+
+    /**
+     * 已分配的最大序号；在持有玩家条目锁时读取，可作为该玩家快照的日志位置。
+     */
+    public long lastSeq() {
+        synchronized (bufferLock) {
+            return nextSeq - 1;
+        }
+    }
+
+    // ===== 写入与压缩 =====
+
+    /**
+     * 将缓冲区中的记录一次性写入活动段并 fsync。
+     */
+    public void flush() throws IOException {
+        synchronized (ioLock) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() throws IOException {
+        if (activeChannel == null) return;
+        RecordBuffer batch;
+        synchronized (bufferLock) {
+            if (pending.size() == 0) return;
+            batch = pending;
+            pending = new RecordBuffer(64 * 1024);
+        }
+        ByteBuffer bb = ByteBuffer.wrap(batch.array(), 0, batch.size());
+        while (bb.hasRemaining()) {
+            activeChannel.write(bb);
+        }
+        activeChannel.force(false);
+        bytesWritten.addAndGet(batch.size());
+        syncCount.incrementAndGet();
+    }
+
+    /**
+     * 封存当前活动段并开启新段（保存快照前调用）。
+     * @return 截至目前的全部已封存段；快照写出成功后交给 {@link #deleteSegments(List)}
+     */
+    public List<Path> roll() throws IOException {
+        synchronized (ioLock) {
+            boolean hasRecords;
+            synchronized (bufferLock) {
+                hasRecords = activeHasRecords;
+            }
+            if (hasRecords && activeChannel != null) {
+                flushLocked();
+                activeChannel.close();
+                sealedSegments.add(activePath);
+                openNewSegment();
+            }
+            return new ArrayList<>(sealedSegments);
+        }
+    }
+
+    public void deleteSegments(List<Path> segments) {
+        synchronized (ioLock) {
+            for (Path p : segments) {
+                try {
+                    Files.deleteIfExists(p);
+                    sealedSegments.remove(p);
+                } catch (IOException e) {
+                    PortableStorage.LOGGER.warn("Failed to delete compacted journal segment {}", p, e);
+                }
+            }
+        }
+    }
+
+    private void openNewSegment() throws IOException {
+        Path path = StoragePaths.getJournalSegment(server, nextSegmentId++);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(16);
+        synchronized (bufferLock) {
+            header.putInt(MAGIC).putInt(VERSION).putLong(nextSeq);
+            activeHasRecords = false;
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(true);
+        activeChannel = channel;
+        activePath = path;
+    }
+
+    /**
+     * 停止组提交线程并落盘剩余记录。
+     */
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (ioLock) {
+            try {
+                flushLocked();
+            } catch (IOException e) {
+                PortableStorage.LOGGER.error("Failed to flush storage journal on close", e);
+            }
+            synchronized (bufferLock) {
+                closed = true;
+            }
+            if (activeChannel != null) {
+                try {
+                    activeChannel.close();
+                } catch (IOException ignored) {}
+                activeChannel = null;
+            }
+        }
+    }
+
+    public String getStats() {
+        long syncs = syncCount.get();
+        long records = recordsAppended.get();
+        return String.format("Journal: %d records, %d bytes, %d fsyncs (%.1f records/fsync), %d sealed segments",
+            records, bytesWritten.get(), syncs, syncs == 0 ? 0.0 : (double) records / syncs, sealedSegments.size());
+    }
+}
@@ -2,9 +2,7 @@ package com.portable.storage.newstore;
 
 import com.portable.storage.PortableStorage;
 import com.portable.storage.config.ServerConfig;
-import com.portable.storage.net.ServerNetworkingHandlers;
 import com.portable.storage.player.PlayerStorageAccess;
-import com.portable.storage.player.StoragePersistence;
 import com.portable.storage.storage.StorageInventory;
 import com.portable.storage.storage.StorageType;
 
@@ -16,7 +14,6 @@ import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayerEntity;
 
 import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.UUID;
 
 import java.io.ByteArrayOutputStream;
@@ -51,18 +48,13 @@ public final class NewStoreService {
         }
         
         TemplateIndex index = StorageMemoryCache.getTemplateIndex();
-        String key = ItemKeyHasher.hash(stack, player.getRegistryManager());
-        if (key == null || key.isEmpty()) return 0;
+        ItemKey key = ItemKeyHasher.hash(stack, player.getRegistryManager());
+        if (key == null) return 0;
         
         // 单种物品堆叠上限检查（-1 表示不限制）
         long perItemLimit = config.getSingleItemStackLimit();
         if (perItemLimit < 0) perItemLimit = Long.MAX_VALUE;
-        long currentCount = 0L;
-        {
-            Map<String, PlayerStore.Entry> entries = PlayerStore.readAll(server, player.getUuid());
-            PlayerStore.Entry e = entries.get(key);
-            if (e != null) currentCount = Math.max(0L, e.count);
-        }
+        long currentCount = PlayerStore.getCount(server, player.getUuid(), key);
         long remainingCap = perItemLimit - currentCount;
         if (remainingCap <= 0) {
             return 0;
@@ -82,18 +74,12 @@ public final class NewStoreService {
         
         // 如果模板不存在，在内存中创建
         if (index.find(key) == null) {
-            // 分配切片ID
-            int slice = index.getOrAllocateSlice();
-            
-            // 创建新模板条目
-            index.put(key, slice, 0);
-            
-            // 将模板添加到内存缓存
-            StorageMemoryCache.addTemplate(key, stack.copy());
+            // 创建新模板条目并加入内存缓存（同时写入变更日志）
+            StorageMemoryCache.registerNewTemplate(key, stack.copy());
         } else if (!StorageMemoryCache.getTemplateCache().containsKey(key)) {
             // 模板索引已存在但内存缓存缺失时，补写缓存，避免界面不可见
             StorageMemoryCache.addTemplate(key, stack.copy());
-            StorageMemoryCache.markTemplateIndexDirty();
+            StorageMemoryCache.markTemplateDirty(key);
         }
         
         // 纯内存操作：更新玩家数据和引用计数
@@ -103,7 +89,7 @@ public final class NewStoreService {
         
         // 标记为脏，由定时任务处理文件IO
         StorageMemoryCache.markTemplateIndexDirty();
-        ServerNetworkingHandlers.sendSync(player);
+        com.portable.storage.sync.SyncScheduler.requestStorageSync(player);
         return allowed;
     }
 
@@ -112,18 +98,13 @@ public final class NewStoreService {
         
         // 纯内存操作：不进行文件IO
         TemplateIndex index = StorageMemoryCache.getTemplateIndex();
-        String key = ItemKeyHasher.hash(stack, lookup);
-        if (key == null || key.isEmpty()) return;
+        ItemKey key = ItemKeyHasher.hash(stack, lookup);
+        if (key == null) return;
         
         // 单种物品堆叠上限检查（-1 表示不限制）
         long perItemLimit = ServerConfig.getInstance().getSingleItemStackLimit();
         if (perItemLimit < 0) perItemLimit = Long.MAX_VALUE;
-        long currentCount = 0L;
-        {
-            Map<String, PlayerStore.Entry> entries = PlayerStore.readAll(server, uuid);
-            PlayerStore.Entry e = entries.get(key);
-            if (e != null) currentCount = Math.max(0L, e.count);
-        }
+        long currentCount = PlayerStore.getCount(server, uuid, key);
         long remainingCap = perItemLimit - currentCount;
         if (remainingCap <= 0) {
             return; // 已达上限，忽略
@@ -133,18 +114,12 @@ public final class NewStoreService {
         
         // 如果模板不存在，在内存中创建
         if (index.find(key) == null) {
-            // 分配切片ID
-            int slice = index.getOrAllocateSlice();
-            
-            // 创建新模板条目
-            index.put(key, slice, 0);
-            
-            // 将模板添加到内存缓存
-            StorageMemoryCache.addTemplate(key, stack.copy());
+            // 创建新模板条目并加入内存缓存（同时写入变更日志）
+            StorageMemoryCache.registerNewTemplate(key, stack.copy());
         } else if (!StorageMemoryCache.getTemplateCache().containsKey(key)) {
             // 模板索引已存在但内存缓存缺失时，补写缓存
             StorageMemoryCache.addTemplate(key, stack.copy());
-            StorageMemoryCache.markTemplateIndexDirty();
+            StorageMemoryCache.markTemplateDirty(key);
         }
         
         // 更新玩家数据和引用计数
@@ -160,8 +135,8 @@ public final class NewStoreService {
         if (player == null || variant == null || variant.isEmpty() || want <= 0) return 0;
         MinecraftServer server = player.getServer();
         if (server == null) return 0;
-        String key = ItemKeyHasher.hash(variant, player.getRegistryManager());
-        if (key == null || key.isEmpty()) return 0;
+        ItemKey key = ItemKeyHasher.hash(variant, player.getRegistryManager());
+        if (key == null) return 0;
         
         // 减少玩家物品数量
         long taken = PlayerStore.remove(server, player.getUuid(), key, want, System.currentTimeMillis());
@@ -172,14 +147,14 @@ public final class NewStoreService {
             
             // 如果引用计数为0，标记为待删除（不立即删除文件）
             if (index.find(key) != null && index.find(key).ref <= 0) {
-                // 从内存缓存中移除模板
+                // 从内存缓存中移除模板，切片删除由定时保存批量处理
                 StorageMemoryCache.getTemplateCache().remove(key);
-                // 标记模板索引为脏，由定时任务处理文件删除
+                StorageMemoryCache.markTemplateRemoved(key);
             }
             
             // 标记为脏，由定时任务处理文件IO
             StorageMemoryCache.markTemplateIndexDirty();
-            ServerNetworkingHandlers.sendSync(player);
+            com.portable.storage.sync.SyncScheduler.requestStorageSync(player);
         }
         return taken;
     }
@@ -189,8 +164,8 @@ public final class NewStoreService {
      */
     public static ItemStack takeFromNewStore(MinecraftServer server, java.util.UUID uuid, ItemStack variant, int want) {
         if (server == null || uuid == null || variant == null || variant.isEmpty() || want <= 0) return ItemStack.EMPTY;
-        String key = ItemKeyHasher.hash(variant, null);
-        if (key == null || key.isEmpty()) return ItemStack.EMPTY;
+        ItemKey key = ItemKeyHasher.hash(variant, null);
+        if (key == null) return ItemStack.EMPTY;
         
         // 减少玩家物品数量
         long taken = PlayerStore.remove(server, uuid, key, want, System.currentTimeMillis());
@@ -201,9 +176,9 @@ public final class NewStoreService {
             
             // 如果引用计数为0，标记为待删除（不立即删除文件）
             if (index.find(key) != null && index.find(key).ref <= 0) {
-                // 从内存缓存中移除模板
+                // 从内存缓存中移除模板，切片删除由定时保存批量处理
                 StorageMemoryCache.getTemplateCache().remove(key);
-                // 标记模板索引为脏，由定时任务处理文件删除
+                StorageMemoryCache.markTemplateRemoved(key);
             }
             
             // 标记为脏，由定时任务处理文件IO
@@ -225,13 +200,10 @@ public final class NewStoreService {
         
         UUID uuid = player.getUuid();
         
-        // 获取玩家当前的所有存储条目
-        Map<String, PlayerStore.Entry> entries = PlayerStore.readAll(server, uuid);
-        
         // 更新引用计数（减少所有物品的引用）
         TemplateIndex index = StorageMemoryCache.getTemplateIndex();
-        for (PlayerStore.Entry entry : entries.values()) {
-            if (entry.key != null && !entry.key.isEmpty() && entry.count > 0) {
+        for (PlayerStore.Entry entry : PlayerStore.view(server, uuid).values()) {
+            if (entry.key != null && entry.count > 0) {
                 index.incRef(entry.key, -entry.count);
             }
         }
@@ -246,123 +218,27 @@ public final class NewStoreService {
     }
 
     /**
-     * 构建共享视图：合并所有相关玩家的旧版+新版存储
+     * 共享视图：所有相关玩家旧版+新版存储的合并结果。
+     * 由 {@link MergedViewCache} 按变更事件原地维护，返回同一版本内共享的只读快照。
      */
     public static StorageInventory buildSharedView(MinecraftServer server, java.util.UUID viewerUuid, java.util.Set<java.util.UUID> sharedUuids) {
-        StorageInventory agg = new StorageInventory(0);
-        if (server == null || sharedUuids == null || sharedUuids.isEmpty()) return agg;
-        
-        // 1) 先合并旧版存储
-        for (java.util.UUID uuid : sharedUuids) {
-            var legacy = StoragePersistence.loadStorage(server, uuid);
-            for (int i = 0; i < legacy.getCapacity(); i++) {
-                ItemStack disp = legacy.getDisplayStack(i);
-                if (disp.isEmpty()) continue;
-                long cnt = legacy.getCountByIndex(i);
-                if (cnt <= 0) continue;
-                long left = cnt;
-                while (left > 0) {
-                    int chunk = (int) Math.min(Integer.MAX_VALUE, left);
-                    ItemStack copy = disp.copy();
-                    copy.setCount(chunk);
-                    agg.insertItemStackWithOriginalTimestamp(copy, legacy.getTimestampByIndex(i));
-                    left -= chunk;
-                }
-            }
-        }
-        
-        // 2) 再合并新版存储
-        // 使用内存缓存中的模板索引
-        TemplateIndex index = StorageMemoryCache.getTemplateIndex();
-        // 使用服务器的注册表上下文，确保附魔等基于注册表的数据正确解析
-        var lookup = server.getRegistryManager();
-        for (java.util.UUID uuid : sharedUuids) {
-            var entries = PlayerStore.readAll(server, uuid);
-            for (PlayerStore.Entry e : entries.values()) {
-                if (e.count <= 0) continue;
-                // 优先从内存缓存获取模板
-                ItemStack stack = StorageMemoryCache.getTemplateCache().get(e.key);
-                if (stack == null || stack.isEmpty()) {
-                    // 如果内存缓存中没有，则从文件加载
-                    stack = TemplateSlices.getTemplate(() -> server, index, e.key, lookup);
-                    if (stack != null && !stack.isEmpty()) {
-                        // 将加载的模板添加到内存缓存
-                        StorageMemoryCache.addTemplate(e.key, stack);
-                    }
-                }
-                if (stack == null || stack.isEmpty()) continue;
-                long left = e.count;
-                while (left > 0) {
-                    int chunk = (int) Math.min(Integer.MAX_VALUE, left);
-                    ItemStack copy = stack.copy();
-                    copy.setCount(chunk);
-                    agg.insertItemStackWithOriginalTimestamp(copy, e.ts);
-                    left -= chunk;
-                }
-            }
-        }
-        return agg;
+        return MergedViewCache.snapshot(server, sharedUuids);
     }
 
     /**
-     * 从共享视图中提取物品（按优先级：旧版 -> 新版）
+     * 从共享视图中提取物品（按优先级：旧版 -> 新版）。
+     * 通过 {@link StorageTransaction} 先规划再一次性提交，每个旧版仓库最多读写一次。
      */
     public static long takeFromSharedView(MinecraftServer server, java.util.UUID viewerUuid, java.util.Set<java.util.UUID> sharedUuids, ItemStack variant, int want) {
         if (server == null || sharedUuids == null || sharedUuids.isEmpty() || variant == null || variant.isEmpty() || want <= 0) return 0;
         
-        long remaining = want;
-        long got = 0;
-        
-        // 1) 先从旧版存储提取
-        for (java.util.UUID uuid : sharedUuids) {
-            if (remaining <= 0) break;
-            var legacy = StoragePersistence.loadStorage(server, uuid);
-            for (int i = 0; i < legacy.getCapacity() && remaining > 0; i++) {
-                ItemStack disp = legacy.getDisplayStack(i);
-                if (disp.isEmpty()) continue;
-                if (net.minecraft.item.ItemStack.areItemsAndComponentsEqual(disp, variant)) {
-                    long can = Math.min(remaining, legacy.getCountByIndex(i));
-                    if (can > 0) {
-                        long t = legacy.takeByIndex(i, can, System.currentTimeMillis());
-                        got += t;
-                        remaining -= t;
-                    }
-                }
-            }
-            // 保存旧版变更
-            StoragePersistence.saveStorage(server, uuid, legacy);
-        }
-        
-        // 2) 再从新版存储提取
-        if (remaining > 0) {
-            // 使用服务器的注册表上下文，确保与存储时使用相同的上下文
-            var lookup = server.getRegistryManager();
-            String key = ItemKeyHasher.hash(variant, lookup);
-            if (key != null && !key.isEmpty()) {
-                for (java.util.UUID uuid : sharedUuids) {
-                    if (remaining <= 0) break;
-                    long taken = PlayerStore.remove(server, uuid, key, remaining, System.currentTimeMillis());
-                    if (taken > 0) {
-                        got += taken;
-                        remaining -= taken;
-                    }
-                }
-                if (got > 0) {
-                    // 使用内存缓存中的模板索引
-                    TemplateIndex index = StorageMemoryCache.getTemplateIndex();
-                    index.incRef(key, -got);
-                    if (index.find(key) != null && index.find(key).ref <= 0) {
-                        TemplateSlices.removeTemplate(() -> server, index, key);
-                        // 从内存缓存中移除模板
-                        StorageMemoryCache.getTemplateCache().remove(key);
-                    }
-                    // 标记模板索引为脏，由定时任务处理
-                    StorageMemoryCache.markTemplateIndexDirty();
-                }
-            }
+        StorageTransaction tx = StorageTransaction.begin(server, sharedUuids);
+        long got = tx.reserve(variant, want);
+        if (got <= 0) {
+            tx.abort();
+            return 0;
         }
-        
-        return got;
+        return tx.commit() ? got : 0;
     }
     
     
@@ -403,14 +279,11 @@ public final class NewStoreService {
         if (itemStack.isEmpty()) return false;
         
         // 生成物品键
-        String key = ItemKeyHasher.hash(itemStack, server.getRegistryManager());
+        ItemKey key = ItemKeyHasher.hash(itemStack, server.getRegistryManager());
         if (key == null) return false;
         
         // 检查玩家数据中是否有该物品
-        Map<String, PlayerStore.Entry> entries = PlayerStore.readAll(server, ownerUuid);
-        PlayerStore.Entry entry = entries.get(key);
-        
-        return entry != null && entry.count > 0;
+        return PlayerStore.getCount(server, ownerUuid, key) > 0;
     }
     
     /**
@@ -425,18 +298,15 @@ public final class NewStoreService {
         MinecraftServer server = player.getServer();
         if (server == null) return false;
         
-        // 获取玩家当前存储的物品种类数量
-        var entries = PlayerStore.readAll(server, player.getUuid());
-        int currentTypeCount = entries.size();
-        
         // 检查要添加的物品是否已经存在
-        String key = ItemKeyHasher.hash(stack, player.getRegistryManager());
-        if (key != null && !key.isEmpty() && entries.containsKey(key)) {
+        ItemKey key = ItemKeyHasher.hash(stack, player.getRegistryManager());
+        if (key != null && PlayerStore.getCount(server, player.getUuid(), key) > 0) {
             // 物品已存在，可以添加（只是增加数量）
             return true;
         }
         
         // 物品不存在，检查是否已达到容量限制
+        int currentTypeCount = PlayerStore.variantCount(server, player.getUuid());
         PlayerStorageAccess access = (PlayerStorageAccess) player;
         StorageType storageType = access.portableStorage$getStorageType();
         return currentTypeCount < storageType.getCapacityLimit();
@@ -453,17 +323,8 @@ public final class NewStoreService {
         MinecraftServer server = player.getServer();
         if (server == null) return true;
         
-        // 获取玩家当前存储的所有条目
-        Map<String, PlayerStore.Entry> entries = PlayerStore.readAll(server, player.getUuid());
-        
-        // 检查是否有任何物品数量大于0
-        for (PlayerStore.Entry entry : entries.values()) {
-            if (entry != null && entry.count > 0) {
-                return false; // 有物品，存储不为空
-            }
-        }
-        
-        return true; // 没有物品或所有物品数量为0，存储为空
+        // 没有物品或所有物品数量为0，存储为空
+        return PlayerStore.isEmpty(server, player.getUuid());
     }
 }
 
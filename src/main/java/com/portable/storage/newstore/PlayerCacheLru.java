@@ -0,0 +1,149 @@
+package com.portable.storage.newstore;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 玩家缓存的加权 LRU。
+ * 按访问顺序排列（访问序 LinkedHashMap，查找与移动均为 O(1)），每名玩家的权重为 1 + 条目数，
+ * 权重在条目放回缓存时重新计算。淘汰由 {@link StorageMemoryCache} 驱动：干净条目直接移除，
+ * 脏条目交由保存线程写出后再移除。
+ *
+ * 所有方法在实例锁内执行；调用方不得在持有玩家条目锁时调用本类，以免锁顺序颠倒。
+ */
+final class PlayerCacheLru {
+    private static final class Node {
+        final StorageMemoryCache.PlayerCacheEntry entry;
+        int weight;
+
+        Node(StorageMemoryCache.PlayerCacheEntry entry, int weight) {
+            this.entry = entry;
+            this.weight = weight;
+        }
+    }
+
+    private final LinkedHashMap<UUID, Node> map = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalWeight = 0L;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong evictionFlushes = new AtomicLong();
+    private final AtomicLong evictionFlushFailures = new AtomicLong();
+
+    static int weigh(StorageMemoryCache.PlayerCacheEntry entry) {
+        return 1 + entry.entries.size();
+    }
+
+    synchronized StorageMemoryCache.PlayerCacheEntry get(UUID uuid) {
+        Node n = map.get(uuid);
+        return n != null ? n.entry : null;
+    }
+
+    /**
+     * 放入或刷新条目：移到最近访问端并重新计算权重
+     */
+    synchronized void put(UUID uuid, StorageMemoryCache.PlayerCacheEntry entry) {
+        int weight = weigh(entry);
+        Node existing = map.get(uuid);
+        if (existing != null && existing.entry == entry) {
+            totalWeight += weight - existing.weight;
+            existing.weight = weight;
+            return;
+        }
+        Node previous = map.put(uuid, new Node(entry, weight));
+        if (previous != null) totalWeight -= previous.weight;
+        totalWeight += weight;
+    }
+
+    synchronized StorageMemoryCache.PlayerCacheEntry remove(UUID uuid) {
+        Node n = map.remove(uuid);
+        if (n == null) return null;
+        totalWeight -= n.weight;
+        return n.entry;
+    }
+
+    /**
+     * 仅当缓存中仍是该条目且已无未保存变更时移除，计为一次淘汰
+     */
+    synchronized boolean removeIfClean(UUID uuid, StorageMemoryCache.PlayerCacheEntry entry) {
+        Node n = map.get(uuid);
+        if (n == null || n.entry != entry || entry.dirty) return false;
+        map.remove(uuid);
+        totalWeight -= n.weight;
+        evictions.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 从最久未访问端淘汰，直到剩余权重不超过上限（至少保留一名玩家，且不淘汰 keep）。
+     * 干净条目立即移除；脏条目不在此处写盘，作为待写出列表返回（已在 pending 中的不重复返回）。
+     */
+    synchronized List<Map.Entry<UUID, StorageMemoryCache.PlayerCacheEntry>> evict(long maxWeight, UUID keep, Set<UUID> pending) {
+        List<Map.Entry<UUID, StorageMemoryCache.PlayerCacheEntry>> dirty = new ArrayList<>();
+        long projected = totalWeight;
+        Iterator<Map.Entry<UUID, Node>> it = map.entrySet().iterator();
+        while (projected > maxWeight && map.size() > 1 && it.hasNext()) {
+            Map.Entry<UUID, Node> e = it.next();
+            if (e.getKey().equals(keep)) continue;
+            Node n = e.getValue();
+            projected -= n.weight;
+            if (!n.entry.dirty) {
+                it.remove();
+                totalWeight -= n.weight;
+                evictions.incrementAndGet();
+            } else if (!pending.contains(e.getKey())) {
+                dirty.add(Map.entry(e.getKey(), n.entry));
+            }
+        }
+        return dirty;
+    }
+
+    synchronized List<Map.Entry<UUID, StorageMemoryCache.PlayerCacheEntry>> snapshot() {
+        List<Map.Entry<UUID, StorageMemoryCache.PlayerCacheEntry>> out = new ArrayList<>(map.size());
+        for (Map.Entry<UUID, Node> e : map.entrySet()) {
+            out.add(Map.entry(e.getKey(), e.getValue().entry));
+        }
+        return out;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    synchronized long totalWeight() {
+        return totalWeight;
+    }
+
+    synchronized void clear() {
+        map.clear();
+        totalWeight = 0L;
+    }
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    void recordEvictionFlush(boolean success) {
+        (success ? evictionFlushes : evictionFlushFailures).incrementAndGet();
+    }
+
+    String getStats(long maxWeight) {
+        long h = hits.get();
+        long m = misses.get();
+        long total = h + m;
+        return String.format("Player cache: %d players, weight %d/%d, hits=%d, misses=%d, hitRate=%.1f%%, evictions=%d (flushed %d, flush failures %d)",
+            size(), totalWeight(), maxWeight, h, m, total == 0 ? 0.0 : (h * 100.0 / total),
+            evictions.get(), evictionFlushes.get(), evictionFlushFailures.get());
+    }
+}
@@ -1,26 +1,34 @@
 package com.portable.storage.newstore;
 
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 
+import com.portable.storage.sync.ChangeAccumulator;
+
 import net.minecraft.server.MinecraftServer;
 
 /**
  * 玩家侧计数存储：players/{uuid}.nbt
  * 结构：
  * - sessionId: long (optional)
- * - entries: List( { key:string, count:long, ts:long } )
+ * - journalSeq: long 快照已包含的最大日志序号
+ * - entries: List( { key:string(hex), count:long, ts:long } )
  * 
- * 现在使用内存缓存，所有操作都在内存中进行，定时保存到文件
+ * 现在使用内存缓存，所有操作都在内存中进行，定时保存到文件；
+ * 每次变更在条目锁内同时追加到 {@link MutationJournal}。
+ * 保存线程只在条目锁内复制计数快照（见 {@link StorageMemoryCache.PlayerCacheEntry#snapshot}），不会观察到半完成的变更。
+ * 对外的 add/remove/writeAll 同时向 {@link ChangeAccumulator} 记录变更事件，供增量同步使用。
  */
 public final class PlayerStore {
     public static final String SESSION = "sessionId";
+    public static final String JOURNAL_SEQ = "journalSeq";
     public static final String ENTRIES = "entries";
     
 
     public static final class Entry {
-        public String key;
+        public ItemKey key;
         public long count;
         public long ts;
     }
@@ -28,16 +36,57 @@ public final class PlayerStore {
     private PlayerStore() {}
     
 
-    public static Map<String, Entry> readAll(MinecraftServer server, UUID uuid) {
+    /**
+     * 读取全部条目的可修改副本。仅需查询时请使用下方的零拷贝方法。
+     */
+    public static Map<ItemKey, Entry> readAll(MinecraftServer server, UUID uuid) {
         // 使用内存缓存，直接从缓存中读取
         StorageMemoryCache.PlayerCacheEntry cacheEntry = StorageMemoryCache.getPlayerCache(uuid, server);
         if (cacheEntry == null) {
             return new LinkedHashMap<>();
         }
-        return new LinkedHashMap<>(cacheEntry.entries);
+        synchronized (cacheEntry) {
+            return new LinkedHashMap<>(cacheEntry.entries);
+        }
     }
 
-    public static void writeAll(MinecraftServer server, UUID uuid, Map<String, Entry> entries, Long sessionId) {
+    // ===== 零拷贝查询（直接读取内存缓存，不复制条目表） =====
+
+    /**
+     * 玩家条目的只读视图，随缓存实时变化；条目对象由存储持有，调用方不得修改。
+     * 遍历期间不应对同一玩家执行写入操作。
+     */
+    public static Map<ItemKey, Entry> view(MinecraftServer server, UUID uuid) {
+        StorageMemoryCache.PlayerCacheEntry cacheEntry = StorageMemoryCache.getPlayerCache(uuid, server);
+        if (cacheEntry == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(cacheEntry.entries);
+    }
+
+    public static long getCount(MinecraftServer server, UUID uuid, ItemKey key) {
+        if (key == null) return 0L;
+        StorageMemoryCache.PlayerCacheEntry cacheEntry = StorageMemoryCache.getPlayerCache(uuid, server);
+        if (cacheEntry == null) return 0L;
+        Entry e = cacheEntry.entries.get(key);
+        return e != null ? Math.max(0L, e.count) : 0L;
+    }
+
+    public static int variantCount(MinecraftServer server, UUID uuid) {
+        StorageMemoryCache.PlayerCacheEntry cacheEntry = StorageMemoryCache.getPlayerCache(uuid, server);
+        return cacheEntry != null ? cacheEntry.entries.size() : 0;
+    }
+
+    public static boolean isEmpty(MinecraftServer server, UUID uuid) {
+        StorageMemoryCache.PlayerCacheEntry cacheEntry = StorageMemoryCache.getPlayerCache(uuid, server);
+        if (cacheEntry == null) return true;
+        for (Entry e : cacheEntry.entries.values()) {
+            if (e != null && e.count > 0) return false;
+        }
+        return true;
+    }
+
+    public static void writeAll(MinecraftServer server, UUID uuid, Map<ItemKey, Entry> entries, Long sessionId) {
         // 使用内存缓存，更新缓存中的数据
         StorageMemoryCache.PlayerCacheEntry cacheEntry = StorageMemoryCache.getPlayerCache(uuid, server);
         if (cacheEntry == null) {
@@ -45,16 +94,28 @@ public final class PlayerStore {
         }
         
         // 更新缓存
-        cacheEntry.entries.clear();
-        cacheEntry.entries.putAll(entries);
-        cacheEntry.sessionId = sessionId;
-        cacheEntry.dirty = true; // 标记为脏数据
+        long now = System.currentTimeMillis();
+        MutationJournal journal = StorageMemoryCache.getJournal();
+        synchronized (cacheEntry) {
+            cacheEntry.entries.clear();
+            cacheEntry.entries.putAll(entries);
+            cacheEntry.sessionId = sessionId;
+            cacheEntry.markDirty(); // 标记为脏数据
+            if (journal != null) {
+                journal.logClear(uuid, now);
+                for (Entry e : entries.values()) {
+                    if (e.key != null && e.count > 0) journal.logAdd(uuid, e.key, e.count, e.ts);
+                }
+            }
+        }
         
         // 将更新后的缓存条目放回缓存
-        StorageMemoryCache.playerCache.put(uuid, cacheEntry);
+        StorageMemoryCache.putPlayerCache(uuid, cacheEntry);
+        ChangeAccumulator.markOwnerChanged(uuid);
+        MergedViewCache.markOwnerChanged(uuid);
     }
 
-    public static void add(MinecraftServer server, UUID uuid, String key, long delta, long now) {
+    public static void add(MinecraftServer server, UUID uuid, ItemKey key, long delta, long now) {
         if (delta <= 0) return;
         
         // 使用内存缓存，直接在缓存中操作
@@ -63,19 +124,15 @@ public final class PlayerStore {
             cacheEntry = new StorageMemoryCache.PlayerCacheEntry(null);
         }
         
-        Entry e = cacheEntry.entries.computeIfAbsent(key, k -> new Entry());
-        e.key = key;
-        e.count = Math.max(0, e.count + delta);
-        e.ts = now;
-        
-        // 标记为脏数据
-        cacheEntry.dirty = true;
+        applyAdd(cacheEntry, uuid, key, delta, now, StorageMemoryCache.getJournal());
         
         // 将更新后的缓存条目放回缓存
-        StorageMemoryCache.playerCache.put(uuid, cacheEntry);
+        StorageMemoryCache.putPlayerCache(uuid, cacheEntry);
+        ChangeAccumulator.recordStoreChange(uuid, key, delta, now);
+        MergedViewCache.onStoreChange(server, uuid, key, delta, now);
     }
 
-    public static long remove(MinecraftServer server, UUID uuid, String key, long delta, long now) {
+    public static long remove(MinecraftServer server, UUID uuid, ItemKey key, long delta, long now) {
         if (delta <= 0) return 0;
         
         // 使用内存缓存，直接在缓存中操作
@@ -84,25 +141,51 @@ public final class PlayerStore {
             return 0;
         }
         
-        Entry e = cacheEntry.entries.get(key);
-        if (e == null || e.count <= 0) return 0;
-        
-        long take = Math.min(delta, e.count);
-        e.count -= take;
-        e.ts = now;
-        
-        if (e.count <= 0) {
-            cacheEntry.entries.remove(key);
-        }
-        
-        // 标记为脏数据
-        cacheEntry.dirty = true;
+        long take = applyRemove(cacheEntry, uuid, key, delta, now, StorageMemoryCache.getJournal());
+        if (take <= 0) return 0;
         
         // 将更新后的缓存条目放回缓存
-        StorageMemoryCache.playerCache.put(uuid, cacheEntry);
+        StorageMemoryCache.putPlayerCache(uuid, cacheEntry);
+        ChangeAccumulator.recordStoreChange(uuid, key, -take, now);
+        MergedViewCache.onStoreChange(server, uuid, key, -take, now);
         
         return take;
     }
+
+    // ===== 条目锁内的变更（不访问缓存本身，journal 为 null 时不记录日志） =====
+
+    static void applyAdd(StorageMemoryCache.PlayerCacheEntry cacheEntry, UUID uuid, ItemKey key, long delta, long now, MutationJournal journal) {
+        synchronized (cacheEntry) {
+            Entry e = cacheEntry.entries.computeIfAbsent(key, k -> new Entry());
+            e.key = key;
+            e.count = Math.max(0, e.count + delta);
+            e.ts = now;
+            
+            // 标记为脏数据
+            cacheEntry.markDirty();
+            if (journal != null) journal.logAdd(uuid, key, delta, now);
+        }
+    }
+
+    static long applyRemove(StorageMemoryCache.PlayerCacheEntry cacheEntry, UUID uuid, ItemKey key, long delta, long now, MutationJournal journal) {
+        synchronized (cacheEntry) {
+            Entry e = cacheEntry.entries.get(key);
+            if (e == null || e.count <= 0) return 0;
+            
+            long take = Math.min(delta, e.count);
+            e.count -= take;
+            e.ts = now;
+            
+            if (e.count <= 0) {
+                cacheEntry.entries.remove(key);
+            }
+            
+            // 标记为脏数据
+            cacheEntry.markDirty();
+            if (journal != null) journal.logRemove(uuid, key, take, now);
+            return take;
+        }
+    }
 }
 
 
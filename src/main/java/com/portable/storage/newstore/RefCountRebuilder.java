@@ -19,12 +19,12 @@ import net.minecraft.server.MinecraftServer;
 public final class RefCountRebuilder {
     private RefCountRebuilder() {}
 
-    public static void rebuild(MinecraftServer server, boolean cleanupZeroRefs) {
+    public static void rebuild(MinecraftServer server, boolean cleanupZeroRefs) throws IOException {
         StoragePaths.ensureDirectories(server);
         TemplateIndex index = TemplateIndex.load(server);
 
         // 累计所有玩家文件中的 key 计数
-        Map<String, Long> totals = new HashMap<>();
+        Map<ItemKey, Long> totals = new HashMap<>();
         Path playersDir = StoragePaths.getPlayersDir(server);
         try (var stream = Files.list(playersDir)) {
             stream.filter(p -> p.getFileName().toString().endsWith(".nbt")).forEach(file -> {
@@ -35,9 +35,9 @@ public final class RefCountRebuilder {
                     NbtList list = root.getList(PlayerStore.ENTRIES, NbtElement.COMPOUND_TYPE);
                     for (int i = 0; i < list.size(); i++) {
                         NbtCompound c = list.getCompound(i);
-                        String key = c.getString("key");
+                        ItemKey key = ItemKey.fromHex(c.getString("key"));
                         long count = c.getLong("count");
-                        if (key == null || key.isEmpty() || count <= 0) continue;
+                        if (key == null || count <= 0) continue;
                         totals.merge(key, count, Long::sum);
                     }
                 } catch (IOException ignored) {}
@@ -45,22 +45,26 @@ public final class RefCountRebuilder {
         } catch (IOException ignored) {}
 
         // 写回 ref
-        for (String k : index.keys()) {
+        for (ItemKey k : index.keys()) {
             TemplateIndex.Entry e = index.get(k);
             long ref = totals.getOrDefault(k, 0L);
             e.ref = Math.max(0L, ref);
         }
 
         if (cleanupZeroRefs) {
-            java.util.ArrayList<String> toRemove = new java.util.ArrayList<>();
-            for (String k : index.keys()) {
+            java.util.ArrayList<ItemKey> toRemove = new java.util.ArrayList<>();
+            for (ItemKey k : index.keys()) {
                 TemplateIndex.Entry e = index.get(k);
                 if (e != null && e.ref <= 0) {
-                    TemplateSlices.removeTemplate(() -> server, index, k);
                     toRemove.add(k);
                 }
             }
-            for (String k : toRemove) index.remove(k);
+            // 按切片批量删除（同时移除索引项）
+            TemplateSlices.BatchResult result = TemplateSlices.applyBatch(() -> server, index, java.util.Map.of(), toRemove, null);
+            if (!result.isComplete()) {
+                // 删除失败的模板保留索引项，登记后由定时保存重试
+                result.failedRemoves().forEach(StorageMemoryCache::markTemplateRemoved);
+            }
         }
 
         index.save(server);
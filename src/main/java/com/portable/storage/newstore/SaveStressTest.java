@@ -0,0 +1,140 @@
+package com.portable.storage.newstore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 保存压力测试：多个线程持续对同一玩家条目执行 add/remove，同时保存线程反复取快照写盘。
+ * 校验每次写出的文件与其快照一致、最终文件与预期模型一致，并统计快照持锁时间与变更延迟。
+ * 使用独立的条目与临时目录，不写入变更日志，也不触碰世界数据。仅供调试命令使用。
+ */
+public final class SaveStressTest {
+    private static final int WRITER_THREADS = 2;
+    private static final int KEYS_PER_WRITER = 64;
+
+    private SaveStressTest() {}
+
+    public static void run(int seconds, Consumer<String> out) {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("portable-storage-save-stress");
+            Path file = dir.resolve("player.nbt");
+            UUID uuid = UUID.randomUUID();
+            StorageMemoryCache.PlayerCacheEntry entry = new StorageMemoryCache.PlayerCacheEntry(null);
+
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicLong ops = new AtomicLong();
+            AtomicLong maxMutationNanos = new AtomicLong();
+            List<Map<ItemKey, Long>> models = new ArrayList<>();
+            List<Thread> writers = new ArrayList<>();
+
+            // 每个写线程使用互不相交的键集合，并维护自己的预期计数
+            for (int w = 0; w < WRITER_THREADS; w++) {
+                Map<ItemKey, Long> model = new HashMap<>();
+                models.add(model);
+                Random random = new Random(1000L + w);
+                List<ItemKey> keys = new ArrayList<>();
+                for (int k = 0; k < KEYS_PER_WRITER; k++) keys.add(ItemKey.of(random.nextLong(), random.nextLong()));
+
+                Thread t = new Thread(() -> {
+                    while (running.get()) {
+                        ItemKey key = keys.get(random.nextInt(keys.size()));
+                        long delta = 1 + random.nextInt(64);
+                        long now = System.currentTimeMillis();
+                        long t0 = System.nanoTime();
+                        if (random.nextInt(10) < 6) {
+                            PlayerStore.applyAdd(entry, uuid, key, delta, now, null);
+                            model.merge(key, delta, Long::sum);
+                        } else {
+                            long taken = PlayerStore.applyRemove(entry, uuid, key, delta, now, null);
+                            if (taken > 0) model.merge(key, -taken, Long::sum);
+                        }
+                        maxMutationNanos.accumulateAndGet(System.nanoTime() - t0, Math::max);
+                        ops.incrementAndGet();
+                    }
+                }, "SaveStress-Writer-" + w);
+                t.setDaemon(true);
+                writers.add(t);
+            }
+
+            long saves = 0;
+            long snapshotMismatches = 0;
+            long maxSnapshotNanos = 0;
+            long maxWriteNanos = 0;
+            long deadline = System.currentTimeMillis() + seconds * 1000L;
+
+            writers.forEach(Thread::start);
+            while (System.currentTimeMillis() < deadline) {
+                long t0 = System.nanoTime();
+                StorageMemoryCache.PlayerSnapshot snapshot = entry.snapshot(null);
+                long t1 = System.nanoTime();
+                StorageMemoryCache.writeSnapshot(snapshot, file);
+                entry.markSaved(snapshot);
+                long t2 = System.nanoTime();
+                maxSnapshotNanos = Math.max(maxSnapshotNanos, t1 - t0);
+                maxWriteNanos = Math.max(maxWriteNanos, t2 - t1);
+                saves++;
+
+                // 写出的文件必须与快照逐项一致（无撕裂状态）
+                if (!matches(StorageMemoryCache.readPlayerFile(file), snapshot)) snapshotMismatches++;
+            }
+            running.set(false);
+            for (Thread t : writers) t.join();
+
+            // 最终保存：文件应与所有写线程的模型之和一致，且条目不再为脏
+            StorageMemoryCache.PlayerSnapshot last = entry.snapshot(null);
+            StorageMemoryCache.writeSnapshot(last, file);
+            entry.markSaved(last);
+            StorageMemoryCache.PlayerCacheEntry reloaded = StorageMemoryCache.readPlayerFile(file);
+
+            Map<ItemKey, Long> expected = new HashMap<>();
+            for (Map<ItemKey, Long> model : models) {
+                model.forEach((k, v) -> { if (v > 0) expected.put(k, v); });
+            }
+            int finalMismatches = 0;
+            for (Map.Entry<ItemKey, Long> e : expected.entrySet()) {
+                PlayerStore.Entry actual = reloaded.entries.get(e.getKey());
+                if (actual == null || actual.count != e.getValue()) finalMismatches++;
+            }
+            for (ItemKey k : reloaded.entries.keySet()) {
+                if (!expected.containsKey(k)) finalMismatches++;
+            }
+
+            out.accept(String.format("%d mutations by %d threads, %d saves in %ds", ops.get(), WRITER_THREADS, saves, seconds));
+            out.accept(String.format("max snapshot (lock held) %.1f us, max serialize+write %.2f ms, max mutation %.1f us",
+                maxSnapshotNanos / 1e3, maxWriteNanos / 1e6, maxMutationNanos.get() / 1e3));
+            boolean ok = snapshotMismatches == 0 && finalMismatches == 0 && !entry.dirty;
+            out.accept(ok
+                ? "Result: OK (" + expected.size() + " keys verified)"
+                : "Result: FAILED (" + snapshotMismatches + " torn snapshots, " + finalMismatches + " final mismatches, dirty=" + entry.dirty + ")");
+        } catch (Exception e) {
+            out.accept("Stress test failed: " + e);
+        } finally {
+            if (dir != null) {
+                try (var stream = Files.list(dir)) {
+                    for (Path p : stream.toList()) Files.deleteIfExists(p);
+                    Files.deleteIfExists(dir);
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private static boolean matches(StorageMemoryCache.PlayerCacheEntry loaded, StorageMemoryCache.PlayerSnapshot snapshot) {
+        if (loaded.entries.size() != snapshot.size()) return false;
+        for (int i = 0; i < snapshot.size(); i++) {
+            PlayerStore.Entry e = loaded.entries.get(snapshot.keys()[i]);
+            if (e == null || e.count != snapshot.counts()[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,105 @@
+package com.portable.storage.newstore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import net.minecraft.component.DataComponentTypes;
+import net.minecraft.component.type.LoreComponent;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.text.Text;
+
+/**
+ * 切片查找基准：在临时目录中生成不同规模的切片，比较旧版整文件 NBT 与随机访问格式的单次查找耗时。
+ * 仅供调试命令使用，不触碰世界数据。
+ */
+public final class SliceBenchmark {
+    private static final int[] SIZES = {100, 1_000, 10_000};
+    private static final int LEGACY_LOOKUPS = 5;
+    private static final int RANDOM_ACCESS_LOOKUPS = 1_000;
+
+    private SliceBenchmark() {}
+
+    public static void run(MinecraftServer server, Consumer<String> out) {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("portable-storage-slice-bench");
+            var ops = net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, server.getRegistryManager());
+            Random random = new Random(42);
+
+            for (int size : SIZES) {
+                Map<ItemKey, NbtElement> entries = new LinkedHashMap<>();
+                NbtCompound legacyTemplates = new NbtCompound();
+                for (int i = 0; i < size; i++) {
+                    ItemStack stack = new ItemStack(Items.PAPER);
+                    stack.set(DataComponentTypes.CUSTOM_NAME, Text.literal("bench-" + i));
+                    List<Text> lore = new ArrayList<>();
+                    for (int l = 0; l < 8; l++) lore.add(Text.literal("line " + l + " of template " + i));
+                    stack.set(DataComponentTypes.LORE, new LoreComponent(lore));
+                    NbtElement nbt = ItemStack.CODEC.encodeStart(ops, stack).result().orElseThrow();
+                    ItemKey key = ItemKey.of(random.nextLong(), random.nextLong());
+                    entries.put(key, nbt);
+                    legacyTemplates.put(key.toHex(), nbt);
+                }
+                List<ItemKey> keys = new ArrayList<>(entries.keySet());
+
+                Path legacyFile = dir.resolve("legacy_" + size + ".nbt");
+                NbtCompound legacyRoot = new NbtCompound();
+                legacyRoot.put("templates", legacyTemplates);
+                NbtIo.writeCompressed(legacyRoot, legacyFile);
+
+                Path sliceFile = dir.resolve("slice_" + size + ".pss");
+                SliceFile.write(sliceFile, entries);
+
+                // 旧格式：每次查找读取并解析整个文件
+                long t0 = System.nanoTime();
+                for (int i = 0; i < LEGACY_LOOKUPS; i++) {
+                    ItemKey key = keys.get(random.nextInt(keys.size()));
+                    NbtCompound root = NbtIo.readCompressed(legacyFile, NbtSizeTracker.ofUnlimitedBytes());
+                    if (root.getCompound("templates").get(key.toHex()) == null) throw new IOException("missing template");
+                }
+                double legacyMs = (System.nanoTime() - t0) / 1e6 / LEGACY_LOOKUPS;
+
+                // 新格式：首次查找包含偏移表加载，之后每次只解压一条记录
+                SliceFile.invalidate(sliceFile);
+                long t1 = System.nanoTime();
+                if (SliceFile.read(sliceFile, keys.get(0)) == null) throw new IOException("missing template");
+                double coldMs = (System.nanoTime() - t1) / 1e6;
+
+                long t2 = System.nanoTime();
+                for (int i = 0; i < RANDOM_ACCESS_LOOKUPS; i++) {
+                    ItemKey key = keys.get(random.nextInt(keys.size()));
+                    if (SliceFile.read(sliceFile, key) == null) throw new IOException("missing template");
+                }
+                double warmUs = (System.nanoTime() - t2) / 1e3 / RANDOM_ACCESS_LOOKUPS;
+
+                out.accept(String.format("%d templates: legacy %d KB %.2f ms/lookup; random-access %d KB, first %.2f ms, then %.1f us/lookup",
+                    size, Files.size(legacyFile) / 1024, legacyMs, Files.size(sliceFile) / 1024, coldMs, warmUs));
+
+                Files.deleteIfExists(legacyFile);
+                SliceFile.delete(sliceFile);
+            }
+        } catch (Exception e) {
+            out.accept("Benchmark failed: " + e);
+        } finally {
+            if (dir != null) {
+                try {
+                    Files.deleteIfExists(dir);
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+}
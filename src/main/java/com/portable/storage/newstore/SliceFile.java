@@ -0,0 +1,416 @@
+package com.portable.storage.newstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.portable.storage.PortableStorage;
+
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtSizeTracker;
+
+/**
+ * 随机访问模板切片（slice_XXX.pss）。
+ *
+ * 格式：
+ * - 头部 [magic:int][version:int][count:int]
+ * - 偏移表 count × [keyHi:long][keyLo:long][offset:long][length:int]，按键升序，可二分查找
+ * - 数据区：每个模板单独以 zlib 压缩的 NBT（{ item: ... }）
+ *
+ * 偏移表读取一次后常驻堆内存；数据区通过文件通道定位读取（不使用 mmap：映射会在文件被替换/删除后继续占用旧数据，
+ * Windows 下还会阻止替换与删除），
+ * 单次查找只解压一条记录。改写时未变化的记录按原始字节直接复制，不解压。
+ */
+public final class SliceFile {
+    public static final int MAGIC = 0x5053534C; // "PSSL"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 12;
+    private static final int TABLE_ENTRY_BYTES = 28;
+
+    private static final Map<Path, Table> TABLES = new ConcurrentHashMap<>();
+    /**
+     * 每个切片文件的代数，文件被替换或删除时（{@link #invalidate}）递增；
+     * 加载期间代数变化的偏移表不会进入缓存，缓存中的表也按代数校验，避免长期缓存过期的偏移表。
+     */
+    private static final Map<Path, java.util.concurrent.atomic.AtomicLong> GENERATIONS = new ConcurrentHashMap<>();
+
+    /**
+     * 已加载的偏移表与数据映射。
+     */
+    private static final class Table {
+        final Path file;
+        final long[] hi;
+        final long[] lo;
+        final long[] offset;
+        final int[] length;
+        final long generation;
+
+        Table(Path file, long generation, long[] hi, long[] lo, long[] offset, int[] length) {
+            this.file = file;
+            this.generation = generation;
+            this.hi = hi;
+            this.lo = lo;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int size() {
+            return hi.length;
+        }
+
+        int find(ItemKey key) {
+            int low = 0;
+            int high = hi.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(hi[mid], lo[mid], key.hi(), key.lo());
+                if (c < 0) low = mid + 1;
+                else if (c > 0) high = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        ItemKey keyAt(int i) {
+            return ItemKey.of(hi[i], lo[i]);
+        }
+
+        byte[] raw(int i) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                return raw(ch, i);
+            }
+        }
+
+        byte[] raw(FileChannel ch, int i) throws IOException {
+            byte[] out = new byte[length[i]];
+            ByteBuffer bb = ByteBuffer.wrap(out);
+            long pos = offset[i];
+            while (bb.hasRemaining()) {
+                int n = ch.read(bb, pos);
+                if (n < 0) throw new IOException("Unexpected end of slice " + file);
+                pos += n;
+            }
+            return out;
+        }
+    }
+
+    private SliceFile() {}
+
+    private static int compare(long aHi, long aLo, long bHi, long bLo) {
+        int c = Long.compare(aHi, bHi);
+        return c != 0 ? c : Long.compare(aLo, bLo);
+    }
+
+    private static java.util.concurrent.atomic.AtomicLong generationOf(Path file) {
+        return GENERATIONS.computeIfAbsent(file, f -> new java.util.concurrent.atomic.AtomicLong());
+    }
+
+    private static Table table(Path file) throws IOException {
+        java.util.concurrent.atomic.AtomicLong generation = generationOf(file);
+        Table t = TABLES.get(file);
+        if (t != null && t.generation == generation.get()) return t;
+        long expected = generation.get();
+        Table loaded = load(file, expected);
+        // 与 invalidate 在同一个键上串行：加载期间文件被改写（代数已变）时不发布这张表
+        TABLES.compute(file, (f, current) -> generation.get() == expected ? loaded : current);
+        return loaded;
+    }
+
+    /**
+     * 文件在读取期间被替换时，表中的偏移已失效
+     */
+    private static boolean stale(Table t) {
+        return t.generation != generationOf(t.file).get();
+    }
+
+    private static Table load(Path file, long generation) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = ch.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(ch, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) throw new IOException("Not a template slice: " + file);
+            int version = header.getInt();
+            if (version != VERSION) throw new IOException("Unsupported slice version " + version + ": " + file);
+            int count = header.getInt();
+            long tableEnd = HEADER_BYTES + (long) count * TABLE_ENTRY_BYTES;
+            if (count < 0 || tableEnd > fileSize) throw new IOException("Corrupt slice offset table: " + file);
+
+            ByteBuffer table = ByteBuffer.allocate((int) (tableEnd - HEADER_BYTES));
+            readFully(ch, table, HEADER_BYTES);
+            table.flip();
+            long[] hi = new long[count];
+            long[] lo = new long[count];
+            long[] offset = new long[count];
+            int[] length = new int[count];
+            for (int i = 0; i < count; i++) {
+                hi[i] = table.getLong();
+                lo[i] = table.getLong();
+                offset[i] = table.getLong();
+                length[i] = table.getInt();
+                if (offset[i] < tableEnd || length[i] < 0 || offset[i] + length[i] > fileSize) {
+                    throw new IOException("Corrupt slice record " + i + ": " + file);
+                }
+            }
+            return new Table(file, generation, hi, lo, offset, length);
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer bb, long position) throws IOException {
+        long pos = position;
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, pos);
+            if (n < 0) throw new IOException("Unexpected end of file");
+            pos += n;
+        }
+    }
+
+    // ===== 读取 =====
+
+    /**
+     * 读取单个模板；不存在时返回 null。
+     */
+    public static NbtElement read(Path file, ItemKey key) throws IOException {
+        Table t = table(file);
+        int i = t.find(key);
+        if (i < 0) return null;
+        byte[] raw = t.raw(i);
+        if (stale(t)) {
+            // 读取期间文件被替换：旧偏移可能指向新文件的其他记录，按新表重读
+            t = table(file);
+            i = t.find(key);
+            if (i < 0) return null;
+            raw = t.raw(i);
+        }
+        return decompress(raw);
+    }
+
+    public static boolean contains(Path file, ItemKey key) throws IOException {
+        return table(file).find(key) >= 0;
+    }
+
+    public static List<ItemKey> keys(Path file) throws IOException {
+        Table t = table(file);
+        List<ItemKey> out = new ArrayList<>(t.size());
+        for (int i = 0; i < t.size(); i++) out.add(t.keyAt(i));
+        return out;
+    }
+
+    /**
+     * 一次性读取切片中指定键的原始（压缩）记录，供批量加载时自行并行解压；不存在的键忽略。
+     */
+    public static Map<ItemKey, byte[]> readRaw(Path file, Collection<ItemKey> keys) throws IOException {
+        Table t = table(file);
+        Map<ItemKey, byte[]> out = readRaw(t, keys);
+        if (stale(t)) {
+            // 同 read：读取期间文件被替换时整体按新表重读
+            out = readRaw(table(file), keys);
+        }
+        return out;
+    }
+
+    private static Map<ItemKey, byte[]> readRaw(Table t, Collection<ItemKey> keys) throws IOException {
+        Map<ItemKey, byte[]> out = new java.util.HashMap<>();
+        try (FileChannel ch = FileChannel.open(t.file, StandardOpenOption.READ)) {
+            for (ItemKey key : keys) {
+                int i = t.find(key);
+                if (i >= 0) out.put(key, t.raw(ch, i));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 各记录的压缩字节数，供压缩器估算切片中的有效数据量。
+     */
+    public static Map<ItemKey, Integer> recordSizes(Path file) throws IOException {
+        Table t = table(file);
+        Map<ItemKey, Integer> out = new java.util.HashMap<>(t.size() * 2);
+        for (int i = 0; i < t.size(); i++) out.put(t.keyAt(i), t.length[i]);
+        return out;
+    }
+
+    public static NbtElement decompress(byte[] raw) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(raw)))) {
+            NbtCompound wrapper = NbtIo.readCompound(in, NbtSizeTracker.ofUnlimitedBytes());
+            return wrapper.get("item");
+        }
+    }
+
+    public static byte[] compress(NbtElement item) throws IOException {
+        NbtCompound wrapper = new NbtCompound();
+        wrapper.put("item", item);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            NbtIo.writeCompound(wrapper, out);
+        }
+        return bytes.toByteArray();
+    }
+
+    // ===== 写入 =====
+
+    /**
+     * 写入完整切片（覆盖已有文件）。
+     */
+    public static void write(Path file, Map<ItemKey, NbtElement> entries) throws IOException {
+        Map<ItemKey, byte[]> compressed = new LinkedHashMap<>();
+        for (Map.Entry<ItemKey, NbtElement> e : entries.entrySet()) {
+            compressed.put(e.getKey(), compress(e.getValue()));
+        }
+        writeRecords(file, null, compressed, List.of());
+    }
+
+    /**
+     * 用原始（压缩）记录写入完整切片（覆盖已有文件），记录不重新编码。
+     */
+    public static void writeRaw(Path file, Map<ItemKey, byte[]> records) throws IOException {
+        writeRecords(file, null, records, List.of());
+    }
+
+    /**
+     * 改写切片：新增/覆盖 puts 中的模板，删除 removes 中的模板；其余记录原样复制。
+     * @return 是否实际改动了文件
+     */
+    public static boolean rewrite(Path file, Map<ItemKey, NbtElement> puts, Collection<ItemKey> removes) throws IOException {
+        Table existing = null;
+        if (Files.exists(file)) {
+            try {
+                existing = table(file);
+            } catch (IOException e) {
+                // 损坏的切片隔离后重建，避免用部分数据覆盖
+                Path corrupt = file.resolveSibling(file.getFileName() + ".corrupt");
+                Files.move(file, corrupt, StandardCopyOption.REPLACE_EXISTING);
+                invalidate(file);
+                PortableStorage.LOGGER.error("检测到损坏的模板切片，已隔离: {} -> {}", file, corrupt, e);
+            }
+        }
+
+        boolean anyRemoval = false;
+        if (existing != null) {
+            for (ItemKey key : removes) {
+                if (!puts.containsKey(key) && existing.find(key) >= 0) {
+                    anyRemoval = true;
+                    break;
+                }
+            }
+        }
+        if (puts.isEmpty() && !anyRemoval) return false;
+
+        Map<ItemKey, byte[]> compressed = new LinkedHashMap<>();
+        for (Map.Entry<ItemKey, NbtElement> e : puts.entrySet()) {
+            compressed.put(e.getKey(), compress(e.getValue()));
+        }
+        writeRecords(file, existing, compressed, removes);
+        return true;
+    }
+
+    private static void writeRecords(Path file, Table existing, Map<ItemKey, byte[]> added, Collection<ItemKey> removes) throws IOException {
+        // 合并：保留的旧记录（按索引引用）+ 新记录，按键排序
+        record Pending(long hi, long lo, int oldIndex, byte[] data) {
+            int length(Table t) { return data != null ? data.length : t.length[oldIndex]; }
+        }
+        List<Pending> records = new ArrayList<>();
+        if (existing != null) {
+            java.util.Set<ItemKey> dropped = new java.util.HashSet<>(removes);
+            dropped.addAll(added.keySet());
+            for (int i = 0; i < existing.size(); i++) {
+                if (dropped.contains(existing.keyAt(i))) continue;
+                records.add(new Pending(existing.hi[i], existing.lo[i], i, null));
+            }
+        }
+        for (Map.Entry<ItemKey, byte[]> e : added.entrySet()) {
+            records.add(new Pending(e.getKey().hi(), e.getKey().lo(), -1, e.getValue()));
+        }
+        records.sort((a, b) -> compare(a.hi(), a.lo(), b.hi(), b.lo()));
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                 FileChannel in = existing != null ? FileChannel.open(existing.file, StandardOpenOption.READ) : null) {
+                int count = records.size();
+                long dataStart = HEADER_BYTES + (long) count * TABLE_ENTRY_BYTES;
+                ByteBuffer head = ByteBuffer.allocate((int) dataStart);
+                head.putInt(MAGIC).putInt(VERSION).putInt(count);
+                long offset = dataStart;
+                for (Pending p : records) {
+                    int len = p.length(existing);
+                    head.putLong(p.hi()).putLong(p.lo()).putLong(offset).putInt(len);
+                    offset += len;
+                }
+                head.flip();
+                writeFully(out, head);
+
+                for (Pending p : records) {
+                    if (p.data() != null) {
+                        writeFully(out, ByteBuffer.wrap(p.data()));
+                    } else {
+                        long pos = existing.offset[p.oldIndex()];
+                        long remaining = existing.length[p.oldIndex()];
+                        while (remaining > 0) {
+                            long n = in.transferTo(pos, remaining, out);
+                            if (n <= 0) throw new IOException("Failed to copy slice record from " + existing.file);
+                            pos += n;
+                            remaining -= n;
+                        }
+                    }
+                }
+                out.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {}
+            throw e;
+        } finally {
+            invalidate(file);
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            ch.write(bb);
+        }
+    }
+
+    /**
+     * 丢弃缓存的偏移表（文件被替换或删除后调用）。
+     */
+    public static void invalidate(Path file) {
+        // 先递增代数再移除：并发加载中的旧表要么发布前看到新代数，要么发布后被这里移除
+        generationOf(file).incrementAndGet();
+        TABLES.remove(file);
+    }
+
+    /**
+     * 删除切片文件，并丢弃其偏移表与代数记录
+     */
+    public static void delete(Path file) throws IOException {
+        try {
+            Files.deleteIfExists(file);
+        } finally {
+            invalidate(file);
+            // 正在加载的读者持有旧代数对象，已在 invalidate 中递增，不会发布过期的表
+            GENERATIONS.remove(file);
+        }
+    }
+}
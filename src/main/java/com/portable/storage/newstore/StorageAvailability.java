@@ -0,0 +1,180 @@
+package com.portable.storage.newstore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.portable.storage.player.StoragePersistence;
+import com.portable.storage.storage.StorageInventory;
+
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.WorldSavePath;
+
+/**
+ * 仓库组可用量查询：按拥有者逐个查索引累加，复杂度为 O(拥有者数)，不构建合并视图。
+ * 新版存储直接查 {@link PlayerStore} 的键索引；旧版存储按拥有者缓存“物品键 -> 数量”索引，
+ * 由写入路径（{@link StoragePersistence#saveStorageChecked}、原版玩家数据保存/加载）调用 {@link #invalidateLegacy} 作废；
+ * 另外每个拥有者至多每秒校验一次玩家数据文件的修改时间与大小，兜底发现其他途径的改写。
+ */
+public final class StorageAvailability {
+    /**
+     * 单个拥有者旧版仓库的键索引；重建时整体替换，可按对象身份判断是否变化（见 {@link MergedViewCache}）
+     */
+    static final class LegacyIndex {
+        final long modified;
+        final long size;
+        /** 上次校验玩家数据文件的时间 */
+        volatile long checkedAt;
+        final Map<ItemKey, Long> counts = new HashMap<>();
+        final Map<ItemKey, ItemStack> templates = new LinkedHashMap<>();
+        final Map<ItemKey, Long> timestamps = new HashMap<>();
+
+        LegacyIndex(long modified, long size) {
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    private static final LegacyIndex EMPTY_LEGACY = new LegacyIndex(-1L, -1L);
+    /** 同一拥有者两次校验玩家数据文件的最小间隔 */
+    private static final long STAT_INTERVAL_MS = 1000L;
+    private static final Map<UUID, LegacyIndex> LEGACY = new ConcurrentHashMap<>();
+    private static volatile long queries = 0L;
+    private static volatile long legacyRebuilds = 0L;
+    private static volatile long legacyStats = 0L;
+
+    private StorageAvailability() {}
+
+    /**
+     * 仓库组内指定变体（物品与组件完全一致）的总数量
+     */
+    public static long count(MinecraftServer server, Set<UUID> owners, ItemStack variant) {
+        if (server == null || owners == null || owners.isEmpty() || variant == null || variant.isEmpty()) return 0L;
+        ItemKey key = ItemKeyHasher.hash(variant, server.getRegistryManager());
+        if (key == null) return 0L;
+        queries++;
+        long total = 0L;
+        for (UUID owner : owners) {
+            total += legacyIndex(server, owner).counts.getOrDefault(key, 0L);
+            total += PlayerStore.getCount(server, owner, key);
+        }
+        return total;
+    }
+
+    /**
+     * 仓库组内是否存在指定变体，找到第一个拥有者即返回
+     */
+    public static boolean contains(MinecraftServer server, Set<UUID> owners, ItemStack variant) {
+        if (server == null || owners == null || owners.isEmpty() || variant == null || variant.isEmpty()) return false;
+        ItemKey key = ItemKeyHasher.hash(variant, server.getRegistryManager());
+        if (key == null) return false;
+        queries++;
+        for (UUID owner : owners) {
+            if (legacyIndex(server, owner).counts.getOrDefault(key, 0L) > 0) return true;
+            if (PlayerStore.getCount(server, owner, key) > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 查找仓库组内任一该物品的变体（数量为 1 的副本），没有时返回空。
+     * 先按默认组件的变体查索引；其不存在时再查合并视图的按物品索引（{@link MergedViewCache#variantsOf}），取数量最多的变体。
+     */
+    public static ItemStack findVariant(MinecraftServer server, Set<UUID> owners, Item item) {
+        if (server == null || owners == null || owners.isEmpty() || item == null) return ItemStack.EMPTY;
+        ItemStack plain = new ItemStack(item);
+        if (plain.isEmpty()) return ItemStack.EMPTY;
+        if (contains(server, owners, plain)) return plain;
+        List<MergedViewCache.Variant> variants = MergedViewCache.variantsOf(server, owners, item);
+        return variants.isEmpty() ? ItemStack.EMPTY : variants.get(0).template();
+    }
+
+    /**
+     * 旧版仓库写入后调用，下次查询时重建该拥有者的索引
+     */
+    public static void invalidateLegacy(UUID owner) {
+        if (owner != null) LEGACY.remove(owner);
+    }
+
+    /**
+     * 拥有者旧版仓库索引的身份标记：索引重建后返回新对象，调用方按对象身份（==）判断旧版仓库是否变化
+     */
+    public static Object legacyStamp(MinecraftServer server, UUID owner) {
+        if (server == null || owner == null) return EMPTY_LEGACY;
+        return legacyIndex(server, owner);
+    }
+
+    public static void clear() {
+        LEGACY.clear();
+    }
+
+    public static String getStats() {
+        return String.format("queries=%d, legacyIndexed=%d, legacyRebuilds=%d, legacyStats=%d", queries, LEGACY.size(), legacyRebuilds, legacyStats);
+    }
+
+    static LegacyIndex legacyIndex(MinecraftServer server, UUID owner) {
+        LegacyIndex cached = LEGACY.get(owner);
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.checkedAt < STAT_INTERVAL_MS) return cached;
+
+        Path file = server.getSavePath(WorldSavePath.PLAYERDATA).resolve(owner.toString() + ".dat");
+        long modified;
+        long size;
+        legacyStats++;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            modified = attrs.lastModifiedTime().toMillis();
+            size = attrs.size();
+        } catch (IOException e) {
+            // 没有玩家数据文件：不存在旧版仓库
+            modified = -1L;
+            size = -1L;
+        }
+        if (cached != null && cached.modified == modified && cached.size == size) {
+            // 文件未变：沿用原索引（保持对象身份），只刷新校验时间
+            cached.checkedAt = now;
+            return cached;
+        }
+
+        LegacyIndex built = new LegacyIndex(modified, size);
+        built.checkedAt = now;
+        if (modified < 0) {
+            LEGACY.put(owner, built);
+            return built;
+        }
+        // 直接遍历存档中的条目列表，不构建 StorageInventory（与 StorageInventory#readNbt 的解析一致）
+        NbtCompound nbt = StoragePersistence.loadStorageNbt(server, owner);
+        if (nbt != null && nbt.contains("entries", NbtElement.LIST_TYPE)) {
+            NbtList list = nbt.getList("entries", NbtElement.COMPOUND_TYPE);
+            for (int i = 0; i < list.size(); i++) {
+                NbtCompound c = list.getCompound(i);
+                long cnt = c.getLong("count");
+                if (cnt <= 0) continue;
+                ItemStack template = StorageInventory.readTemplate(c, NbtOps.INSTANCE);
+                if (template.isEmpty()) continue;
+                ItemKey key = ItemKeyHasher.hash(template, server.getRegistryManager());
+                if (key == null) continue;
+                built.counts.merge(key, cnt, Long::sum);
+                built.templates.putIfAbsent(key, template.copyWithCount(1));
+                built.timestamps.merge(key, c.contains("ts") ? c.getLong("ts") : 0L, Math::max);
+            }
+        }
+        LEGACY.put(owner, built);
+        legacyRebuilds++;
+        return built;
+    }
+}
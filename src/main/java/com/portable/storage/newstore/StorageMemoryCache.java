@@ -3,35 +3,65 @@ package com.portable.storage.newstore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.portable.storage.PortableStorage;
+import com.portable.storage.config.ServerConfig;
 
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
 import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtOps;
 import net.minecraft.server.MinecraftServer;
 
 /**
  * 存储系统内存缓存管理器
  * 负责管理模板数据和玩家数据的内存缓存，以及定时保存
+ *
+ * 两次定时保存之间的变更同时写入 {@link MutationJournal}；启动时先重放日志，
+ * 定时保存即为日志压缩：写出快照后删除已封存的日志段。
  */
 public final class StorageMemoryCache {
-    private static final int MAX_CACHE_SIZE = 1000; // 最大缓存玩家数量
     private static final long SAVE_INTERVAL_SECONDS = 30; // 30秒保存一次
+    private static final long COMPACT_INTERVAL_MINUTES = 10; // 模板切片压缩间隔
     
     // 模板数据缓存（服务器启动时加载）
     private static volatile TemplateIndex templateIndex;
-    private static volatile Map<String, ItemStack> templateCache = new ConcurrentHashMap<>();
+    private static volatile Map<ItemKey, ItemStack> templateCache = new ConcurrentHashMap<>();
     private static volatile boolean templateIndexDirty = false; // 标记模板索引是否需要保存
+    // 待写入/待删除的模板键，保存时按切片合并处理
+    private static final java.util.Set<ItemKey> dirtyTemplates = ConcurrentHashMap.newKeySet();
+    private static final java.util.Set<ItemKey> removedTemplates = ConcurrentHashMap.newKeySet();
     
-    // 玩家数据缓存（玩家上线时加载）
-    static final Map<UUID, PlayerCacheEntry> playerCache = new ConcurrentHashMap<>();
+    // 玩家数据缓存（玩家上线时加载），按权重 LRU 淘汰
+    static final PlayerCacheLru playerCache = new PlayerCacheLru();
+    // 已提交给保存线程、写出后待淘汰的玩家
+    private static final java.util.Set<UUID> pendingEvictions = ConcurrentHashMap.newKeySet();
+    
+    // 变更日志（初始化期间打开，关闭时落盘）
+    private static volatile MutationJournal journal;
+    private static final Object SAVE_LOCK = new Object();
+    
+    // 模板预热：切片 -> 加载完成信号（预热结束后为空）
+    private static final int WARMUP_MAX_THREADS = 4;
+    private static final long WARMUP_WAIT_MS = 20;
+    private static volatile Map<Integer, CompletableFuture<Void>> sliceWarmup = Map.of();
+    private static final AtomicInteger warmupLoaded = new AtomicInteger();
+    private static volatile int warmupTotal = 0;
+    
+    // 最近一次模板压缩结果
+    private static volatile TemplateCompactor.Result lastCompaction = null;
     
     // 定时保存任务
     private static volatile ScheduledExecutorService saveScheduler;
@@ -42,14 +72,74 @@ public final class StorageMemoryCache {
      * 玩家缓存条目
      */
     public static final class PlayerCacheEntry {
-        public final Map<String, PlayerStore.Entry> entries = new LinkedHashMap<>();
+        public final Map<ItemKey, PlayerStore.Entry> entries = new LinkedHashMap<>();
         public Long sessionId;
         public volatile boolean dirty = false; // 标记是否需要保存
         public volatile long lastAccessTime = System.currentTimeMillis();
+        public long journalSeq = 0L; // 快照已包含的最大日志序号
+        long version = 0L; // 变更版本，写出成功且期间无新变更时才清除 dirty
         
         public PlayerCacheEntry(Long sessionId) {
             this.sessionId = sessionId;
         }
+        
+        /**
+         * 记录一次变更；调用方须持有条目锁
+         */
+        void markDirty() {
+            version++;
+            dirty = true;
+        }
+        
+        /**
+         * 在条目锁内把计数复制为不可变快照（只复制原始值，不构建 NBT），
+         * 序列化与写盘在锁外进行，保存期间不阻塞对该玩家的变更。
+         */
+        synchronized PlayerSnapshot snapshot(MutationJournal journal) {
+            int n = entries.size();
+            ItemKey[] keys = new ItemKey[n];
+            long[] counts = new long[n];
+            long[] ts = new long[n];
+            int i = 0;
+            for (PlayerStore.Entry e : entries.values()) {
+                if (e.key == null || e.count <= 0) continue;
+                keys[i] = e.key;
+                counts[i] = e.count;
+                ts[i] = e.ts;
+                i++;
+            }
+            long seq = journal != null ? journal.lastSeq() : journalSeq;
+            return new PlayerSnapshot(version, seq, sessionId, i, keys, counts, ts);
+        }
+        
+        /**
+         * 快照写出成功：推进日志位置；期间没有新变更时清除 dirty
+         */
+        synchronized void markSaved(PlayerSnapshot snapshot) {
+            journalSeq = Math.max(journalSeq, snapshot.journalSeq());
+            if (version == snapshot.version()) dirty = false;
+        }
+    }
+    
+    /**
+     * 玩家条目在某一版本的只读快照
+     */
+    record PlayerSnapshot(long version, long journalSeq, Long sessionId, int size, ItemKey[] keys, long[] counts, long[] ts) {
+        NbtCompound toNbt() {
+            NbtCompound root = new NbtCompound();
+            root.putLong(PlayerStore.JOURNAL_SEQ, journalSeq);
+            if (sessionId != null) root.putLong(PlayerStore.SESSION, sessionId);
+            NbtList list = new NbtList();
+            for (int i = 0; i < size; i++) {
+                NbtCompound c = new NbtCompound();
+                c.putString("key", keys[i].toHex());
+                c.putLong("count", counts[i]);
+                c.putLong("ts", ts[i]);
+                list.add(c);
+            }
+            root.put(PlayerStore.ENTRIES, list);
+            return root;
+        }
     }
     
     private StorageMemoryCache() {}
@@ -61,6 +151,10 @@ public final class StorageMemoryCache {
         // 如果已经初始化，先清理缓存再重新初始化
         if (isInitialized) {
             PortableStorage.LOGGER.info("Reinitializing storage memory cache...");
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
             clearAllCaches();
         } else {
             PortableStorage.LOGGER.info("Initializing storage memory cache...");
@@ -69,6 +163,15 @@ public final class StorageMemoryCache {
         // 保存服务器实例
         currentServer = server;
         
+        // 注册表上下文可能已变化，清空物品键缓存
+        ItemKeyHasher.clearCache();
+        
+        // 加载模板索引（必要时迁移键方案）
+        loadTemplateIndex(server);
+        
+        // 重放崩溃遗留的变更日志，并开始记录新的变更
+        openJournal(server);
+        
         // 加载模板数据到内存
         loadTemplatesToMemory(server);
         
@@ -108,6 +211,12 @@ public final class StorageMemoryCache {
             PortableStorage.LOGGER.warn("No server instance available for final save");
         }
         
+        // 落盘剩余日志记录（保存之后产生的变更会在下次启动时重放）
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        
         // 清理所有缓存数据
         clearAllCaches();
         
@@ -123,9 +232,12 @@ public final class StorageMemoryCache {
         templateIndex = null;
         templateCache.clear();
         templateIndexDirty = false;
+        dirtyTemplates.clear();
+        removedTemplates.clear();
         
         // 清理玩家缓存
         playerCache.clear();
+        pendingEvictions.clear();
         
         // 清理服务器实例
         currentServer = null;
@@ -133,46 +245,249 @@ public final class StorageMemoryCache {
         PortableStorage.LOGGER.info("All caches cleared");
     }
     
+    /**
+     * 加载模板索引（这个比较快）
+     */
+    private static void loadTemplateIndex(MinecraftServer server) {
+        templateIndex = TemplateIndex.load(server);
+        
+        // 旧键方案的数据需在任何玩家数据加载前完成迁移
+        try {
+            KeySchemeMigration.migrateIfNeeded(server, templateIndex);
+        } catch (java.io.IOException e) {
+            // 映射文件保留，下次启动继续迁移；内存中的索引若已改写为新方案，由定时保存重试写出
+            templateIndexDirty = true;
+            PortableStorage.LOGGER.error("Key scheme migration failed, will resume from the saved mapping on next startup", e);
+        }
+        
+        // 迁移完成后再将旧版整文件切片转换为随机访问格式
+        TemplateSlices.convertLegacySlices(server);
+    }
+    
+    /**
+     * 打开变更日志：重放遗留记录，写出快照并压缩日志，然后开始记录。
+     */
+    private static void openJournal(MinecraftServer server) {
+        try {
+            MutationJournal opened = MutationJournal.open(server);
+            int replayed = opened.replay(new JournalReplayer(server));
+            opened.start();
+            journal = opened;
+            
+            if (replayed > 0) {
+                PortableStorage.LOGGER.info("Replayed {} journal records, compacting into snapshots...", replayed);
+                if (saveDirtyData(server)) {
+                    // 索引中的引用计数可能落后于重放后的玩家数据，按玩家文件重建
+                    try {
+                        RefCountRebuilder.rebuild(server, false);
+                        templateIndex = TemplateIndex.load(server);
+                    } catch (java.io.IOException e) {
+                        PortableStorage.LOGGER.error("Failed to rebuild template reference counts after replay, keeping replayed index", e);
+                    }
+                } else {
+                    // 重放结果未完全落盘：保留内存中的索引与日志段，不从磁盘重新加载
+                    PortableStorage.LOGGER.warn("Replayed journal could not be fully saved, keeping segments for the next save");
+                }
+            } else {
+                // 无记录的旧段（正常关闭遗留）直接清理
+                opened.deleteSegments(opened.roll());
+            }
+        } catch (Exception e) {
+            PortableStorage.LOGGER.error("Failed to open storage journal, changes will only be persisted by periodic saves", e);
+        }
+    }
+    
+    /**
+     * 日志重放：按记录序号与玩家快照中的日志位置比较，只应用快照之后的变更。
+     */
+    private static final class JournalReplayer implements MutationJournal.ReplayHandler {
+        private final MinecraftServer server;
+        
+        JournalReplayer(MinecraftServer server) {
+            this.server = server;
+        }
+        
+        private PlayerCacheEntry target(UUID uuid, long seq) {
+            PlayerCacheEntry entry = playerCache.get(uuid);
+            if (entry == null) {
+                entry = loadPlayerFromFile(server, uuid);
+                if (entry == null) {
+                    // 快照无法读取时不能用空数据覆盖，跳过该玩家
+                    return null;
+                }
+                playerCache.put(uuid, entry);
+            }
+            return seq > entry.journalSeq ? entry : null;
+        }
+        
+        @Override
+        public void onAdd(long seq, UUID player, ItemKey key, long count, long ts) {
+            PlayerCacheEntry entry = target(player, seq);
+            if (entry == null) return;
+            PlayerStore.Entry e = entry.entries.computeIfAbsent(key, k -> new PlayerStore.Entry());
+            e.key = key;
+            e.count = Math.max(0, e.count + count);
+            e.ts = ts;
+            entry.markDirty();
+        }
+        
+        @Override
+        public void onRemove(long seq, UUID player, ItemKey key, long count, long ts) {
+            PlayerCacheEntry entry = target(player, seq);
+            if (entry == null) return;
+            PlayerStore.Entry e = entry.entries.get(key);
+            if (e == null) return;
+            e.count -= count;
+            e.ts = ts;
+            if (e.count <= 0) entry.entries.remove(key);
+            entry.markDirty();
+        }
+        
+        @Override
+        public void onClear(long seq, UUID player, long ts) {
+            PlayerCacheEntry entry = target(player, seq);
+            if (entry == null) return;
+            entry.entries.clear();
+            entry.markDirty();
+        }
+        
+        @Override
+        public void onTemplate(long seq, ItemKey key, NbtElement item) {
+            if (templateCache.containsKey(key)) return;
+            var ops = net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, server.getRegistryManager());
+            ItemStack stack = ItemStack.CODEC.parse(ops, item).result().orElse(ItemStack.EMPTY);
+            if (stack.isEmpty()) return;
+            templateCache.put(key, stack);
+            if (templateIndex.find(key) == null) {
+                templateIndex.put(key, templateIndex.getOrAllocateSlice(), 0);
+            }
+            dirtyTemplates.add(key);
+            templateIndexDirty = true;
+        }
+    }
+    
     /**
      * 加载模板数据到内存（异步加载，避免阻塞主线程）
+     * 按切片分组：每个切片只读取一次，记录在有界 ForkJoin 池中并行解码。
+     * 预热期间的缓存未命中经 {@link #getOrLoadTemplate} 短暂等待所在切片完成，不重复读取切片。
      */
     private static void loadTemplatesToMemory(MinecraftServer server) {
         try {
-            // 先加载模板索引（这个比较快）
-            templateIndex = TemplateIndex.load(server);
+            // 在调用线程上快照索引，后台线程不直接遍历可变的索引
+            Map<Integer, List<ItemKey>> bySlice = new java.util.TreeMap<>();
+            for (ItemKey key : templateIndex.keys()) {
+                TemplateIndex.Entry entry = templateIndex.get(key);
+                if (entry != null) {
+                    bySlice.computeIfAbsent(Math.max(1, entry.slice), s -> new java.util.ArrayList<>()).add(key);
+                }
+            }
+            int total = bySlice.values().stream().mapToInt(List::size).sum();
+            warmupLoaded.set(0);
+            warmupTotal = total;
+            if (total == 0) return;
             
-            // 异步预加载所有模板到内存，避免阻塞主线程
-            templateCache.clear();
+            int parallelism = Math.max(1, Math.min(WARMUP_MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+            ForkJoinPool pool = new ForkJoinPool(parallelism, p -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                t.setName("TemplateLoader-" + t.getPoolIndex());
+                t.setDaemon(true);
+                return t;
+            }, null, false);
             
-            // 在后台线程中加载模板
-            Thread templateLoader = new Thread(() -> {
-                try {
-                    int loadedCount = 0;
-                    for (String key : templateIndex.keys()) {
-                        TemplateIndex.Entry entry = templateIndex.get(key);
-                        if (entry != null) {
-                            ItemStack template = TemplateSlices.getTemplate(() -> server, templateIndex, key, server.getRegistryManager());
-                            if (!template.isEmpty()) {
-                                templateCache.put(key, template);
-                                loadedCount++;
-                            }
-                        }
-                    }
-                    PortableStorage.LOGGER.info("Asynchronously loaded {} templates to memory", loadedCount);
-                } catch (Exception e) {
-                    PortableStorage.LOGGER.error("Failed to load templates to memory asynchronously", e);
-                }
-            }, "TemplateLoader");
+            long start = System.currentTimeMillis();
+            Map<Integer, CompletableFuture<Void>> futures = new ConcurrentHashMap<>();
+            for (Map.Entry<Integer, List<ItemKey>> e : bySlice.entrySet()) {
+                int slice = e.getKey();
+                List<ItemKey> keys = e.getValue();
+                futures.put(slice, CompletableFuture.runAsync(() -> warmSlice(server, slice, keys, total), pool));
+            }
+            sliceWarmup = futures;
             
-            templateLoader.setDaemon(true);
-            templateLoader.start();
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).whenComplete((v, err) -> {
+                sliceWarmup = Map.of();
+                pool.shutdown();
+                PortableStorage.LOGGER.info("Asynchronously loaded {} templates from {} slices in {}ms",
+                    warmupLoaded.get(), bySlice.size(), System.currentTimeMillis() - start);
+            });
             
-            PortableStorage.LOGGER.info("Started asynchronous template loading...");
+            PortableStorage.LOGGER.info("Started asynchronous template loading ({} templates, {} slices, {} threads)...",
+                total, bySlice.size(), parallelism);
         } catch (Exception e) {
             PortableStorage.LOGGER.error("Failed to initialize template loading", e);
         }
     }
     
+    private static void warmSlice(MinecraftServer server, int slice, List<ItemKey> keys, int total) {
+        Path file = StoragePaths.getSliceFile(server, slice);
+        if (!Files.exists(file)) return;
+        Map<ItemKey, byte[]> raw;
+        try {
+            raw = SliceFile.readRaw(file, keys);
+        } catch (Exception e) {
+            PortableStorage.LOGGER.error("Failed to read template slice {} during warm-up", file, e);
+            return;
+        }
+        var ops = net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, server.getRegistryManager());
+        int step = Math.max(1, total / 10);
+        // 在当前 ForkJoin 池中并行解码
+        raw.entrySet().parallelStream().forEach(en -> {
+            try {
+                if (!templateCache.containsKey(en.getKey())) {
+                    NbtElement nbt = SliceFile.decompress(en.getValue());
+                    ItemStack template = ItemStack.CODEC.parse(ops, nbt).result().orElse(ItemStack.EMPTY);
+                    // 预热期间新登记的模板优先
+                    if (!template.isEmpty()) templateCache.putIfAbsent(en.getKey(), template);
+                }
+                int done = warmupLoaded.incrementAndGet();
+                if (done % step == 0) {
+                    PortableStorage.LOGGER.info("Template warm-up: {}/{}", done, total);
+                }
+            } catch (Exception e) {
+                PortableStorage.LOGGER.warn("Failed to decode template {} from slice {}", en.getKey(), slice, e);
+            }
+        });
+    }
+    
+    /**
+     * 获取模板：优先内存缓存；所在切片正在预热时短暂等待；否则按单条记录从切片读取并回填缓存。
+     */
+    public static ItemStack getOrLoadTemplate(MinecraftServer server, ItemKey key) {
+        ItemStack stack = templateCache.get(key);
+        if (stack != null) return stack;
+        if (!isInitialized || server == null) return ItemStack.EMPTY;
+        
+        TemplateIndex index = templateIndex;
+        TemplateIndex.Entry entry = index != null ? index.find(key) : null;
+        if (entry == null) return ItemStack.EMPTY;
+        
+        CompletableFuture<Void> pending = sliceWarmup.get(Math.max(1, entry.slice));
+        if (pending != null && !pending.isDone()) {
+            try {
+                pending.get(WARMUP_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception ignored) {
+                // 超时或加载失败：退回单条读取
+            }
+            stack = templateCache.get(key);
+            if (stack != null) return stack;
+        }
+        
+        stack = TemplateSlices.getTemplate(() -> server, index, key, server.getRegistryManager());
+        if (!stack.isEmpty()) {
+            ItemStack existing = templateCache.putIfAbsent(key, stack);
+            if (existing != null) return existing;
+        }
+        return stack;
+    }
+    
+    /**
+     * 模板预热是否已完成
+     */
+    public static boolean isTemplateWarmupDone() {
+        return sliceWarmup.isEmpty();
+    }
+    
     /**
      * 启动定时保存任务
      */
@@ -190,6 +505,37 @@ public final class StorageMemoryCache {
                 PortableStorage.LOGGER.error("Error in periodic save task", e);
             }
         }, SAVE_INTERVAL_SECONDS, SAVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        
+        // 与保存共用同一线程，压缩期间不会与保存交错
+        saveScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compactTemplates(server);
+            } catch (Exception e) {
+                PortableStorage.LOGGER.error("Error in template compaction task", e);
+            }
+        }, COMPACT_INTERVAL_MINUTES, COMPACT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+    
+    /**
+     * 执行一轮模板切片压缩与垃圾回收（见 {@link TemplateCompactor}）
+     * @return 本轮结果；未初始化或被中断时为 null
+     */
+    public static TemplateCompactor.Result compactTemplates(MinecraftServer server) {
+        synchronized (SAVE_LOCK) {
+            TemplateIndex index = templateIndex;
+            if (!isInitialized || index == null || server == null) return null;
+            try {
+                TemplateCompactor.Result result = TemplateCompactor.runPass(server, index);
+                lastCompaction = result;
+                if (result.changed()) {
+                    PortableStorage.LOGGER.info("Template compaction: {}", result);
+                }
+                return result;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
     }
     
     /**
@@ -203,52 +549,36 @@ public final class StorageMemoryCache {
         
         PlayerCacheEntry entry = playerCache.get(uuid);
         if (entry == null) {
+            playerCache.recordMiss();
             // 从文件加载玩家数据
             entry = loadPlayerFromFile(server, uuid);
             if (entry != null) {
-                // 检查缓存大小，如果超过限制则清理最久未访问的条目
-                if (playerCache.size() >= MAX_CACHE_SIZE) {
-                    cleanupOldestEntries();
-                }
-                playerCache.put(uuid, entry);
+                putPlayerCache(uuid, entry);
             }
         } else {
+            playerCache.recordHit();
             // 更新访问时间
             entry.lastAccessTime = System.currentTimeMillis();
         }
         return entry;
     }
     
+    /**
+     * 放回玩家缓存条目（刷新 LRU 位置与权重），超出权重上限时淘汰最久未访问的玩家。
+     * 调用方不得持有条目锁。
+     */
+    static void putPlayerCache(UUID uuid, PlayerCacheEntry entry) {
+        playerCache.put(uuid, entry);
+        evictIfNeeded(uuid);
+    }
+    
     /**
      * 从文件加载玩家数据
      */
     private static PlayerCacheEntry loadPlayerFromFile(MinecraftServer server, UUID uuid) {
         try {
             StoragePaths.ensureDirectories(server);
-            Path file = StoragePaths.getPlayerFile(server, uuid);
-            Map<String, PlayerStore.Entry> entries = new LinkedHashMap<>();
-            if (!Files.exists(file)) return new PlayerCacheEntry(null);
-            
-            NbtCompound root = net.minecraft.nbt.NbtIo.readCompressed(file, net.minecraft.nbt.NbtSizeTracker.ofUnlimitedBytes());
-            if (root == null) return new PlayerCacheEntry(null);
-            
-            if (root.contains(PlayerStore.ENTRIES, net.minecraft.nbt.NbtElement.LIST_TYPE)) {
-                NbtList list = root.getList(PlayerStore.ENTRIES, net.minecraft.nbt.NbtElement.COMPOUND_TYPE);
-                for (int i = 0; i < list.size(); i++) {
-                    NbtCompound c = list.getCompound(i);
-                    PlayerStore.Entry e = new PlayerStore.Entry();
-                    e.key = c.getString("key");
-                    e.count = c.getLong("count");
-                    e.ts = c.getLong("ts");
-                    if (e.key != null && !e.key.isEmpty() && e.count > 0) {
-                        entries.put(e.key, e);
-                    }
-                }
-            }
-            
-            PlayerCacheEntry entry = new PlayerCacheEntry(null); // sessionId 暂时设为 null
-            entry.entries.putAll(entries);
-            return entry;
+            return readPlayerFile(StoragePaths.getPlayerFile(server, uuid));
         } catch (Exception e) {
             PortableStorage.LOGGER.error("Failed to load player data for UUID: " + uuid, e);
             return null;
@@ -256,108 +586,191 @@ public final class StorageMemoryCache {
     }
     
     /**
-     * 清理最久未访问的缓存条目
+     * 读取玩家文件；文件不存在时返回空条目
      */
-    private static void cleanupOldestEntries() {
-        if (playerCache.size() < MAX_CACHE_SIZE) return;
+    static PlayerCacheEntry readPlayerFile(Path file) throws java.io.IOException {
+        if (!Files.exists(file)) return new PlayerCacheEntry(null);
         
-        // 找到最久未访问的条目
-        UUID oldestUuid = null;
-        long oldestTime = Long.MAX_VALUE;
+        NbtCompound root = net.minecraft.nbt.NbtIo.readCompressed(file, net.minecraft.nbt.NbtSizeTracker.ofUnlimitedBytes());
+        if (root == null) return new PlayerCacheEntry(null);
         
-        for (Map.Entry<UUID, PlayerCacheEntry> entry : playerCache.entrySet()) {
-            if (entry.getValue().lastAccessTime < oldestTime) {
-                oldestTime = entry.getValue().lastAccessTime;
-                oldestUuid = entry.getKey();
+        PlayerCacheEntry entry = new PlayerCacheEntry(null); // sessionId 暂时设为 null
+        if (root.contains(PlayerStore.ENTRIES, net.minecraft.nbt.NbtElement.LIST_TYPE)) {
+            NbtList list = root.getList(PlayerStore.ENTRIES, net.minecraft.nbt.NbtElement.COMPOUND_TYPE);
+            for (int i = 0; i < list.size(); i++) {
+                NbtCompound c = list.getCompound(i);
+                PlayerStore.Entry e = new PlayerStore.Entry();
+                e.key = ItemKey.fromHex(c.getString("key"));
+                e.count = c.getLong("count");
+                e.ts = c.getLong("ts");
+                if (e.key != null && e.count > 0) {
+                    entry.entries.put(e.key, e);
+                }
             }
         }
+        entry.journalSeq = root.getLong(PlayerStore.JOURNAL_SEQ);
+        return entry;
+    }
+    
+    /**
+     * 按权重淘汰：干净条目立即移除；脏条目提交给保存线程，写出快照后再移除，
+     * 写出失败的条目保留在缓存中，宁可暂时超出上限也不丢失变更。
+     */
+    private static void evictIfNeeded(UUID keep) {
+        if (!isInitialized) return;
+        long maxWeight = ServerConfig.getInstance().getPlayerCacheMaxWeight();
+        if (playerCache.totalWeight() <= maxWeight) return;
         
-        if (oldestUuid != null) {
-            PlayerCacheEntry entry = playerCache.remove(oldestUuid);
-            if (entry != null && entry.dirty) {
-                // 如果条目是脏的，需要先保存
-                PortableStorage.LOGGER.warn("Evicting dirty player cache entry for UUID: " + oldestUuid);
+        List<Map.Entry<UUID, PlayerCacheEntry>> dirty = playerCache.evict(maxWeight, keep, pendingEvictions);
+        ScheduledExecutorService scheduler = saveScheduler;
+        MinecraftServer server = currentServer;
+        if (scheduler == null || server == null) return;
+        for (Map.Entry<UUID, PlayerCacheEntry> victim : dirty) {
+            UUID uuid = victim.getKey();
+            if (!pendingEvictions.add(uuid)) continue;
+            try {
+                scheduler.execute(() -> flushAndEvict(server, uuid, victim.getValue()));
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                // 关闭中：由最终保存写出
+                pendingEvictions.remove(uuid);
             }
         }
     }
     
     /**
-     * 保存脏数据
+     * 保存线程上执行：写出脏条目后，若期间没有新变更则从缓存移除
      */
-    private static void saveDirtyData(MinecraftServer server) {
-        int savedCount = 0;
-        
-        // 保存玩家数据
-        for (Map.Entry<UUID, PlayerCacheEntry> entry : playerCache.entrySet()) {
-            if (entry.getValue().dirty) {
+    private static void flushAndEvict(MinecraftServer server, UUID uuid, PlayerCacheEntry entry) {
+        try {
+            synchronized (SAVE_LOCK) {
+                if (entry.dirty) {
+                    writePlayerToFile(server, uuid, entry);
+                    playerCache.recordEvictionFlush(true);
+                }
+                playerCache.removeIfClean(uuid, entry);
+            }
+        } catch (Exception e) {
+            playerCache.recordEvictionFlush(false);
+            PortableStorage.LOGGER.error("Failed to save player data before eviction, keeping entry: " + uuid, e);
+        } finally {
+            pendingEvictions.remove(uuid);
+        }
+    }
+    
+    /**
+     * 保存脏数据，并压缩保存开始前封存的日志段
+     * @return 是否全部写出（否则封存的日志段保留）
+     */
+    private static boolean saveDirtyData(MinecraftServer server) {
+        synchronized (SAVE_LOCK) {
+            int savedCount = 0;
+            boolean complete = true;
+            
+            // 封存当前日志段：其中的变更都将包含在本次写出的快照中
+            List<Path> sealed = null;
+            MutationJournal j = journal;
+            if (j != null) {
                 try {
-                    // 直接写入文件，绕过内存缓存
-                    writePlayerToFile(server, entry.getKey(), entry.getValue());
-                    entry.getValue().dirty = false;
-                    savedCount++;
+                    sealed = j.roll();
                 } catch (Exception e) {
-                    PortableStorage.LOGGER.error("Failed to save player data for UUID: " + entry.getKey(), e);
+                    PortableStorage.LOGGER.error("Failed to roll storage journal", e);
                 }
             }
-        }
-        
-        // 保存模板索引和模板文件
-        if (templateIndexDirty && templateIndex != null) {
-            try {
-                // 保存模板索引
-                templateIndex.save(server);
-                
-                // 保存所有模板文件
-                for (Map.Entry<String, ItemStack> templateEntry : templateCache.entrySet()) {
-                    String key = templateEntry.getKey();
-                    ItemStack stack = templateEntry.getValue();
-                    if (stack != null && !stack.isEmpty()) {
-                        // 查找模板条目
-                        TemplateIndex.Entry entry = templateIndex.find(key);
-                        if (entry != null) {
-                            // 保存模板到文件
-                            TemplateSlices.putTemplate(() -> server, templateIndex, key, stack, server.getRegistryManager());
-                        }
+            
+            // 保存玩家数据
+            for (Map.Entry<UUID, PlayerCacheEntry> entry : playerCache.snapshot()) {
+                if (entry.getValue().dirty) {
+                    try {
+                        // 直接写入文件，绕过内存缓存
+                        writePlayerToFile(server, entry.getKey(), entry.getValue());
+                        savedCount++;
+                    } catch (Exception e) {
+                        complete = false;
+                        PortableStorage.LOGGER.error("Failed to save player data for UUID: " + entry.getKey(), e);
                     }
                 }
-                
+            }
+            
+            // 保存模板：只处理新增/删除的模板，按切片合并读写
+            if ((templateIndexDirty || !dirtyTemplates.isEmpty() || !removedTemplates.isEmpty()) && templateIndex != null) {
                 templateIndexDirty = false;
-                savedCount++;
-            } catch (Exception e) {
-                PortableStorage.LOGGER.error("Failed to save template data", e);
+                Map<ItemKey, ItemStack> writes = new LinkedHashMap<>();
+                for (ItemKey key : drain(dirtyTemplates)) {
+                    // 索引项可能已被回收（回收后又被存入），以内存缓存为准重新写入
+                    ItemStack stack = templateCache.get(key);
+                    if (stack != null && !stack.isEmpty()) {
+                        writes.put(key, stack);
+                    }
+                }
+                List<ItemKey> removes = new java.util.ArrayList<>();
+                for (ItemKey key : drain(removedTemplates)) {
+                    // 删除登记后又被重新存入的模板保留
+                    TemplateIndex.Entry e = templateIndex.find(key);
+                    if (e != null && e.ref <= 0 && !templateCache.containsKey(key)) {
+                        removes.add(key);
+                    }
+                }
+                try {
+                    TemplateSlices.BatchResult result = TemplateSlices.applyBatch(() -> server, templateIndex, writes, removes, server.getRegistryManager());
+                    if (!result.isComplete()) {
+                        // 失败的切片未更新索引：重新登记，保留日志段，下次保存重试
+                        dirtyTemplates.addAll(result.failedWrites());
+                        removedTemplates.addAll(result.failedRemoves());
+                        templateIndexDirty = true;
+                        complete = false;
+                    }
+                    try {
+                        templateIndex.save(server);
+                    } catch (java.io.IOException e) {
+                        // 索引未落盘：日志段是唯一的恢复依据，不能删除
+                        templateIndexDirty = true;
+                        complete = false;
+                        PortableStorage.LOGGER.error("Failed to save template index, keeping journal segments", e);
+                    }
+                    if (result.rewritten() > 0) {
+                        PortableStorage.LOGGER.debug("Wrote {} templates, removed {} across {} slices", writes.size(), removes.size(), result.rewritten());
+                    }
+                    savedCount++;
+                } catch (Exception e) {
+                    templateIndexDirty = true;
+                    dirtyTemplates.addAll(writes.keySet());
+                    removedTemplates.addAll(removes);
+                    complete = false;
+                    PortableStorage.LOGGER.error("Failed to save template data", e);
+                }
             }
-        }
-        
-        if (savedCount > 0) {
-            PortableStorage.LOGGER.debug("Saved {} dirty cache entries", savedCount);
+            
+            // 快照全部写出后，已封存的日志段不再需要
+            if (complete && sealed != null && !sealed.isEmpty()) {
+                j.deleteSegments(sealed);
+            }
+            
+            if (savedCount > 0) {
+                PortableStorage.LOGGER.debug("Saved {} dirty cache entries", savedCount);
+            }
+            return complete;
         }
     }
     
     /**
-     * 将玩家数据写入文件
+     * 将玩家数据写入文件：锁内取快照，锁外序列化与写盘。
+     * 写出成功且期间没有新变更时才清除 dirty，失败时条目保持为脏。
      */
     private static void writePlayerToFile(MinecraftServer server, UUID uuid, PlayerCacheEntry entry) {
         try {
             StoragePaths.ensureDirectories(server);
-            Path file = StoragePaths.getPlayerFile(server, uuid);
-            NbtCompound root = new NbtCompound();
-            if (entry.sessionId != null) root.putLong(PlayerStore.SESSION, entry.sessionId);
-            NbtList list = new NbtList();
-            for (PlayerStore.Entry e : entry.entries.values()) {
-                if (e.count <= 0) continue;
-                NbtCompound c = new NbtCompound();
-                c.putString("key", e.key);
-                c.putLong("count", e.count);
-                c.putLong("ts", e.ts);
-                list.add(c);
-            }
-            root.put(PlayerStore.ENTRIES, list);
-            com.portable.storage.util.SafeNbtIo.writeCompressed(root, file);
+            // 快照内容与日志位置在条目锁内一并确定，与 PlayerStore 的变更保持一致
+            PlayerSnapshot snapshot = entry.snapshot(journal);
+            writeSnapshot(snapshot, StoragePaths.getPlayerFile(server, uuid));
+            entry.markSaved(snapshot);
         } catch (Exception e) {
             throw new RuntimeException("Failed to write player data to file", e);
         }
     }
     
+    static void writeSnapshot(PlayerSnapshot snapshot, Path file) throws java.io.IOException {
+        com.portable.storage.util.SafeNbtIo.writeCompressed(snapshot.toNbt(), file);
+    }
     
     /**
      * 标记玩家数据为脏
@@ -365,10 +778,37 @@ public final class StorageMemoryCache {
     public static void markPlayerDirty(UUID uuid) {
         PlayerCacheEntry entry = playerCache.get(uuid);
         if (entry != null) {
-            entry.dirty = true;
+            synchronized (entry) {
+                entry.markDirty();
+            }
         }
     }
     
+    private static List<ItemKey> drain(java.util.Set<ItemKey> set) {
+        List<ItemKey> out = new java.util.ArrayList<>(set);
+        set.removeAll(out);
+        return out;
+    }
+    
+    static boolean isTemplatePendingWrite(ItemKey key) {
+        return dirtyTemplates.contains(key);
+    }
+    
+    /**
+     * 标记模板需要写入切片（下次保存时处理）
+     */
+    public static void markTemplateDirty(ItemKey key) {
+        dirtyTemplates.add(key);
+        removedTemplates.remove(key);
+    }
+    
+    /**
+     * 登记模板待删除；保存时若引用仍为 0 才从切片和索引中移除
+     */
+    public static void markTemplateRemoved(ItemKey key) {
+        removedTemplates.add(key);
+    }
+    
     /**
      * 标记模板索引为脏
      */
@@ -389,7 +829,7 @@ public final class StorageMemoryCache {
     /**
      * 获取模板缓存
      */
-    public static Map<String, ItemStack> getTemplateCache() {
+    public static Map<ItemKey, ItemStack> getTemplateCache() {
         if (!isInitialized) {
             return new ConcurrentHashMap<>();
         }
@@ -399,8 +839,31 @@ public final class StorageMemoryCache {
     /**
      * 添加模板到缓存
      */
-    public static void addTemplate(String key, ItemStack template) {
+    public static void addTemplate(ItemKey key, ItemStack template) {
+        templateCache.put(key, template);
+    }
+    
+    /**
+     * 登记新模板：写入索引与内存缓存，并记录到变更日志，保证落盘前崩溃也能恢复。
+     */
+    public static void registerNewTemplate(ItemKey key, ItemStack template) {
+        TemplateIndex index = getTemplateIndex();
+        index.put(key, index.getOrAllocateSlice(), 0);
         templateCache.put(key, template);
+        markTemplateDirty(key);
+        MutationJournal j = journal;
+        MinecraftServer server = currentServer;
+        if (j != null && server != null) {
+            var ops = net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, server.getRegistryManager());
+            ItemStack.CODEC.encodeStart(ops, template).result().ifPresent(nbt -> j.logTemplate(key, nbt));
+        }
+    }
+    
+    /**
+     * 当前变更日志（未初始化时为 null）
+     */
+    static MutationJournal getJournal() {
+        return journal;
     }
     
     /**
@@ -414,7 +877,11 @@ public final class StorageMemoryCache {
      * 获取缓存统计信息
      */
     public static String getCacheStats() {
-        return String.format("Player cache: %d entries, Template cache: %d entries", 
-            playerCache.size(), templateCache.size());
+        MutationJournal j = journal;
+        TemplateCompactor.Result compaction = lastCompaction;
+        return String.format("%s; Template cache: %d entries (%d pending writes, %d pending removals), Interned keys: %d; Warm-up: %d/%d%s; %s; %s; Last compaction: %s", 
+            playerCache.getStats(ServerConfig.getInstance().getPlayerCacheMaxWeight()), templateCache.size(), dirtyTemplates.size(), removedTemplates.size(), ItemKey.internedCount(),
+            warmupLoaded.get(), warmupTotal, isTemplateWarmupDone() ? " (done)" : " (in progress)", ItemKeyHasher.getCacheStats(),
+            j != null ? j.getStats() : "Journal: closed", compaction != null ? compaction : "none");
     }
 }
@@ -14,7 +14,9 @@ public final class StoragePaths {
     public static final String ROOT_DIR_NAME = "portable_storage";
     public static final String TEMPLATES_DIR_NAME = "templates";
     public static final String PLAYERS_DIR_NAME = "players";
+    public static final String JOURNAL_DIR_NAME = "journal";
     public static final String INDEX_FILE_NAME = "index.nbt";
+    public static final String KEY_MIGRATION_FILE_NAME = "key_migration.nbt";
 
     private StoragePaths() {}
 
@@ -30,11 +32,34 @@ public final class StoragePaths {
         return getRootDir(server).resolve(PLAYERS_DIR_NAME);
     }
 
+    public static Path getJournalDir(MinecraftServer server) {
+        return getRootDir(server).resolve(JOURNAL_DIR_NAME);
+    }
+
+    public static Path getJournalSegment(MinecraftServer server, long segmentId) {
+        return getJournalDir(server).resolve(String.format("segment_%08d.log", segmentId));
+    }
+
     public static Path getIndexFile(MinecraftServer server) {
         return getTemplatesDir(server).resolve(INDEX_FILE_NAME);
     }
 
+    public static Path getKeyMigrationFile(MinecraftServer server) {
+        return getTemplatesDir(server).resolve(KEY_MIGRATION_FILE_NAME);
+    }
+
+    /**
+     * 随机访问格式的切片文件（见 {@link SliceFile}）
+     */
     public static Path getSliceFile(MinecraftServer server, int sliceOrdinal) {
+        String fileName = String.format("slice_%03d.pss", Math.max(1, sliceOrdinal));
+        return getTemplatesDir(server).resolve(fileName);
+    }
+
+    /**
+     * 旧版整文件 NBT 切片，仅用于启动时转换
+     */
+    public static Path getLegacySliceFile(MinecraftServer server, int sliceOrdinal) {
         String fileName = String.format("slice_%03d.nbt", Math.max(1, sliceOrdinal));
         return getTemplatesDir(server).resolve(fileName);
     }
@@ -50,6 +75,9 @@ public final class StoragePaths {
         try {
             Files.createDirectories(getPlayersDir(server));
         } catch (Exception ignored) {}
+        try {
+            Files.createDirectories(getJournalDir(server));
+        } catch (Exception ignored) {}
     }
 }
 
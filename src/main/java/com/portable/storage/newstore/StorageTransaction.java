@@ -0,0 +1,211 @@
+package com.portable.storage.newstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.portable.storage.PortableStorage;
+import com.portable.storage.player.StoragePersistence;
+import com.portable.storage.storage.StorageInventory;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * 跨存储来源的提取事务：先在内存中规划（reserve），再一次性应用（commit）或放弃（abort）。
+ *
+ * 来源顺序与共享视图一致：先是各玩家的旧版随身仓库（玩家数据 .dat），再是新版存储（{@link PlayerStore}）。
+ * - reserve 不修改任何数据：旧版仓库每个玩家在事务内最多读取一次，新版存储直接查询内存缓存；
+ *   同一事务内多次 reserve 会扣除已预留的数量，可在一次操作中规划多种物品。
+ * - commit 先校验新版存储计数仍然充足，再写回旧版仓库（每个玩家一次），最后扣减新版存储与引用计数。
+ *   旧版写入失败时恢复已写入的文件并放弃整个事务，不会出现只扣了一部分的情况。
+ * 事务只能在服务器线程上使用，且不应跨 tick 持有。
+ */
+public final class StorageTransaction {
+    private enum State { OPEN, COMMITTED, ABORTED }
+
+    private record LegacyTake(UUID owner, ItemStack variant, long amount) {}
+
+    private final MinecraftServer server;
+    private final List<UUID> sources;
+    private final Map<UUID, StorageInventory> legacy = new HashMap<>();
+    private final List<LegacyTake> legacyTakes = new ArrayList<>();
+    private final Map<UUID, Map<ItemKey, Long>> storeTakes = new LinkedHashMap<>();
+    private State state = State.OPEN;
+    private long reservedTotal = 0L;
+
+    private StorageTransaction(MinecraftServer server, Collection<UUID> sources) {
+        this.server = server;
+        this.sources = new ArrayList<>(sources);
+    }
+
+    public static StorageTransaction begin(MinecraftServer server, Collection<UUID> sources) {
+        return new StorageTransaction(server, sources);
+    }
+
+    /**
+     * 预留最多 want 个指定变体，返回实际预留数量（可能为 0）。
+     */
+    public long reserve(ItemStack variant, long want) {
+        ensureOpen();
+        if (variant == null || variant.isEmpty() || want <= 0) return 0L;
+        long remaining = want;
+
+        // 1) 旧版仓库
+        for (UUID uuid : sources) {
+            if (remaining <= 0) break;
+            long available = legacyInventory(uuid).countVariant(variant) - reservedLegacy(uuid, variant);
+            long take = Math.min(remaining, available);
+            if (take > 0) {
+                legacyTakes.add(new LegacyTake(uuid, variant.copyWithCount(1), take));
+                remaining -= take;
+            }
+        }
+
+        // 2) 新版存储
+        if (remaining > 0) {
+            ItemKey key = ItemKeyHasher.hash(variant, server.getRegistryManager());
+            if (key != null) {
+                for (UUID uuid : sources) {
+                    if (remaining <= 0) break;
+                    Map<ItemKey, Long> planned = storeTakes.computeIfAbsent(uuid, u -> new HashMap<>());
+                    long already = planned.getOrDefault(key, 0L);
+                    long take = Math.min(remaining, PlayerStore.getCount(server, uuid, key) - already);
+                    if (take > 0) {
+                        planned.put(key, already + take);
+                        remaining -= take;
+                    }
+                }
+            }
+        }
+
+        long got = want - remaining;
+        reservedTotal += got;
+        return got;
+    }
+
+    /**
+     * 本事务已预留的总数量
+     */
+    public long reserved() {
+        return reservedTotal;
+    }
+
+    /**
+     * 应用全部预留；失败时不修改任何来源并返回 false。
+     */
+    public boolean commit() {
+        ensureOpen();
+        long now = System.currentTimeMillis();
+
+        // 1) 校验新版存储：规划之后计数可能已被其他操作改变
+        for (Map.Entry<UUID, Map<ItemKey, Long>> en : storeTakes.entrySet()) {
+            for (Map.Entry<ItemKey, Long> t : en.getValue().entrySet()) {
+                if (PlayerStore.getCount(server, en.getKey(), t.getKey()) < t.getValue()) {
+                    abort();
+                    return false;
+                }
+            }
+        }
+
+        // 2) 旧版仓库：在内存副本上扣减，每个玩家写回一次；失败时恢复已写入的文件
+        Map<UUID, NbtCompound> originals = new LinkedHashMap<>();
+        for (LegacyTake t : legacyTakes) {
+            StorageInventory inv = legacy.get(t.owner());
+            originals.computeIfAbsent(t.owner(), u -> inv.writeNbt(new NbtCompound()));
+            inv.takeVariant(t.variant(), t.amount(), now);
+        }
+        List<UUID> written = new ArrayList<>();
+        for (UUID uuid : originals.keySet()) {
+            try {
+                StoragePersistence.saveStorageChecked(server, uuid, legacy.get(uuid));
+                written.add(uuid);
+            } catch (IOException e) {
+                PortableStorage.LOGGER.error("Failed to save legacy storage for {}, rolling back transaction", uuid, e);
+                for (UUID done : written) {
+                    StorageInventory restored = new StorageInventory(0);
+                    restored.readNbt(originals.get(done));
+                    try {
+                        StoragePersistence.saveStorageChecked(server, done, restored);
+                    } catch (IOException re) {
+                        // 回滚写回失败：文件中保留的是已扣减的状态，这些物品实际丢失
+                        PortableStorage.LOGGER.error("Failed to roll back legacy storage for {}, lost variants: {}", done, describeTakes(done), re);
+                    }
+                }
+                abort();
+                return false;
+            }
+        }
+
+        // 3) 新版存储：纯内存扣减，并按键合并更新引用计数
+        Map<ItemKey, Long> takenByKey = new HashMap<>();
+        for (Map.Entry<UUID, Map<ItemKey, Long>> en : storeTakes.entrySet()) {
+            for (Map.Entry<ItemKey, Long> t : en.getValue().entrySet()) {
+                long taken = PlayerStore.remove(server, en.getKey(), t.getKey(), t.getValue(), now);
+                if (taken > 0) takenByKey.merge(t.getKey(), taken, Long::sum);
+            }
+        }
+        if (!takenByKey.isEmpty()) {
+            TemplateIndex index = StorageMemoryCache.getTemplateIndex();
+            for (Map.Entry<ItemKey, Long> t : takenByKey.entrySet()) {
+                ItemKey key = t.getKey();
+                index.incRef(key, -t.getValue());
+                if (index.find(key) != null && index.find(key).ref <= 0) {
+                    // 从内存缓存中移除模板，切片删除由定时保存批量处理
+                    StorageMemoryCache.getTemplateCache().remove(key);
+                    StorageMemoryCache.markTemplateRemoved(key);
+                }
+            }
+            // 标记模板索引为脏，由定时任务处理
+            StorageMemoryCache.markTemplateIndexDirty();
+        }
+
+        state = State.COMMITTED;
+        return true;
+    }
+
+    /**
+     * 放弃全部预留（reserve 不修改数据，直接丢弃规划即可）
+     */
+    public void abort() {
+        if (state != State.OPEN) return;
+        legacyTakes.clear();
+        storeTakes.clear();
+        legacy.clear();
+        reservedTotal = 0L;
+        state = State.ABORTED;
+    }
+
+    private StorageInventory legacyInventory(UUID uuid) {
+        return legacy.computeIfAbsent(uuid, u -> StoragePersistence.loadStorage(server, u));
+    }
+
+    private long reservedLegacy(UUID uuid, ItemStack variant) {
+        long sum = 0L;
+        for (LegacyTake t : legacyTakes) {
+            if (t.owner().equals(uuid) && ItemStack.areItemsAndComponentsEqual(t.variant(), variant)) sum += t.amount();
+        }
+        return sum;
+    }
+
+    /**
+     * 某拥有者在本事务中扣减的旧版变体（"物品[组件] x 数量"），用于日志
+     */
+    private String describeTakes(UUID uuid) {
+        List<String> out = new ArrayList<>();
+        for (LegacyTake t : legacyTakes) {
+            if (t.owner().equals(uuid)) out.add(t.variant().getItem() + t.variant().getComponentChanges().toString() + " x " + t.amount());
+        }
+        return String.join(", ", out);
+    }
+
+    private void ensureOpen() {
+        if (state != State.OPEN) throw new IllegalStateException("Storage transaction already " + state.name().toLowerCase(java.util.Locale.ROOT));
+    }
+}
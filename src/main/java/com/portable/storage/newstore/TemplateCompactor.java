@@ -0,0 +1,323 @@
+package com.portable.storage.newstore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import com.portable.storage.PortableStorage;
+
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * 模板切片后台压缩与垃圾回收，由 {@link StorageMemoryCache#compactTemplates} 在保存线程上持 SAVE_LOCK 调用。
+ *
+ * 每一轮：
+ * 1. 标记：对 ref<=0 的候选键，按内存中的玩家缓存与磁盘上其余玩家文件统计实际持有量；
+ *    仍被持有的修正引用计数，其余视为死模板并移出内存缓存。
+ * 2. 清理：含死记录/孤儿记录比例较高的切片原地改写为紧凑文件；无有效记录的切片直接删除。
+ * 3. 合并：多个稀疏的旧切片打包写入新的切片，先写新文件、再改写并保存索引、最后删除旧文件，
+ *    任一步中断都只会留下下一轮可回收的孤儿文件。
+ * 读写按 I/O 预算限速，单轮处理量有上限，剩余部分留给下一轮。
+ *
+ * 索引与服务器线程共享：本类只读取索引快照，修正、移除与改登记都通过 {@link TemplateIndex} 的条件更新进行，
+ * 快照后被存取改动过的条目一律跳过，留待下一轮重新判断。
+ */
+public final class TemplateCompactor {
+    /** 死记录字节占比达到该值时原地改写切片 */
+    private static final double GARBAGE_RATIO = 0.25;
+    /** 有效字节低于切片上限的该比例时视为稀疏切片，参与合并 */
+    private static final double SPARSE_RATIO = 0.25;
+    /** I/O 预算：每秒读写字节数 */
+    private static final long IO_BYTES_PER_SECOND = 8L * 1024L * 1024L;
+    /** 单轮最多改写的切片字节数 */
+    private static final long MAX_BYTES_PER_PASS = 64L * 1024L * 1024L;
+
+    private TemplateCompactor() {}
+
+    public record Result(int deadTemplates, int refsRepaired, int slicesRewritten, int slicesMerged, int slicesDeleted,
+                         long bytesReclaimed, long durationMs) {
+        public boolean changed() {
+            return deadTemplates > 0 || refsRepaired > 0 || slicesRewritten > 0 || slicesMerged > 0 || slicesDeleted > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d dead templates, %d refs repaired, %d slices rewritten, %d merged, %d deleted, %d KB reclaimed in %dms",
+                deadTemplates, refsRepaired, slicesRewritten, slicesMerged, slicesDeleted, bytesReclaimed / 1024, durationMs);
+        }
+    }
+
+    /**
+     * 按预算限速：累计字节超出按时间折算的额度时休眠
+     */
+    private static final class Throttle {
+        private final long start = System.nanoTime();
+        private long bytes = 0L;
+
+        void consume(long n) throws InterruptedException {
+            bytes += n;
+            long dueNanos = bytes * 1_000_000_000L / IO_BYTES_PER_SECOND;
+            long aheadMs = (dueNanos - (System.nanoTime() - start)) / 1_000_000L;
+            if (aheadMs > 0) Thread.sleep(aheadMs);
+        }
+    }
+
+    static Result runPass(MinecraftServer server, TemplateIndex index) throws InterruptedException {
+        long startMs = System.currentTimeMillis();
+        Throttle throttle = new Throttle();
+
+        // 在索引锁内取快照（键 -> 切片、引用、修改序号）
+        Map<ItemKey, Integer> sliceOf = new HashMap<>();
+        Map<ItemKey, Long> modOf = new HashMap<>();
+        List<ItemKey> candidates = new ArrayList<>();
+        for (TemplateIndex.EntrySnapshot e : index.snapshotEntries()) {
+            sliceOf.put(e.key(), e.slice());
+            if (e.ref() <= 0 && !StorageMemoryCache.isTemplatePendingWrite(e.key())) {
+                candidates.add(e.key());
+                modOf.put(e.key(), e.mod());
+            }
+        }
+
+        // 1. 标记
+        int repaired = 0;
+        Set<ItemKey> dead = new HashSet<>();
+        Map<ItemKey, Long> held = candidates.isEmpty() ? null : countHeld(server, new HashSet<>(candidates), throttle);
+        if (held != null) {
+            for (ItemKey key : candidates) {
+                long count = held.getOrDefault(key, 0L);
+                if (count > 0) {
+                    // 统计期间有存取落在该条目上时不覆盖，下一轮重新统计
+                    if (index.repairRef(key, modOf.get(key), count)) repaired++;
+                } else if (index.unchangedSince(key, modOf.get(key))) {
+                    dead.add(key);
+                }
+            }
+            if (repaired > 0) StorageMemoryCache.markTemplateIndexDirty();
+            // 先移出内存缓存再复查：此后的存入会走“索引存在、缓存缺失”分支重新登记模板
+            for (ItemKey key : dead) StorageMemoryCache.getTemplateCache().remove(key);
+            dead.removeIf(key -> !index.unchangedSince(key, modOf.get(key))
+                || StorageMemoryCache.getTemplateCache().containsKey(key)
+                || StorageMemoryCache.isTemplatePendingWrite(key));
+        }
+
+        // 2./3. 切片清理与合并
+        int rewritten = 0;
+        int merged = 0;
+        int deleted = 0;
+        long reclaimed = 0L;
+        long budget = MAX_BYTES_PER_PASS;
+        int current = index.getOrAllocateSlice();
+
+        // 索引为空（例如索引文件读取失败）时无法区分有效记录，不触碰任何切片
+        Map<Integer, Path> sliceFiles = sliceOf.isEmpty() ? Map.of() : listSlices(server);
+        Map<Integer, Map<ItemKey, Integer>> liveBySlice = new TreeMap<>();
+        List<Integer> sparse = new ArrayList<>();
+        for (Map.Entry<Integer, Path> en : sliceFiles.entrySet()) {
+            if (budget <= 0) break;
+            int slice = en.getKey();
+            Path file = en.getValue();
+            Map<ItemKey, Integer> sizes;
+            try {
+                sizes = SliceFile.recordSizes(file);
+            } catch (IOException e) {
+                PortableStorage.LOGGER.warn("Skipping unreadable template slice during compaction: {}", file, e);
+                continue;
+            }
+            long total = 0L;
+            long live = 0L;
+            Map<ItemKey, Integer> liveRecords = new HashMap<>();
+            List<ItemKey> garbage = new ArrayList<>();
+            for (Map.Entry<ItemKey, Integer> r : sizes.entrySet()) {
+                total += r.getValue();
+                Integer owner = sliceOf.get(r.getKey());
+                if (owner != null && owner == slice && !dead.contains(r.getKey())) {
+                    live += r.getValue();
+                    liveRecords.put(r.getKey(), r.getValue());
+                } else {
+                    garbage.add(r.getKey());
+                }
+            }
+
+            try {
+                if (liveRecords.isEmpty() && slice != current) {
+                    long size = Files.size(file);
+                    SliceFile.delete(file);
+                    reclaimed += size;
+                    deleted++;
+                    continue;
+                }
+                if (!garbage.isEmpty() && (total == 0 || (double) (total - live) / total >= GARBAGE_RATIO)) {
+                    long before = Files.size(file);
+                    SliceFile.rewrite(file, Map.of(), garbage);
+                    long after = Files.size(file);
+                    throttle.consume(before + after);
+                    budget -= after;
+                    reclaimed += Math.max(0L, before - after);
+                    rewritten++;
+                }
+            } catch (IOException e) {
+                PortableStorage.LOGGER.warn("Failed to compact template slice {}", file, e);
+                continue;
+            }
+
+            if (slice != current && live < TemplateSlices.SLICE_MAX_BYTES * SPARSE_RATIO) {
+                liveBySlice.put(slice, liveRecords);
+                sparse.add(slice);
+            }
+        }
+
+        // 合并稀疏切片：至少两个才有意义，且合并结果不超过半个切片
+        if (sparse.size() >= 2 && budget > 0) {
+            List<Integer> group = new ArrayList<>();
+            long groupBytes = 0L;
+            for (int slice : sparse) {
+                long bytes = liveBySlice.get(slice).values().stream().mapToLong(Integer::longValue).sum();
+                if (groupBytes + bytes > TemplateSlices.SLICE_MAX_BYTES / 2 || groupBytes + bytes > budget) break;
+                group.add(slice);
+                groupBytes += bytes;
+            }
+            if (group.size() >= 2) {
+                try {
+                    int target = Math.max(current, sliceFiles.keySet().stream().mapToInt(Integer::intValue).max().orElse(current)) + 1;
+                    merged = mergeSlices(server, index, group, liveBySlice, target, throttle);
+                } catch (IOException e) {
+                    PortableStorage.LOGGER.warn("Failed to merge sparse template slices {}", group, e);
+                }
+            }
+        }
+
+        // 死模板的记录已从切片清除（或随切片删除），最后移除期间未被改动的索引项；
+        // 被重新存入的模板走“索引存在、缓存缺失”分支重新登记写入
+        for (ItemKey key : dead) {
+            index.removeIfUnreferenced(key, modOf.get(key));
+        }
+        if (!dead.isEmpty() || repaired > 0 || merged > 0) {
+            try {
+                index.save(server);
+            } catch (IOException e) {
+                // 内存索引已更新，交由下次定时保存重试
+                StorageMemoryCache.markTemplateIndexDirty();
+                PortableStorage.LOGGER.warn("Failed to save template index after compaction", e);
+            }
+        }
+
+        return new Result(dead.size(), repaired, rewritten, merged, deleted, reclaimed, System.currentTimeMillis() - startMs);
+    }
+
+    /**
+     * 将若干切片的有效记录按原始字节写入新切片，改写并保存索引后删除旧切片
+     * @return 被合并（已删除）的旧切片数
+     */
+    private static int mergeSlices(MinecraftServer server, TemplateIndex index, List<Integer> group,
+                                   Map<Integer, Map<ItemKey, Integer>> liveBySlice, int target, Throttle throttle)
+            throws IOException, InterruptedException {
+        Map<ItemKey, byte[]> records = new HashMap<>();
+        Map<ItemKey, Integer> origin = new HashMap<>();
+        for (int slice : group) {
+            Map<ItemKey, byte[]> raw = SliceFile.readRaw(StoragePaths.getSliceFile(server, slice), liveBySlice.get(slice).keySet());
+            long bytes = 0L;
+            for (Map.Entry<ItemKey, byte[]> r : raw.entrySet()) {
+                records.put(r.getKey(), r.getValue());
+                origin.put(r.getKey(), slice);
+                bytes += r.getValue().length;
+            }
+            throttle.consume(bytes);
+        }
+
+        Path targetFile = StoragePaths.getSliceFile(server, target);
+        SliceFile.writeRaw(targetFile, records);
+        throttle.consume(Files.size(targetFile));
+
+        // 仅改写仍指向原切片的索引项（期间被重写到别处的保持不变）
+        for (Map.Entry<ItemKey, Integer> o : origin.entrySet()) {
+            index.relocate(o.getKey(), o.getValue(), target);
+        }
+        index.save(server);
+
+        int removed = 0;
+        for (int slice : group) {
+            Path file = StoragePaths.getSliceFile(server, slice);
+            SliceFile.delete(file);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * 统计候选键的实际持有量：已缓存的玩家取内存快照，其余玩家读取磁盘文件。
+     * 任一玩家文件无法读取时返回 null，本轮不回收、不修正任何模板。
+     */
+    private static Map<ItemKey, Long> countHeld(MinecraftServer server, Set<ItemKey> candidates, Throttle throttle)
+            throws InterruptedException {
+        Map<ItemKey, Long> held = new HashMap<>();
+        Set<UUID> cached = new HashSet<>();
+        for (Map.Entry<UUID, StorageMemoryCache.PlayerCacheEntry> en : StorageMemoryCache.playerCache.snapshot()) {
+            cached.add(en.getKey());
+            StorageMemoryCache.PlayerSnapshot snap = en.getValue().snapshot(null);
+            for (int i = 0; i < snap.size(); i++) {
+                if (candidates.contains(snap.keys()[i])) held.merge(snap.keys()[i], snap.counts()[i], Long::sum);
+            }
+        }
+
+        Path playersDir = StoragePaths.getPlayersDir(server);
+        if (!Files.exists(playersDir)) return held;
+        List<Path> files;
+        try (var stream = Files.list(playersDir)) {
+            files = stream.filter(p -> p.getFileName().toString().endsWith(".nbt")).toList();
+        } catch (IOException e) {
+            PortableStorage.LOGGER.warn("Failed to list player files for template compaction", e);
+            return null;
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            try {
+                if (cached.contains(UUID.fromString(name.substring(0, name.length() - ".nbt".length())))) continue;
+            } catch (IllegalArgumentException ignored) {}
+            try {
+                throttle.consume(Files.size(file));
+                NbtCompound root = NbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
+                if (root == null || !root.contains(PlayerStore.ENTRIES, NbtElement.LIST_TYPE)) continue;
+                NbtList list = root.getList(PlayerStore.ENTRIES, NbtElement.COMPOUND_TYPE);
+                for (int i = 0; i < list.size(); i++) {
+                    NbtCompound c = list.getCompound(i);
+                    ItemKey key = ItemKey.fromHex(c.getString("key"));
+                    long count = c.getLong("count");
+                    if (key != null && count > 0 && candidates.contains(key)) held.merge(key, count, Long::sum);
+                }
+            } catch (IOException e) {
+                PortableStorage.LOGGER.warn("Failed to read player file {} during template compaction", file, e);
+                return null;
+            }
+        }
+        return held;
+    }
+
+    private static Map<Integer, Path> listSlices(MinecraftServer server) {
+        Map<Integer, Path> out = new TreeMap<>();
+        Path dir = StoragePaths.getTemplatesDir(server);
+        if (!Files.exists(dir)) return out;
+        try (var stream = Files.list(dir)) {
+            for (Path p : stream.toList()) {
+                String name = p.getFileName().toString();
+                if (!name.matches("slice_\\d+\\.pss")) continue;
+                out.put(Integer.parseInt(name.substring("slice_".length(), name.length() - ".pss".length())), p);
+            }
+        } catch (IOException e) {
+            PortableStorage.LOGGER.warn("Failed to list template slices for compaction", e);
+        }
+        return out;
+    }
+}
@@ -14,18 +14,31 @@ import com.portable.storage.util.SafeNbtIo;
 
 /**
  * 模板索引：key -> { slice:int, ref:long(optional), size:int(optional) }
+ * 文件中 key 为十六进制字符串（兼容旧版 64 位 SHA-256），内存中为 {@link ItemKey}。
+ * 根节点 key_scheme 记录生成这些键所用的方案版本（缺省视为 v1）。
+ *
+ * 服务器线程（存取、事务）与保存线程（定时保存、切片压缩）共用同一实例，所有访问都在实例锁内进行。
+ * 条目每次被修改时递增 mod，后台任务据此只对快照后未被改动的条目应用修正（见 {@link #repairRef}）。
  */
 public final class TemplateIndex {
     public static final String ROOT = "map";
+    public static final String KEY_SCHEME = "key_scheme";
 
     public static final class Entry {
         public int slice;
         public long ref; // 可选引用计数，-1 表示未知
         public int size; // 可选模板字节估计
+        long mod; // 修改序号，仅在内存中使用
     }
 
-    private final Map<String, Entry> map = new HashMap<>();
+    /**
+     * 条目快照（供后台任务在锁外使用）
+     */
+    public record EntrySnapshot(ItemKey key, int slice, long ref, long mod) {}
+
+    private final Map<ItemKey, Entry> map = new HashMap<>();
     private int currentMaxSlice = 1;
+    private int keyScheme = ItemKeyHasher.KEY_SCHEME;
 
     public static TemplateIndex load(MinecraftServer server) {
         StoragePaths.ensureDirectories(server);
@@ -34,15 +47,20 @@ public final class TemplateIndex {
         if (!Files.exists(file)) return idx;
         try {
             NbtCompound root = SafeNbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
+            if (root != null) {
+                idx.keyScheme = root.contains(KEY_SCHEME) ? root.getInt(KEY_SCHEME) : ItemKeyHasher.LEGACY_KEY_SCHEME;
+            }
             if (root != null && root.contains(ROOT)) {
                 NbtCompound m = root.getCompound(ROOT);
                 for (String k : m.getKeys()) {
+                    ItemKey key = ItemKey.fromHex(k);
+                    if (key == null) continue;
                     NbtCompound v = m.getCompound(k);
                     Entry e = new Entry();
                     e.slice = v.getInt("slice");
                     e.ref = v.contains("ref") ? v.getLong("ref") : -1L;
                     e.size = v.contains("size") ? v.getInt("size") : 0;
-                    idx.map.put(k, e);
+                    idx.map.put(key, e);
                     if (e.slice > idx.currentMaxSlice) idx.currentMaxSlice = e.slice;
                 }
             }
@@ -50,60 +68,142 @@ public final class TemplateIndex {
         return idx;
     }
 
-    public void save(MinecraftServer server) {
+    /**
+     * 写出索引；失败时抛出异常，调用方据此保留日志段或迁移映射等恢复依据
+     */
+    public void save(MinecraftServer server) throws IOException {
         StoragePaths.ensureDirectories(server);
         Path file = StoragePaths.getIndexFile(server);
         NbtCompound root = new NbtCompound();
         NbtCompound m = new NbtCompound();
-        for (Map.Entry<String, Entry> en : map.entrySet()) {
-            NbtCompound v = new NbtCompound();
-            v.putInt("slice", Math.max(1, en.getValue().slice));
-            if (en.getValue().ref >= 0) v.putLong("ref", en.getValue().ref);
-            if (en.getValue().size > 0) v.putInt("size", en.getValue().size);
-            m.put(en.getKey(), v);
+        synchronized (this) {
+            for (Map.Entry<ItemKey, Entry> en : map.entrySet()) {
+                NbtCompound v = new NbtCompound();
+                v.putInt("slice", Math.max(1, en.getValue().slice));
+                if (en.getValue().ref >= 0) v.putLong("ref", en.getValue().ref);
+                if (en.getValue().size > 0) v.putInt("size", en.getValue().size);
+                m.put(en.getKey().toHex(), v);
+            }
+            root.putInt(KEY_SCHEME, keyScheme);
         }
         root.put(ROOT, m);
-        try {
-            SafeNbtIo.writeCompressed(root, file);
-        } catch (IOException ignored) {}
+        SafeNbtIo.writeCompressed(root, file);
     }
 
-    public Entry find(String key) {
+    public synchronized Entry find(ItemKey key) {
         return map.get(key);
     }
 
-    public void put(String key, int slice, int sizeEstimate) {
+    public synchronized void put(ItemKey key, int slice, int sizeEstimate) {
         Entry e = map.computeIfAbsent(key, k -> new Entry());
         e.slice = Math.max(1, slice);
         if (sizeEstimate > 0) e.size = sizeEstimate;
         if (e.ref < 0) e.ref = 0;
+        e.mod++;
     }
 
-    public void remove(String key) {
+    public synchronized void remove(ItemKey key) {
         map.remove(key);
     }
 
-    public void incRef(String key, long delta) {
+    public synchronized void incRef(ItemKey key, long delta) {
         Entry e = map.get(key);
         if (e != null) {
             if (e.ref < 0) e.ref = 0;
             e.ref += delta;
             if (e.ref < 0) e.ref = 0;
+            e.mod++;
+        }
+    }
+
+    /**
+     * 全部条目的一致快照
+     */
+    public synchronized java.util.List<EntrySnapshot> snapshotEntries() {
+        java.util.List<EntrySnapshot> out = new java.util.ArrayList<>(map.size());
+        for (Map.Entry<ItemKey, Entry> en : map.entrySet()) {
+            Entry e = en.getValue();
+            out.add(new EntrySnapshot(en.getKey(), Math.max(1, e.slice), e.ref, e.mod));
         }
+        return out;
+    }
+
+    /**
+     * 条目自快照以来是否未被修改（仍存在且 mod 相同）
+     */
+    public synchronized boolean unchangedSince(ItemKey key, long mod) {
+        Entry e = map.get(key);
+        return e != null && e.mod == mod;
+    }
+
+    /**
+     * 以统计出的持有量修正引用计数；快照后有存取改动过该条目时放弃，留待下一轮
+     */
+    public synchronized boolean repairRef(ItemKey key, long expectedMod, long ref) {
+        Entry e = map.get(key);
+        if (e == null || e.mod != expectedMod) return false;
+        e.ref = Math.max(0L, ref);
+        e.mod++;
+        return true;
     }
 
-    public int getOrAllocateSlice() {
+    /**
+     * 移除快照后未被改动、且引用仍为 0 的条目
+     */
+    public synchronized boolean removeIfUnreferenced(ItemKey key, long expectedMod) {
+        Entry e = map.get(key);
+        if (e == null || e.mod != expectedMod || e.ref > 0) return false;
+        map.remove(key);
+        return true;
+    }
+
+    /**
+     * 将仍位于 fromSlice 的条目改登记到 toSlice（期间被重写到别处的保持不变）
+     */
+    public synchronized boolean relocate(ItemKey key, int fromSlice, int toSlice) {
+        Entry e = map.get(key);
+        if (e == null || Math.max(1, e.slice) != fromSlice) return false;
+        e.slice = Math.max(1, toSlice);
+        e.mod++;
+        return true;
+    }
+
+    public synchronized int getOrAllocateSlice() {
         // 简化：直接返回 currentMaxSlice，具体滚动由 TemplateSlices 决定。
         return Math.max(1, currentMaxSlice);
     }
 
-    public void rollToNextSlice() {
+    public synchronized void rollToNextSlice() {
         currentMaxSlice = Math.max(1, currentMaxSlice + 1);
     }
 
+    public synchronized int getKeyScheme() {
+        return keyScheme;
+    }
+
+    /**
+     * 按映射表替换键（键方案迁移用）。多个旧键映射到同一新键时合并引用计数，保留先出现的切片位置。
+     */
+    public synchronized void rekey(Map<ItemKey, ItemKey> mapping, int newScheme) {
+        Map<ItemKey, Entry> rekeyed = new HashMap<>();
+        for (Map.Entry<ItemKey, Entry> en : map.entrySet()) {
+            ItemKey target = mapping.getOrDefault(en.getKey(), en.getKey());
+            Entry existing = rekeyed.get(target);
+            if (existing == null) {
+                rekeyed.put(target, en.getValue());
+            } else if (en.getValue().ref > 0) {
+                existing.ref = Math.max(0, existing.ref) + en.getValue().ref;
+            }
+        }
+        map.clear();
+        map.putAll(rekeyed);
+        keyScheme = newScheme;
+    }
+
     // ===== 辅助访问器（供重建器/维护工具使用） =====
-    public java.util.Set<String> keys() { return map.keySet(); }
-    public Entry get(String key) { return map.get(key); }
+    /** 键集合的副本 */
+    public synchronized java.util.Set<ItemKey> keys() { return new java.util.HashSet<>(map.keySet()); }
+    public synchronized Entry get(ItemKey key) { return map.get(key); }
 }
 
 
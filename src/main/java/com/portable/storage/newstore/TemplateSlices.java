@@ -3,10 +3,19 @@ package com.portable.storage.newstore;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
 import net.minecraft.nbt.NbtOps;
 import net.minecraft.nbt.NbtSizeTracker;
 import net.minecraft.registry.RegistryWrapper;
@@ -15,105 +24,204 @@ import net.minecraft.server.MinecraftServer;
 import com.portable.storage.util.SafeNbtIo;
 
 /**
- * 模板切片管理：slice_XXX.nbt 中 templates[key] = item_full
+ * 模板切片管理：slice_XXX.pss 中 key -> item_full（格式见 {@link SliceFile}）
  * 单个切片超过阈值（50MB）时滚动到下一切片。
+ * 写入与删除通过 {@link #applyBatch} 按切片合并，每次保存每个切片最多改写一次；
+ * 写入失败的键不更新索引，由调用方重新登记。
+ * 旧版整文件 NBT 切片（slice_XXX.nbt）在启动时由 {@link #convertLegacySlices} 一次性转换。
  */
 public final class TemplateSlices {
     public static final long SLICE_MAX_BYTES = 50L * 1024L * 1024L; // 50MB
 
     private TemplateSlices() {}
 
-    public static ItemStack getTemplate(MinecraftServerLike server, TemplateIndex index, String key, RegistryWrapper.WrapperLookup lookup) {
+    public static ItemStack getTemplate(MinecraftServerLike server, TemplateIndex index, ItemKey key, RegistryWrapper.WrapperLookup lookup) {
         TemplateIndex.Entry e = index.find(key);
         if (e == null) return ItemStack.EMPTY;
         Path sliceFile = StoragePaths.getSliceFile(server.getServer(), e.slice);
         if (!Files.exists(sliceFile)) return ItemStack.EMPTY;
         
         try {
-            NbtCompound root = SafeNbtIo.readCompressed(sliceFile, NbtSizeTracker.ofUnlimitedBytes());
-            if (root == null || !root.contains("templates")) return ItemStack.EMPTY;
-            NbtCompound templates = root.getCompound("templates");
-            if (!templates.contains(key)) return ItemStack.EMPTY;
+            NbtElement item = SliceFile.read(sliceFile, key);
+            if (item == null) return ItemStack.EMPTY;
             var ops = (lookup != null) ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup) : NbtOps.INSTANCE;
-            var parse = ItemStack.CODEC.parse(ops, templates.get(key));
+            var parse = ItemStack.CODEC.parse(ops, item);
             return parse.result().orElse(ItemStack.EMPTY);
         } catch (IOException ex) {
-            // SafeNbtIo已经处理了损坏文件隔离，这里只记录日志
             com.portable.storage.PortableStorage.LOGGER.warn("读取模板切片失败，文件可能已损坏: {}", sliceFile, ex);
         }
         return ItemStack.EMPTY;
     }
 
-    public static int putTemplate(MinecraftServerLike server, TemplateIndex index, String key, ItemStack stack, RegistryWrapper.WrapperLookup lookup) {
-        // 选择切片：尽量使用当前切片，必要时滚动
-        int targetSlice = index.getOrAllocateSlice();
-        if (wouldExceedLimit(server.getServer(), targetSlice, estimateSize(stack, lookup))) {
-            index.rollToNextSlice();
-            targetSlice = index.getOrAllocateSlice();
+    public static int putTemplate(MinecraftServerLike server, TemplateIndex index, ItemKey key, ItemStack stack, RegistryWrapper.WrapperLookup lookup) {
+        BatchResult result = applyBatch(server, index, Map.of(key, stack), List.of(), lookup);
+        if (!result.isComplete()) {
+            // 直接写入失败：转为内存登记（写入变更日志），由定时保存重试
+            StorageMemoryCache.registerNewTemplate(key, stack.copy());
         }
+        TemplateIndex.Entry e = index.find(key);
+        return e != null ? e.slice : index.getOrAllocateSlice();
+    }
 
-        Path sliceFile = StoragePaths.getSliceFile(server.getServer(), targetSlice);
-        StoragePaths.ensureDirectories(server.getServer());
-        NbtCompound root;
-        try {
-            if (Files.exists(sliceFile)) {
-                root = SafeNbtIo.readCompressed(sliceFile, NbtSizeTracker.ofUnlimitedBytes());
-                if (root == null) root = new NbtCompound();
-            } else {
-                root = new NbtCompound();
-            }
-            NbtCompound templates = root.contains("templates") ? root.getCompound("templates") : new NbtCompound();
-            var ops = (lookup != null) ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup) : NbtOps.INSTANCE;
-            var enc = ItemStack.CODEC.encodeStart(ops, stack);
-            enc.result().ifPresent(nbt -> templates.put(key, nbt));
-            root.put("templates", templates);
-            SafeNbtIo.writeCompressed(root, sliceFile);
-
-            int size = estimateSize(stack, lookup);
-            index.put(key, targetSlice, size);
-            return targetSlice;
-        } catch (IOException ignored) {}
-        return targetSlice;
+    public static void removeTemplate(MinecraftServerLike server, TemplateIndex index, ItemKey key) {
+        applyBatch(server, index, Map.of(), List.of(key), null);
     }
 
-    public static void removeTemplate(MinecraftServerLike server, TemplateIndex index, String key) {
-        TemplateIndex.Entry e = index.find(key);
-        if (e == null) return;
-        Path sliceFile = StoragePaths.getSliceFile(server.getServer(), e.slice);
-        if (!Files.exists(sliceFile)) return;
-        try {
-            NbtCompound root = SafeNbtIo.readCompressed(sliceFile, NbtSizeTracker.ofUnlimitedBytes());
-            if (root == null) return;
-            if (root.contains("templates")) {
-                NbtCompound templates = root.getCompound("templates");
-                templates.remove(key);
-                root.put("templates", templates);
+    /**
+     * 批量写入结果：失败的键对应的索引项保持不变，调用方应重新登记并保留变更日志
+     * @param rewritten 实际改写的切片数
+     * @param failedWrites 未能写入（编码失败或所在切片写入失败）的模板
+     * @param failedRemoves 未能删除（所在切片写入失败）的模板
+     */
+    public record BatchResult(int rewritten, java.util.Set<ItemKey> failedWrites, java.util.Set<ItemKey> failedRemoves) {
+        public boolean isComplete() {
+            return failedWrites.isEmpty() && failedRemoves.isEmpty();
+        }
+    }
+
+    /**
+     * 批量写入/删除模板：按切片分组，每个受影响的切片只读写一次，未涉及的切片不触碰。
+     * 新模板写入索引登记的切片；该切片将超出上限时滚动到新切片，新切片写入成功后再清理旧切片中的副本。
+     * 索引只在对应切片写入成功后更新；失败的键记入结果，索引仍指向原来的位置。
+     */
+    public static BatchResult applyBatch(MinecraftServerLike server, TemplateIndex index, Map<ItemKey, ItemStack> writes,
+                                         Collection<ItemKey> removes, RegistryWrapper.WrapperLookup lookup) {
+        MinecraftServer mc = server.getServer();
+        Map<Integer, Map<ItemKey, NbtElement>> putsBySlice = new TreeMap<>();
+        Map<Integer, List<ItemKey>> removesBySlice = new TreeMap<>();
+        Map<ItemKey, Integer> relocatedFrom = new HashMap<>();
+        Map<ItemKey, Integer> sizes = new HashMap<>();
+        Map<Integer, Long> projectedBytes = new HashMap<>();
+        java.util.Set<ItemKey> failedWrites = new java.util.LinkedHashSet<>();
+        java.util.Set<ItemKey> failedRemoves = new java.util.LinkedHashSet<>();
+
+        var ops = (lookup != null) ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup) : NbtOps.INSTANCE;
+        for (Map.Entry<ItemKey, ItemStack> w : writes.entrySet()) {
+            ItemKey key = w.getKey();
+            Optional<NbtElement> enc = ItemStack.CODEC.encodeStart(ops, w.getValue()).result();
+            if (enc.isEmpty()) {
+                com.portable.storage.PortableStorage.LOGGER.error("模板编码失败，保留待下次重试: {}", key);
+                failedWrites.add(key);
+                continue;
+            }
+            int size = enc.get().getSizeInBytes();
+
+            TemplateIndex.Entry existing = index.find(key);
+            int slice = existing != null ? Math.max(1, existing.slice) : index.getOrAllocateSlice();
+            long projected = projectedBytes.computeIfAbsent(slice, s -> sliceFileSize(mc, s));
+            if (projected > 0 && projected + size > SLICE_MAX_BYTES) {
+                // 登记的切片已满：改写到当前切片，旧切片中可能存在的副本待新切片写入成功后再删除
+                int from = slice;
+                slice = index.getOrAllocateSlice();
+                projected = projectedBytes.computeIfAbsent(slice, s -> sliceFileSize(mc, s));
+                if (projected > 0 && projected + size > SLICE_MAX_BYTES) {
+                    index.rollToNextSlice();
+                    slice = index.getOrAllocateSlice();
+                    projected = projectedBytes.computeIfAbsent(slice, s -> sliceFileSize(mc, s));
+                }
+                if (existing != null && from != slice) relocatedFrom.put(key, from);
+            }
+            projectedBytes.put(slice, projected + size);
+            putsBySlice.computeIfAbsent(slice, s -> new LinkedHashMap<>()).put(key, enc.get());
+            sizes.put(key, size);
+        }
+        for (ItemKey key : removes) {
+            if (writes.containsKey(key)) continue;
+            TemplateIndex.Entry e = index.find(key);
+            if (e == null) continue;
+            removesBySlice.computeIfAbsent(Math.max(1, e.slice), s -> new ArrayList<>()).add(key);
+        }
+
+        java.util.Set<Integer> slices = new TreeSet<>(putsBySlice.keySet());
+        slices.addAll(removesBySlice.keySet());
+        if (!slices.isEmpty()) StoragePaths.ensureDirectories(mc);
+
+        int rewritten = 0;
+        for (int slice : slices) {
+            Map<ItemKey, NbtElement> puts = putsBySlice.getOrDefault(slice, Map.of());
+            List<ItemKey> dels = removesBySlice.getOrDefault(slice, List.of());
+            Path sliceFile = StoragePaths.getSliceFile(mc, slice);
+            try {
+                if (SliceFile.rewrite(sliceFile, puts, dels)) {
+                    rewritten++;
+                }
+            } catch (IOException ex) {
+                com.portable.storage.PortableStorage.LOGGER.error("写入模板切片失败，{} 个写入与 {} 个删除留待重试: {}", puts.size(), dels.size(), sliceFile, ex);
+                failedWrites.addAll(puts.keySet());
+                failedRemoves.addAll(dels);
+                continue;
+            }
+            for (ItemKey key : puts.keySet()) index.put(key, slice, sizes.get(key));
+            for (ItemKey key : dels) index.remove(key);
+        }
+
+        // 已成功改写到新切片的模板：清理旧切片中的副本（失败只留下无人引用的副本，不影响读取）
+        Map<Integer, List<ItemKey>> stale = new TreeMap<>();
+        for (Map.Entry<ItemKey, Integer> r : relocatedFrom.entrySet()) {
+            if (!failedWrites.contains(r.getKey())) stale.computeIfAbsent(r.getValue(), s -> new ArrayList<>()).add(r.getKey());
+        }
+        for (Map.Entry<Integer, List<ItemKey>> en : stale.entrySet()) {
+            Path sliceFile = StoragePaths.getSliceFile(mc, en.getKey());
+            try {
+                if (SliceFile.rewrite(sliceFile, Map.of(), en.getValue())) rewritten++;
+            } catch (IOException ex) {
+                com.portable.storage.PortableStorage.LOGGER.warn("清理旧切片中的模板副本失败: {}", sliceFile, ex);
             }
-            SafeNbtIo.writeCompressed(root, sliceFile);
-            index.remove(key);
-        } catch (IOException ignored) {}
+        }
+        return new BatchResult(rewritten, failedWrites, failedRemoves);
     }
 
-    private static boolean wouldExceedLimit(MinecraftServer server, int slice, int addBytes) {
-        try {
-            Path f = StoragePaths.getSliceFile(server, slice);
-            long existing = Files.exists(f) ? Files.size(f) : 0L;
-            return existing + Math.max(0, addBytes) > SLICE_MAX_BYTES;
+    /**
+     * 将旧版整文件 NBT 切片转换为随机访问格式；转换成功后删除旧文件。
+     * 旧版条目名为 32/64 位十六进制，均按前 128 位解析。
+     * @return 转换的切片数
+     */
+    public static int convertLegacySlices(MinecraftServer server) {
+        Path templatesDir = StoragePaths.getTemplatesDir(server);
+        if (!Files.exists(templatesDir)) return 0;
+        List<Path> legacyFiles;
+        try (var stream = Files.list(templatesDir)) {
+            legacyFiles = stream.filter(p -> p.getFileName().toString().matches("slice_\\d+\\.nbt")).sorted().toList();
         } catch (IOException e) {
-            return false;
+            com.portable.storage.PortableStorage.LOGGER.error("Failed to list template slices", e);
+            return 0;
+        }
+
+        int converted = 0;
+        for (Path legacy : legacyFiles) {
+            String name = legacy.getFileName().toString();
+            int ordinal = Integer.parseInt(name.substring("slice_".length(), name.length() - ".nbt".length()));
+            Path target = StoragePaths.getSliceFile(server, ordinal);
+            try {
+                if (!Files.exists(target)) {
+                    NbtCompound root = SafeNbtIo.readCompressed(legacy, NbtSizeTracker.ofUnlimitedBytes());
+                    if (root == null) continue; // 损坏文件已被隔离
+                    NbtCompound templates = root.getCompound("templates");
+                    Map<ItemKey, NbtElement> entries = new LinkedHashMap<>();
+                    for (String k : templates.getKeys()) {
+                        ItemKey key = ItemKey.fromHex(k);
+                        if (key != null) entries.put(key, templates.get(k));
+                    }
+                    SliceFile.write(target, entries);
+                    com.portable.storage.PortableStorage.LOGGER.info("Converted template slice {} ({} templates) to random-access format", name, entries.size());
+                }
+                // 目标已存在说明此前已转换完成，只是旧文件未删除
+                Files.deleteIfExists(legacy);
+                Files.deleteIfExists(legacy.resolveSibling(name + ".bak"));
+                converted++;
+            } catch (IOException e) {
+                com.portable.storage.PortableStorage.LOGGER.error("Failed to convert template slice {}", legacy, e);
+            }
         }
+        return converted;
     }
 
-    private static int estimateSize(ItemStack stack, RegistryWrapper.WrapperLookup lookup) {
+    private static long sliceFileSize(MinecraftServer server, int slice) {
         try {
-            var ops = (lookup != null) ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup) : NbtOps.INSTANCE;
-            var enc = ItemStack.CODEC.encodeStart(ops, stack);
-            Optional<net.minecraft.nbt.NbtElement> res = enc.result();
-            if (res.isEmpty()) return 0;
-            String s = res.get().toString();
-            return s.getBytes(java.nio.charset.StandardCharsets.UTF_8).length;
-        } catch (Exception e) {
-            return 0;
+            Path f = StoragePaths.getSliceFile(server, slice);
+            return Files.exists(f) ? Files.size(f) : 0L;
+        } catch (IOException e) {
+            return 0L;
         }
     }
 
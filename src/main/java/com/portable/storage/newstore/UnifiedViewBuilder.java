@@ -16,7 +16,7 @@ import net.minecraft.registry.RegistryWrapper;
 public final class UnifiedViewBuilder {
     private UnifiedViewBuilder() {}
 
-    public static NbtCompound build(StorageInventory legacy, Map<String, PlayerStore.Entry> newEntries,
+    public static NbtCompound build(StorageInventory legacy, Map<ItemKey, PlayerStore.Entry> newEntries,
                                     TemplateIndex index, RegistryWrapper.WrapperLookup lookup,
                                     TemplateSlices.MinecraftServerLike server) {
         NbtCompound out = new NbtCompound();
@@ -38,7 +38,7 @@ public final class UnifiedViewBuilder {
         if (newEntries != null && !newEntries.isEmpty()) {
             for (PlayerStore.Entry e : newEntries.values()) {
                 if (e.count <= 0) continue;
-                ItemStack stack = TemplateSlices.getTemplate(server, index, e.key, lookup);
+                ItemStack stack = StorageMemoryCache.getOrLoadTemplate(server.getServer(), e.key);
                 if (stack.isEmpty()) continue;
                 NbtCompound c = new NbtCompound();
                 var ops = (lookup != null) ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup) : NbtOps.INSTANCE;
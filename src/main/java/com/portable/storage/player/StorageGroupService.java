@@ -5,9 +5,8 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.UUID;
 
-import com.portable.storage.net.ServerNetworkingHandlers;
 import com.portable.storage.storage.StorageInventory;
-import com.portable.storage.storage.UpgradeInventory;
+import com.portable.storage.sync.SyncScheduler;
 
 import net.minecraft.item.ItemStack;
 import net.minecraft.server.MinecraftServer;
@@ -34,18 +33,10 @@ public final class StorageGroupService {
             if (added.add(ownerUuid)) list.add(StoragePersistence.loadStorage(server, ownerUuid));
         }
 
-        // 所有在线玩家中，凡是其升级槽位包含“绑定到 ownerUuid 的木桶”，均加入其仓库
-        for (ServerPlayerEntity p : server.getPlayerManager().getPlayerList()) {
-            UpgradeInventory up = PlayerStorageService.getUpgradeInventory(p);
-            boolean usesOwner = false;
-            for (int i = 0; i < up.getSlotCount(); i++) {
-                ItemStack st = up.getStack(i);
-                if (!st.isEmpty() && st.getItem() == net.minecraft.item.Items.BARREL) {
-                    UUID u = tryGetOwnerUuidFromItem(st);
-                    if (u != null && u.equals(ownerUuid)) { usesOwner = true; break; }
-                }
-            }
-            if (usesOwner && added.add(p.getUuid())) {
+        // 持有“绑定到 ownerUuid 的木桶”的在线玩家，均加入其仓库
+        for (UUID member : StorageMembershipGraph.membersOf(ownerUuid)) {
+            ServerPlayerEntity p = server.getPlayerManager().getPlayer(member);
+            if (p != null && added.add(member)) {
                 list.add(PlayerStorageService.getInventory(p));
             }
         }
@@ -104,52 +95,19 @@ public final class StorageGroupService {
      * 发送同步消息给所有受ownerUuid影响的玩家
      */
     private static void sendSyncToAffectedPlayers(MinecraftServer server, UUID ownerUuid) {
-        var players = server.getPlayerManager().getPlayerList();
-
         // 发送给所有者
         ServerPlayerEntity owner = server.getPlayerManager().getPlayer(ownerUuid);
         if (owner != null) {
-            ServerNetworkingHandlers.sendSync(owner);
+            SyncScheduler.requestStorageSync(owner);
         }
 
         // 发送给所有使用该ownerUuid绑定木桶的玩家
-        for (ServerPlayerEntity player : players) {
-            if (player.getUuid().equals(ownerUuid)) continue; // 所有者已经处理过了
-
-            UpgradeInventory upgrades = PlayerStorageService.getUpgradeInventory(player);
-            boolean usesThisOwner = false;
-
-            for (int i = 0; i < upgrades.getSlotCount(); i++) {
-                ItemStack stack = upgrades.getStack(i);
-                if (!stack.isEmpty() && stack.getItem() == net.minecraft.item.Items.BARREL) {
-                    UUID barrelOwner = tryGetOwnerUuidFromItem(stack);
-                    if (barrelOwner != null && barrelOwner.equals(ownerUuid)) {
-                        usesThisOwner = true;
-                        break;
-                    }
-                }
-            }
-
-            if (usesThisOwner) {
-                ServerNetworkingHandlers.sendSync(player);
+        for (UUID member : StorageMembershipGraph.membersOf(ownerUuid)) {
+            if (member.equals(ownerUuid)) continue; // 所有者已经处理过了
+            ServerPlayerEntity player = server.getPlayerManager().getPlayer(member);
+            if (player != null) {
+                SyncScheduler.requestStorageSync(player);
             }
         }
     }
-
-    private static java.util.UUID tryGetOwnerUuidFromItem(net.minecraft.item.ItemStack stack) {
-        try {
-            net.minecraft.component.type.NbtComponent comp = stack.get(net.minecraft.component.DataComponentTypes.CUSTOM_DATA);
-            if (comp == null) return null;
-            net.minecraft.nbt.NbtCompound nbt = comp.copyNbt();
-            if (nbt.contains("ps_owner_uuid_most") && nbt.contains("ps_owner_uuid_least")) {
-                return new java.util.UUID(nbt.getLong("ps_owner_uuid_most"), nbt.getLong("ps_owner_uuid_least"));
-            }
-            if (nbt.contains("ps_owner_uuid")) {
-                return nbt.getUuid("ps_owner_uuid");
-            }
-        } catch (Throwable ignored) {}
-        return null;
-    }
 }
-
-
@@ -0,0 +1,130 @@
+package com.portable.storage.player;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import net.minecraft.item.ItemStack;
+
+/**
+ * 在线玩家的共享仓库成员关系图：
+ * - 查看者 -> 其升级槽位中绑定木桶的所有者集合；
+ * - 所有者 -> 持有其绑定木桶的在线查看者集合。
+ * 由 {@link com.portable.storage.storage.UpgradeInventory} 在槽位变化时增量更新（玩家加入时绑定、离开时移除），
+ * 查询共享来源时不再遍历全部在线玩家及其升级槽位，也不必为每个木桶复制 CUSTOM_DATA。
+ * 每名查看者的共享来源集合在首次查询时计算并缓存，关系图任何变化都会清空缓存（变化远少于查询）。
+ */
+public final class StorageMembershipGraph {
+    private static final Map<UUID, Set<UUID>> BARREL_OWNERS_BY_VIEWER = new HashMap<>();
+    private static final Map<UUID, Set<UUID>> MEMBERS_BY_OWNER = new HashMap<>();
+    private static final Map<UUID, Set<UUID>> SOURCES_CACHE = new HashMap<>();
+
+    private StorageMembershipGraph() {}
+
+    /**
+     * 以查看者当前升级槽位中的木桶所有者集合替换其出边；集合未变化时不做任何事
+     */
+    public static synchronized void updateViewer(UUID viewer, Set<UUID> barrelOwners) {
+        Set<UUID> next = Set.copyOf(barrelOwners);
+        Set<UUID> prev = BARREL_OWNERS_BY_VIEWER.get(viewer);
+        if (next.equals(prev)) return;
+        if (prev != null) {
+            for (UUID owner : prev) {
+                if (!next.contains(owner)) unlink(owner, viewer);
+            }
+        }
+        for (UUID owner : next) {
+            MEMBERS_BY_OWNER.computeIfAbsent(owner, k -> new HashSet<>()).add(viewer);
+        }
+        BARREL_OWNERS_BY_VIEWER.put(viewer, next);
+        SOURCES_CACHE.clear();
+    }
+
+    public static synchronized void removeViewer(UUID viewer) {
+        Set<UUID> prev = BARREL_OWNERS_BY_VIEWER.remove(viewer);
+        if (prev != null) {
+            for (UUID owner : prev) unlink(owner, viewer);
+        }
+        SOURCES_CACHE.clear();
+    }
+
+    /**
+     * 查看者所依附的根拥有者：其持有的他人木桶的所有者；未依附任何人时为自己
+     */
+    public static synchronized Set<UUID> rootOwners(UUID viewer) {
+        Set<UUID> roots = new LinkedHashSet<>();
+        for (UUID owner : BARREL_OWNERS_BY_VIEWER.getOrDefault(viewer, Set.of())) {
+            if (!owner.equals(viewer)) roots.add(owner);
+        }
+        if (roots.isEmpty()) roots.add(viewer);
+        return roots;
+    }
+
+    /**
+     * 持有指定所有者绑定木桶的在线玩家（副本）
+     */
+    public static synchronized Set<UUID> membersOf(UUID owner) {
+        Set<UUID> members = MEMBERS_BY_OWNER.get(owner);
+        return members != null ? new LinkedHashSet<>(members) : new LinkedHashSet<>();
+    }
+
+    /**
+     * 查看者合并视图的来源：自己、所依附的根拥有者，以及同样依附这些根拥有者的在线玩家（只读，缓存）
+     */
+    public static synchronized Set<UUID> sharedSources(UUID viewer) {
+        Set<UUID> cached = SOURCES_CACHE.get(viewer);
+        if (cached != null) return cached;
+        Set<UUID> sources = new LinkedHashSet<>();
+        sources.add(viewer);
+        Set<UUID> roots = rootOwners(viewer);
+        sources.addAll(roots);
+        for (UUID root : roots) {
+            Set<UUID> members = MEMBERS_BY_OWNER.get(root);
+            if (members != null) sources.addAll(members);
+        }
+        Set<UUID> result = Collections.unmodifiableSet(sources);
+        SOURCES_CACHE.put(viewer, result);
+        return result;
+    }
+
+    public static synchronized void clear() {
+        BARREL_OWNERS_BY_VIEWER.clear();
+        MEMBERS_BY_OWNER.clear();
+        SOURCES_CACHE.clear();
+    }
+
+    public static synchronized String getStats() {
+        return String.format("viewers=%d, owners=%d, cachedSources=%d",
+            BARREL_OWNERS_BY_VIEWER.size(), MEMBERS_BY_OWNER.size(), SOURCES_CACHE.size());
+    }
+
+    /**
+     * 解析绑定木桶上的所有者 UUID，非绑定木桶返回 null
+     */
+    public static UUID barrelOwnerOf(ItemStack stack) {
+        if (stack.isEmpty() || stack.getItem() != net.minecraft.item.Items.BARREL) return null;
+        try {
+            net.minecraft.component.type.NbtComponent comp = stack.get(net.minecraft.component.DataComponentTypes.CUSTOM_DATA);
+            if (comp == null) return null;
+            net.minecraft.nbt.NbtCompound nbt = comp.copyNbt();
+            if (nbt.contains("ps_owner_uuid_most") && nbt.contains("ps_owner_uuid_least")) {
+                return new UUID(nbt.getLong("ps_owner_uuid_most"), nbt.getLong("ps_owner_uuid_least"));
+            }
+            if (nbt.contains("ps_owner_uuid")) {
+                return nbt.getUuid("ps_owner_uuid");
+            }
+        } catch (Throwable ignored) {}
+        return null;
+    }
+
+    private static void unlink(UUID owner, UUID viewer) {
+        Set<UUID> members = MEMBERS_BY_OWNER.get(owner);
+        if (members == null) return;
+        members.remove(viewer);
+        if (members.isEmpty()) MEMBERS_BY_OWNER.remove(owner);
+    }
+}
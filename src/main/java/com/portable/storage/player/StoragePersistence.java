@@ -6,6 +6,7 @@ import java.nio.file.Path;
 import java.util.UUID;
 
 import com.portable.storage.storage.StorageInventory;
+import com.portable.storage.sync.ChangeAccumulator;
 import com.portable.storage.util.SafeNbtIo;
 
 import net.minecraft.nbt.NbtCompound;
@@ -21,36 +22,55 @@ public final class StoragePersistence {
 
     public static StorageInventory loadStorage(MinecraftServer server, UUID uuid) {
         StorageInventory inv = new StorageInventory(0);
+        NbtCompound nbt = loadStorageNbt(server, uuid);
+        if (nbt != null) inv.readNbt(nbt);
+        return inv;
+    }
+
+    /**
+     * 只读取玩家数据文件中的随身仓库 NBT（"portable_storage"），不构建仓库；不存在或读取失败时返回 null。
+     */
+    public static NbtCompound loadStorageNbt(MinecraftServer server, UUID uuid) {
         try {
             Path dir = server.getSavePath(WorldSavePath.PLAYERDATA);
             Path file = dir.resolve(uuid.toString() + ".dat");
-            if (!Files.exists(file)) return inv; // 空
+            if (!Files.exists(file)) return null;
             NbtCompound root = SafeNbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
             if (root != null && root.contains("portable_storage")) {
-                inv.readNbt(root.getCompound("portable_storage"));
+                return root.getCompound("portable_storage");
             }
         } catch (IOException ignored) {}
-        return inv;
+        return null;
     }
 
     public static void saveStorage(MinecraftServer server, UUID uuid, StorageInventory inv) {
         try {
-            Path dir = server.getSavePath(WorldSavePath.PLAYERDATA);
-            Files.createDirectories(dir);
-            Path file = dir.resolve(uuid.toString() + ".dat");
-            NbtCompound root;
-            if (Files.exists(file)) {
-                root = SafeNbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
-                if (root == null) root = new NbtCompound();
-            } else {
-                root = new NbtCompound();
-            }
-            NbtCompound out = new NbtCompound();
-            inv.writeNbt(out);
-            root.put("portable_storage", out);
-            SafeNbtIo.writeCompressed(root, file);
+            saveStorageChecked(server, uuid, inv);
         } catch (IOException ignored) {}
     }
+
+    /**
+     * 与 {@link #saveStorage} 相同，但写入失败时抛出异常，供需要回滚的调用方使用。
+     */
+    public static void saveStorageChecked(MinecraftServer server, UUID uuid, StorageInventory inv) throws IOException {
+        Path dir = server.getSavePath(WorldSavePath.PLAYERDATA);
+        Files.createDirectories(dir);
+        Path file = dir.resolve(uuid.toString() + ".dat");
+        NbtCompound root;
+        if (Files.exists(file)) {
+            root = SafeNbtIo.readCompressed(file, NbtSizeTracker.ofUnlimitedBytes());
+            if (root == null) root = new NbtCompound();
+        } else {
+            root = new NbtCompound();
+        }
+        NbtCompound out = new NbtCompound();
+        inv.writeNbt(out);
+        root.put("portable_storage", out);
+        SafeNbtIo.writeCompressed(root, file);
+        // 旧版仓库无法按键描述变更，相关查看者下次同步回退为快照 diff
+        ChangeAccumulator.markOwnerChanged(uuid);
+        com.portable.storage.newstore.StorageAvailability.invalidateLegacy(uuid);
+    }
 }
 
 
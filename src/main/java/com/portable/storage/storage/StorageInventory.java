@@ -27,6 +27,7 @@ public class StorageInventory {
 
     private final List<Entry> variants = new ArrayList<>();
     private List<Integer> sortedIndices = null; // 缓存视图顺序（索引到 variants）
+    private boolean readOnly = false; // 只读快照（合并视图缓存共享给多个调用方）
 
     public StorageInventory(int ignoredCapacity) { }
 
@@ -36,6 +37,34 @@ public class StorageInventory {
 
     private void markDirty() { sortedIndices = null; }
 
+    private void ensureMutable() {
+        if (readOnly) throw new IllegalStateException("StorageInventory snapshot is read-only");
+    }
+
+    /**
+     * 追加一个变体而不查找同变体（仅用于构建快照，调用方保证各变体互不相同）
+     */
+    public void appendDistinctVariant(ItemStack template, long count, long ts) {
+        ensureMutable();
+        if (template == null || template.isEmpty() || count <= 0) return;
+        Entry e = new Entry();
+        e.template = template.copyWithCount(1);
+        e.count = count;
+        e.updatedAt = ts;
+        variants.add(e);
+        markDirty();
+    }
+
+    /**
+     * 转为只读快照：之后的插入、提取与清空都会抛出 {@link IllegalStateException}
+     */
+    public StorageInventory freeze() {
+        readOnly = true;
+        return this;
+    }
+
+    public boolean isReadOnly() { return readOnly; }
+
     public int getCapacity() { return variants.size(); }
 
     private List<Integer> getSortedIndices() {
@@ -101,6 +130,7 @@ public class StorageInventory {
     }
 
     public long takeByIndex(int index, long want, long ts) {
+        ensureMutable();
         if (want <= 0) return 0;
         Entry e = getEntryByViewIndex(index);
         if (e == null || e.count <= 0) return 0;
@@ -114,10 +144,42 @@ public class StorageInventory {
         return got;
     }
 
+    /**
+     * 指定变体（物品与组件完全一致）的数量
+     */
+    public long countVariant(ItemStack variant) {
+        if (variant == null || variant.isEmpty()) return 0L;
+        for (Entry e : variants) {
+            if (e.count > 0 && stacksEqual(e.template, variant)) return e.count;
+        }
+        return 0L;
+    }
+
+    /**
+     * 按变体提取，不依赖视图索引（提取后索引会重排）。返回实际提取数量。
+     */
+    public long takeVariant(ItemStack variant, long want, long ts) {
+        ensureMutable();
+        if (variant == null || variant.isEmpty() || want <= 0) return 0L;
+        for (Entry e : variants) {
+            if (e.count <= 0 || !stacksEqual(e.template, variant)) continue;
+            long got = Math.min(e.count, want);
+            e.count -= got;
+            e.updatedAt = ts;
+            if (e.count == 0) {
+                variants.remove(e);
+            }
+            markDirty();
+            return got;
+        }
+        return 0L;
+    }
+
     /**
      * 向仓库插入完整的 ItemStack（保留组件）。返回剩余无法存入的部分。
      */
     public ItemStack insertItemStack(ItemStack stack, long ts) {
+        ensureMutable();
         if (stack == null || stack.isEmpty()) return ItemStack.EMPTY;
         // 查找同变体
         for (Entry e : variants) {
@@ -142,6 +204,7 @@ public class StorageInventory {
      * 向仓库插入物品，保留原有的时间戳（仅用于合并快照）。
      */
     public void insertItemStackWithOriginalTimestamp(ItemStack stack, long originalTimestamp) {
+        ensureMutable();
         if (stack == null || stack.isEmpty()) return;
         // 查找同变体
         for (Entry e : variants) {
@@ -179,7 +242,7 @@ public class StorageInventory {
 
     public boolean isEmpty() { return variants.isEmpty(); }
 
-    public void clear() { variants.clear(); markDirty(); }
+    public void clear() { ensureMutable(); variants.clear(); markDirty(); }
 
     public NbtCompound writeNbt(NbtCompound out) {
         return writeNbt(out, null);
@@ -236,32 +299,7 @@ public class StorageInventory {
             (lookup != null) ? net.minecraft.registry.RegistryOps.of(NbtOps.INSTANCE, lookup) : NbtOps.INSTANCE;
         for (int i = 0; i < list.size(); i++) {
             NbtCompound c = list.getCompound(i);
-            ItemStack template = ItemStack.EMPTY;
-            // 优先读取完整模板
-            if (c.contains("item_full")) {
-                var parse = ItemStack.CODEC.parse(ops, c.get("item_full"));
-                template = parse.result().orElse(ItemStack.EMPTY);
-            }
-            // 兼容旧字段
-            if (template.isEmpty() && c.contains("item", NbtElement.COMPOUND_TYPE)) {
-                NbtCompound itemTag = c.getCompound("item");
-                net.minecraft.util.Identifier id = net.minecraft.util.Identifier.tryParse(itemTag.getString("id"));
-                if (id != null) {
-                    net.minecraft.item.Item item = Registries.ITEM.get(id);
-                    if (item != null && item != net.minecraft.item.Items.AIR) {
-                        template = new ItemStack(item);
-                        if (itemTag.contains("custom", NbtElement.COMPOUND_TYPE)) {
-                            template.set(net.minecraft.component.DataComponentTypes.CUSTOM_DATA, net.minecraft.component.type.NbtComponent.of(itemTag.getCompound("custom")));
-                        }
-                        if (itemTag.contains("block_entity", NbtElement.COMPOUND_TYPE)) {
-                            template.set(net.minecraft.component.DataComponentTypes.BLOCK_ENTITY_DATA, net.minecraft.component.type.NbtComponent.of(itemTag.getCompound("block_entity")));
-                        }
-                        if (itemTag.contains("glint", NbtElement.BYTE_TYPE) && itemTag.getBoolean("glint")) {
-                            template.set(net.minecraft.component.DataComponentTypes.ENCHANTMENT_GLINT_OVERRIDE, true);
-                        }
-                    }
-                }
-            }
+            ItemStack template = readTemplate(c, ops);
             if (template.isEmpty()) continue;
             Entry e = new Entry();
             e.template = template;
@@ -271,5 +309,39 @@ public class StorageInventory {
         }
         markDirty();
     }
+
+    /**
+     * 读取 "entries" 中单条记录的物品模板（优先完整模板，兼容旧字段），无法解析时返回空。
+     * 供只需要计数而不构建整个仓库的调用方直接遍历 NBT 使用。
+     */
+    public static ItemStack readTemplate(NbtCompound c, DynamicOps<NbtElement> ops) {
+        ItemStack template = ItemStack.EMPTY;
+        // 优先读取完整模板
+        if (c.contains("item_full")) {
+            var parse = ItemStack.CODEC.parse(ops, c.get("item_full"));
+            template = parse.result().orElse(ItemStack.EMPTY);
+        }
+        // 兼容旧字段
+        if (template.isEmpty() && c.contains("item", NbtElement.COMPOUND_TYPE)) {
+            NbtCompound itemTag = c.getCompound("item");
+            net.minecraft.util.Identifier id = net.minecraft.util.Identifier.tryParse(itemTag.getString("id"));
+            if (id != null) {
+                net.minecraft.item.Item item = Registries.ITEM.get(id);
+                if (item != null && item != net.minecraft.item.Items.AIR) {
+                    template = new ItemStack(item);
+                    if (itemTag.contains("custom", NbtElement.COMPOUND_TYPE)) {
+                        template.set(net.minecraft.component.DataComponentTypes.CUSTOM_DATA, net.minecraft.component.type.NbtComponent.of(itemTag.getCompound("custom")));
+                    }
+                    if (itemTag.contains("block_entity", NbtElement.COMPOUND_TYPE)) {
+                        template.set(net.minecraft.component.DataComponentTypes.BLOCK_ENTITY_DATA, net.minecraft.component.type.NbtComponent.of(itemTag.getCompound("block_entity")));
+                    }
+                    if (itemTag.contains("glint", NbtElement.BYTE_TYPE) && itemTag.getBoolean("glint")) {
+                        template.set(net.minecraft.component.DataComponentTypes.ENCHANTMENT_GLINT_OVERRIDE, true);
+                    }
+                }
+            }
+        }
+        return template;
+    }
 }
 
@@ -1,6 +1,7 @@
 package com.portable.storage.storage;
 
 import com.portable.storage.player.PlayerStorageAccess;
+import com.portable.storage.player.StorageMembershipGraph;
 import net.minecraft.item.ItemStack;
 import net.minecraft.item.Items;
 import net.minecraft.nbt.NbtCompound;
@@ -20,11 +21,37 @@ public class UpgradeInventory {
     
     // 使用统一升级管理器
     private final UnifiedUpgradeManager upgradeManager;
+    // 持有者（在线玩家）UUID；绑定后槽位变化会同步到共享成员关系图
+    private java.util.UUID holder;
     
     
     public UpgradeInventory() {
         this.upgradeManager = new UnifiedUpgradeManager();
     }
+
+    /**
+     * 绑定在线持有者并把当前木桶写入共享成员关系图（玩家加入时调用），传入 null 解除绑定
+     */
+    public void bindHolder(java.util.UUID holder) {
+        this.holder = holder;
+        onSlotsChanged();
+    }
+
+    /**
+     * 升级槽位中绑定木桶的所有者集合
+     */
+    public java.util.Set<java.util.UUID> getBarrelOwners() {
+        java.util.Set<java.util.UUID> owners = new java.util.LinkedHashSet<>();
+        for (int i = 0; i < TOTAL_SLOT_COUNT; i++) {
+            java.util.UUID owner = StorageMembershipGraph.barrelOwnerOf(getStack(i));
+            if (owner != null) owners.add(owner);
+        }
+        return owners;
+    }
+
+    private void onSlotsChanged() {
+        if (holder != null) StorageMembershipGraph.updateViewer(holder, getBarrelOwners());
+    }
     
     /**
      * 获取总槽位数量
@@ -125,6 +152,7 @@ public class UpgradeInventory {
             int extendedSlot = slot - BASE_SLOT_COUNT;
             upgradeManager.setExtendedSlot(extendedSlot, stack);
         }
+        onSlotsChanged();
     }
     
     /**
@@ -390,18 +418,21 @@ public class UpgradeInventory {
             }
         }
 
+        boolean inserted;
         if (slot < BASE_SLOT_COUNT) {
             // 基础槽位
             if (player != null) {
-                return upgradeManager.tryInsertBaseSlot(slot, stack, player.getUuid(), player.getName().getString());
+                inserted = upgradeManager.tryInsertBaseSlot(slot, stack, player.getUuid(), player.getName().getString());
             } else {
-                return upgradeManager.tryInsertBaseSlot(slot, stack, playerUuid, playerName);
+                inserted = upgradeManager.tryInsertBaseSlot(slot, stack, playerUuid, playerName);
             }
         } else {
             // 扩展槽位（映射到统一管理器的0-4）
             int extendedSlot = slot - BASE_SLOT_COUNT;
-            return upgradeManager.tryInsertExtendedSlot(extendedSlot, stack);
+            inserted = upgradeManager.tryInsertExtendedSlot(extendedSlot, stack);
         }
+        if (inserted) onSlotsChanged();
+        return inserted;
     }
     
     
@@ -413,14 +444,17 @@ public class UpgradeInventory {
             return ItemStack.EMPTY;
         }
         
+        ItemStack taken;
         if (slot < BASE_SLOT_COUNT) {
             // 基础槽位
-            return upgradeManager.takeBaseSlot(slot);
+            taken = upgradeManager.takeBaseSlot(slot);
         } else {
             // 扩展槽位（映射到统一管理器的0-4）
             int extendedSlot = slot - BASE_SLOT_COUNT;
-            return upgradeManager.takeExtendedSlot(extendedSlot);
+            taken = upgradeManager.takeExtendedSlot(extendedSlot);
         }
+        if (!taken.isEmpty()) onSlotsChanged();
+        return taken;
     }
     
     /**
@@ -458,6 +492,7 @@ public class UpgradeInventory {
      */
     public void readNbt(NbtCompound nbt) {
         upgradeManager.readNbt(nbt);
+        onSlotsChanged();
     }
     
     /**
@@ -472,6 +507,7 @@ public class UpgradeInventory {
      */
     public void clearExtendedSlots() {
         upgradeManager.clearExtendedSlots();
+        onSlotsChanged();
     }
 
     // ===== 附魔之瓶经验池 API =====
@@ -1,16 +1,140 @@
 package com.portable.storage.sync;
 
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
+import com.portable.storage.newstore.ItemKey;
+
 /**
- * 增量同步已移除：积攒器降级为空实现以保持兼容。
+ * 变更积攒器：存储层在变更时写入事件，增量同步只处理自上次同步以来被触及的键。
+ *
+ * - 新版存储（{@link com.portable.storage.newstore.PlayerStore}）每次 add/remove 记录一条（拥有者, 键, 增量, 时间）事件；
+ * - 无法按键描述的变更（整体覆盖、旧版仓库写回）记录为拥有者级事件，相关查看者回退为快照 diff；
+ * - 每名查看者保存一个游标（已应用到的事件序号）与建立基线时的来源集合，
+ *   {@link #collect} 只遍历游标之后的事件并按键合并，开销与变更速率成正比，与仓库大小无关。
+ * 事件日志有上限，落后过多（或从未建立基线、来源集合变化）的查看者同样回退为快照 diff。
+ * 旧版仓库可能不经日志被改写（如原版玩家数据保存/加载），游标同时记录各来源旧版索引的身份
+ * （{@link com.portable.storage.newstore.StorageAvailability#legacyStamp}），身份变化时同样回退。
  */
-public class ChangeAccumulator {
-    public static void addChange(UUID playerId, Object ignored) {}
-    public static void markFullSync(UUID playerId) {}
-    public static void processPlayerChanges(net.minecraft.server.network.ServerPlayerEntity player) {}
-    public static void processPendingSyncs(Collection<net.minecraft.server.network.ServerPlayerEntity> onlinePlayers) {}
-    public static void cleanupPlayer(UUID playerId) {}
-    public static String getStats() { return "disabled"; }
+public final class ChangeAccumulator {
+    private static final int MAX_EVENTS = 8192;
+
+    private record Event(long seq, UUID owner, ItemKey key, long delta, long ts) {}
+
+    private record Cursor(long seq, Set<UUID> sources, Map<UUID, Object> legacyStamps) {}
+
+    /**
+     * 合并后的单键变更：delta 为各来源增量之和，ts 为最后一次变更时间
+     */
+    public static final class Change {
+        public long delta;
+        public long ts;
+    }
+
+    private static final ArrayDeque<Event> LOG = new ArrayDeque<>();
+    private static final Map<UUID, Cursor> CURSORS = new HashMap<>();
+    private static long nextSeq = 1L;
+    private static long recorded = 0L;
+    private static long collected = 0L;
+    private static long fallbacks = 0L;
+
+    private ChangeAccumulator() {}
+
+    /**
+     * 记录新版存储中某拥有者单个键的数量变化
+     */
+    public static synchronized void recordStoreChange(UUID owner, ItemKey key, long delta, long ts) {
+        if (owner == null || key == null || delta == 0) return;
+        append(new Event(nextSeq++, owner, key, delta, ts));
+    }
+
+    /**
+     * 记录无法按键描述的拥有者级变更（整体覆盖、旧版仓库写回等）
+     */
+    public static synchronized void markOwnerChanged(UUID owner) {
+        if (owner == null) return;
+        append(new Event(nextSeq++, owner, null, 0L, 0L));
+    }
+
+    /**
+     * 查看者下次同步时强制走快照 diff
+     */
+    public static synchronized void markFullSync(UUID viewerId) {
+        CURSORS.remove(viewerId);
+    }
+
+    /**
+     * 查看者已按当前状态建立基线（全量同步或快照 diff 之后调用）
+     */
+    public static synchronized void resetBaseline(UUID viewerId, Collection<UUID> sources, Map<UUID, Object> legacyStamps) {
+        CURSORS.put(viewerId, new Cursor(nextSeq - 1, Set.copyOf(sources), new HashMap<>(legacyStamps)));
+    }
+
+    /**
+     * 收集查看者自基线以来、来自 sources 的按键合并变更并推进游标。
+     * legacyStamps 为各来源当前的旧版索引身份，与基线时不同（按对象身份比较）也返回 null。
+     * 返回 null 表示无法增量描述，调用方应回退为快照 diff（之后调用 {@link #resetBaseline}）。
+     */
+    public static synchronized Map<ItemKey, Change> collect(UUID viewerId, Set<UUID> sources, Map<UUID, Object> legacyStamps) {
+        Cursor cursor = CURSORS.get(viewerId);
+        long oldest = LOG.isEmpty() ? nextSeq : LOG.peekFirst().seq();
+        if (cursor == null || !cursor.sources().equals(sources) || cursor.seq() + 1 < oldest) {
+            fallbacks++;
+            return null;
+        }
+        for (UUID source : sources) {
+            if (cursor.legacyStamps().get(source) != legacyStamps.get(source)) {
+                fallbacks++;
+                return null;
+            }
+        }
+        Map<ItemKey, Change> out = new HashMap<>();
+        // 日志按序号递增，从尾部向前找到游标位置后再顺序合并
+        Iterator<Event> it = LOG.descendingIterator();
+        ArrayDeque<Event> pending = new ArrayDeque<>();
+        while (it.hasNext()) {
+            Event e = it.next();
+            if (e.seq() <= cursor.seq()) break;
+            pending.push(e);
+        }
+        for (Event e : pending) {
+            if (!sources.contains(e.owner())) continue;
+            if (e.key() == null) {
+                fallbacks++;
+                return null;
+            }
+            Change c = out.computeIfAbsent(e.key(), k -> new Change());
+            c.delta += e.delta();
+            c.ts = e.ts();
+        }
+        CURSORS.put(viewerId, new Cursor(nextSeq - 1, cursor.sources(), cursor.legacyStamps()));
+        collected += pending.size();
+        return out;
+    }
+
+    public static synchronized void cleanupPlayer(UUID playerId) {
+        CURSORS.remove(playerId);
+    }
+
+    public static synchronized void clear() {
+        LOG.clear();
+        CURSORS.clear();
+    }
+
+    public static synchronized String getStats() {
+        return String.format("events=%d/%d, viewers=%d, recorded=%d, collected=%d, fallbacks=%d",
+            LOG.size(), MAX_EVENTS, CURSORS.size(), recorded, collected, fallbacks);
+    }
+
+    private static void append(Event e) {
+        LOG.addLast(e);
+        recorded++;
+        // 超出上限时丢弃最旧事件，游标落在其之前的查看者下次回退为快照 diff
+        while (LOG.size() > MAX_EVENTS) LOG.pollFirst();
+    }
 }
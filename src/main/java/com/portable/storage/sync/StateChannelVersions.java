@@ -0,0 +1,74 @@
+package com.portable.storage.sync;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.portable.storage.net.payload.ConfigSyncS2CPayload;
+
+import net.minecraft.nbt.NbtCompound;
+
+/**
+ * 状态通道版本：升级、启用状态与各项配置（{@link ConfigSyncS2CPayload.Topic}）按玩家、按通道记录上次下发的内容与版本号。
+ * 内容与上次相同时不再重发；内容变化时版本号递增并随数据一起下发（"stateVersion"）。
+ * 玩家断开时清除，重新进入后首次同步总会下发；{@link #invalidate} 用于强制重发。
+ */
+public final class StateChannelVersions {
+    private static final class Channel {
+        int version;
+        NbtCompound last;
+    }
+
+    private static final Map<UUID, Map<ConfigSyncS2CPayload.Topic, Channel>> BY_PLAYER = new ConcurrentHashMap<>();
+    private static long sent = 0L;
+    private static long skipped = 0L;
+
+    private StateChannelVersions() {}
+
+    /**
+     * 内容有变化（或尚未下发过）时记录新版本并返回版本号，否则返回 -1 表示无需下发
+     */
+    public static synchronized int nextVersionIfChanged(UUID playerId, ConfigSyncS2CPayload.Topic topic, NbtCompound data) {
+        Channel ch = BY_PLAYER.computeIfAbsent(playerId, id -> new EnumMap<>(ConfigSyncS2CPayload.Topic.class))
+            .computeIfAbsent(topic, t -> new Channel());
+        if (ch.last != null && ch.last.equals(data)) {
+            skipped++;
+            return -1;
+        }
+        ch.last = data.copy();
+        sent++;
+        return ++ch.version;
+    }
+
+    /**
+     * 清除玩家所有通道的上次内容，下次同步时全部重发（版本号继续递增）
+     */
+    public static synchronized void invalidate(UUID playerId) {
+        Map<ConfigSyncS2CPayload.Topic, Channel> channels = BY_PLAYER.get(playerId);
+        if (channels == null) return;
+        for (Channel ch : channels.values()) ch.last = null;
+    }
+
+    /**
+     * 清除玩家单个通道的上次内容，下次下发该通道时必定重发；用于客户端可能已在本地改动该通道状态的场合
+     */
+    public static synchronized void invalidate(UUID playerId, ConfigSyncS2CPayload.Topic topic) {
+        Map<ConfigSyncS2CPayload.Topic, Channel> channels = BY_PLAYER.get(playerId);
+        if (channels == null) return;
+        Channel ch = channels.get(topic);
+        if (ch != null) ch.last = null;
+    }
+
+    public static synchronized void cleanupPlayer(UUID playerId) {
+        BY_PLAYER.remove(playerId);
+    }
+
+    public static synchronized void clear() {
+        BY_PLAYER.clear();
+    }
+
+    public static synchronized String getStats() {
+        return String.format("players=%d, sent=%d, skipped=%d", BY_PLAYER.size(), sent, skipped);
+    }
+}
@@ -5,12 +5,36 @@ import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 
+import com.portable.storage.config.ServerConfig;
+import com.portable.storage.net.payload.IncrementalStorageSyncS2CPayload;
+import com.portable.storage.net.payload.StorageSyncCodec;
+import com.portable.storage.net.payload.TemplateCacheKeysC2SPayload;
+import com.portable.storage.newstore.ItemKey;
+
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.item.ItemStack;
+import net.minecraft.server.network.ServerPlayerEntity;
+
 /**
- * 同步管理器：负责管理会话与序号，后续将承载发送窗口与 ACK/重传。
+ * 同步管理器：负责管理会话、序号、会话内的键编号表，以及增量分包的发送窗口。
+ *
+ * 发送窗口：每名玩家最多有 incremental_sync_window 个未确认的分包；
+ * 窗口已满时新的变化按编号合并（增量相加、时间取最新）到待发队列，收到 ACK 腾出窗口后再发送。
+ * 客户端 ACK 为累计确认（已连续应用到的序号）；success=false 表示其后有缺包，
+ * 服务端重发仍未确认的分包，只有无法重发时才回退为全量同步。
  */
 public class StorageSyncManager {
     private static final Map<UUID, SessionState> SESSION_BY_PLAYER = new ConcurrentHashMap<>();
-    private static final Map<UUID, Map<String, SnapshotEntry>> LAST_SNAPSHOT_BY_PLAYER = new ConcurrentHashMap<>();
+    private static final Map<UUID, Map<ItemKey, SnapshotEntry>> LAST_SNAPSHOT_BY_PLAYER = new ConcurrentHashMap<>();
+    private static final Map<UUID, KeyDictionary> DICTIONARY_BY_PLAYER = new ConcurrentHashMap<>();
+    private static final Map<UUID, SendWindow> WINDOW_BY_PLAYER = new ConcurrentHashMap<>();
+    private static final Map<UUID, java.util.Set<ItemKey>> HELD_KEYS_BY_PLAYER = new ConcurrentHashMap<>();
+    private static final Map<UUID, java.util.concurrent.atomic.AtomicInteger> HELD_REPORTS_BY_PLAYER = new ConcurrentHashMap<>();
+    private static final long STARTED_AT = System.currentTimeMillis();
+    private static long chunksSent = 0L;
+    private static long updatesCoalesced = 0L;
+    private static long retransmits = 0L;
+    private static long resyncs = 0L;
 
     private record SessionState(long sessionId, int nextSeq) {}
     public static final class SnapshotEntry {
@@ -22,19 +46,134 @@ public class StorageSyncManager {
         }
     }
 
+    /**
+     * 会话内的键编号表：每个物品键首次下发时分配 varint 编号并附带模板，之后只用编号引用。
+     * 新会话（全量同步）时整体重置，客户端同步清空。
+     * 客户端已缓存的键（held，跨会话保留）只发送键；模板暂存，客户端缓存意外缺失时可按需请求。
+     */
+    public static final class KeyDictionary {
+        private final Map<ItemKey, Integer> ids = new java.util.HashMap<>();
+        private final Map<Integer, StorageSyncCodec.Define> pendingTemplates = new java.util.HashMap<>();
+        private final java.util.Set<ItemKey> held;
+        private int nextId = 0;
+
+        public KeyDictionary() {
+            this(new java.util.HashSet<>());
+        }
+
+        KeyDictionary(java.util.Set<ItemKey> held) {
+            this.held = held;
+        }
+
+        /**
+         * 已分配的编号，未分配返回 -1
+         */
+        public int lookup(ItemKey key) {
+            Integer id = ids.get(key);
+            return id != null ? id : -1;
+        }
+
+        /**
+         * 返回键的编号；首次出现时分配编号并把模板定义追加到 defines
+         */
+        public int define(ItemKey key, ItemStack template, java.util.List<StorageSyncCodec.Define> defines) {
+            Integer id = ids.get(key);
+            if (id != null) return id;
+            int assigned = nextId++;
+            ids.put(key, assigned);
+            ItemStack copy = template.copyWithCount(1);
+            if (held.contains(key)) {
+                pendingTemplates.put(assigned, new StorageSyncCodec.Define(assigned, key, copy));
+                defines.add(new StorageSyncCodec.Define(assigned, key, null));
+            } else {
+                defines.add(new StorageSyncCodec.Define(assigned, key, copy));
+                markHeld(key);
+            }
+            return assigned;
+        }
+
+        /**
+         * 窗口化同步：分配编号但只输出轻量定义，完整模板暂存到客户端请求时再下发
+         */
+        public int stub(ItemKey key, ItemStack template, java.util.List<StorageSyncCodec.Stub> stubs) {
+            Integer id = ids.get(key);
+            if (id != null) return id;
+            int assigned = nextId++;
+            ids.put(key, assigned);
+            pendingTemplates.put(assigned, new StorageSyncCodec.Define(assigned, key, template.copyWithCount(1)));
+            stubs.add(StorageSyncCodec.Stub.of(assigned, key, template));
+            return assigned;
+        }
+
+        /**
+         * 取出尚未下发的完整模板定义（每个编号只返回一次），不存在时返回 null；下发后客户端会缓存该键
+         */
+        public StorageSyncCodec.Define takePendingTemplate(int id) {
+            StorageSyncCodec.Define d = pendingTemplates.remove(id);
+            if (d != null) markHeld(d.key());
+            return d;
+        }
+
+        private void markHeld(ItemKey key) {
+            if (held.size() < TemplateCacheKeysC2SPayload.CACHE_LIMIT) held.add(key);
+        }
+
+        public int size() {
+            return ids.size();
+        }
+    }
+
+    public static KeyDictionary getDictionary(UUID playerId) {
+        return DICTIONARY_BY_PLAYER.computeIfAbsent(playerId, id -> new KeyDictionary(heldKeys(id)));
+    }
+
+    /**
+     * 客户端上报的已缓存模板键（连接期间跨会话保留，断开时清除）
+     */
+    public static void markHeld(UUID playerId, java.util.Collection<ItemKey> keys) {
+        java.util.Set<ItemKey> held = heldKeys(playerId);
+        for (ItemKey key : keys) {
+            if (held.size() >= TemplateCacheKeysC2SPayload.CACHE_LIMIT) break;
+            held.add(key);
+        }
+    }
+
+    /**
+     * 登记一个模板缓存上报包；每次连接只接受一次进服上报（{@link TemplateCacheKeysC2SPayload#MAX_PACKETS} 个包），
+     * 超出的包返回 false 直接丢弃
+     */
+    public static boolean acceptHeldReport(UUID playerId) {
+        java.util.concurrent.atomic.AtomicInteger reports = HELD_REPORTS_BY_PLAYER.computeIfAbsent(playerId, id -> new java.util.concurrent.atomic.AtomicInteger());
+        return reports.incrementAndGet() <= TemplateCacheKeysC2SPayload.MAX_PACKETS;
+    }
+
+    private static java.util.Set<ItemKey> heldKeys(UUID playerId) {
+        return HELD_KEYS_BY_PLAYER.computeIfAbsent(playerId, id -> ConcurrentHashMap.newKeySet());
+    }
+
     public static long getOrStartSession(UUID playerId) {
         SessionState state = SESSION_BY_PLAYER.get(playerId);
         if (state == null) {
-            long sid = newSessionId();
-            SESSION_BY_PLAYER.put(playerId, new SessionState(sid, 1));
-            return sid;
+            startNewSession(playerId);
+            return SESSION_BY_PLAYER.get(playerId).sessionId;
         }
         return state.sessionId;
     }
 
+    /**
+     * 是否为玩家当前的会话（不存在会话时返回 false，不会新建）
+     */
+    public static boolean isCurrentSession(UUID playerId, long sessionId) {
+        SessionState state = SESSION_BY_PLAYER.get(playerId);
+        return state != null && state.sessionId == sessionId;
+    }
+
     public static void startNewSession(UUID playerId) {
         long sid = newSessionId();
         SESSION_BY_PLAYER.put(playerId, new SessionState(sid, 1));
+        DICTIONARY_BY_PLAYER.put(playerId, new KeyDictionary(heldKeys(playerId)));
+        // 全量同步携带完整状态，旧会话未确认与待发的分包一并作废
+        WINDOW_BY_PLAYER.remove(playerId);
     }
 
     public static int nextSeq(UUID playerId) {
@@ -53,13 +192,130 @@ public class StorageSyncManager {
         return ThreadLocalRandom.current().nextLong();
     }
 
-    public static void handleSyncAck(UUID playerId, long syncId, boolean success) {
-        // 当前简化：仅记录最后ACK的序号或用于统计；后续可加入窗口和重传
+    /**
+     * 单名玩家的发送窗口：已发送未确认的分包（按序号）与合并后的待发变化
+     */
+    private static final class SendWindow {
+        final java.util.TreeMap<Integer, IncrementalStorageSyncS2CPayload> inflight = new java.util.TreeMap<>();
+        final java.util.LinkedHashMap<Integer, StorageSyncCodec.Update> pendingUpdates = new java.util.LinkedHashMap<>();
+        final java.util.LinkedHashMap<Integer, StorageSyncCodec.Define> pendingDefines = new java.util.LinkedHashMap<>();
+        // 最近一次因缺包而重发时客户端确认到的序号，避免同一缺口重复重发
+        int lastNackSeq = -1;
+    }
+
+    /**
+     * 提交一批增量变化：先并入待发队列，再在窗口允许的范围内按分包上限发送。
+     * defines 为本批新分配编号的模板，保证与首次引用它的更新同包或更早到达。
+     */
+    public static synchronized void submit(ServerPlayerEntity player, java.util.List<StorageSyncCodec.Define> defines,
+                                           java.util.List<StorageSyncCodec.Update> updates) {
+        if (defines.isEmpty() && updates.isEmpty()) return;
+        SendWindow w = WINDOW_BY_PLAYER.computeIfAbsent(player.getUuid(), id -> new SendWindow());
+        for (StorageSyncCodec.Define d : defines) w.pendingDefines.put(d.id(), d);
+        for (StorageSyncCodec.Update u : updates) {
+            StorageSyncCodec.Update prev = w.pendingUpdates.get(u.id());
+            if (prev != null) {
+                updatesCoalesced++;
+                w.pendingUpdates.put(u.id(), new StorageSyncCodec.Update(u.id(), prev.delta() + u.delta(), Math.max(prev.ts(), u.ts())));
+            } else {
+                w.pendingUpdates.put(u.id(), u);
+            }
+        }
+        flush(player, w);
+    }
+
+    /**
+     * 处理客户端 ACK：syncId 为客户端已连续应用到的序号（累计确认）；
+     * success=false 表示客户端收到了更靠后的分包，需要重发其后仍未确认的分包。
+     * 序号在每个会话中重新编号，迟到的旧会话 ACK 直接忽略，以免清掉新会话的在途分包。
+     */
+    public static synchronized void handleSyncAck(ServerPlayerEntity player, long sessionId, long syncId, boolean success) {
+        if (!isCurrentSession(player.getUuid(), sessionId)) return;
+        SendWindow w = WINDOW_BY_PLAYER.get(player.getUuid());
+        if (w == null) return;
+        int acked = (int) Math.min(Integer.MAX_VALUE, Math.max(0L, syncId));
+        boolean advanced = !w.inflight.headMap(acked, true).isEmpty();
+        w.inflight.headMap(acked, true).clear();
+        if (advanced) w.lastNackSeq = -1;
+        if (!success && acked != w.lastNackSeq) {
+            w.lastNackSeq = acked;
+            if (w.inflight.isEmpty() || w.inflight.firstKey() != acked + 1) {
+                // 缺失的分包已不在窗口中，无法重发：回退为全量同步
+                resyncs++;
+                WINDOW_BY_PLAYER.remove(player.getUuid());
+                com.portable.storage.net.ServerNetworkingHandlers.sendSync(player);
+                return;
+            }
+            for (IncrementalStorageSyncS2CPayload chunk : w.inflight.values()) {
+                ServerPlayNetworking.send(player, chunk);
+                retransmits++;
+            }
+        }
+        flush(player, w);
+    }
+
+    /**
+     * 记录一次由客户端请求或会话失配引起的全量重同步（计入指标）
+     */
+    public static synchronized void recordResync() {
+        resyncs++;
+    }
+
+    private static void flush(ServerPlayerEntity player, SendWindow w) {
+        int window = 8;
+        int maxEntries = 512;
+        try {
+            window = Math.max(1, ServerConfig.getInstance().getIncrementalSyncWindow());
+            maxEntries = Math.max(1, ServerConfig.getInstance().getIncrementalSyncMaxEntries());
+        } catch (Throwable ignored) {}
+        long sid = getOrStartSession(player.getUuid());
+        while (w.inflight.size() < window && (!w.pendingUpdates.isEmpty() || !w.pendingDefines.isEmpty())) {
+            java.util.List<StorageSyncCodec.Define> defines = new java.util.ArrayList<>();
+            java.util.List<StorageSyncCodec.Update> updates = new java.util.ArrayList<>();
+            var it = w.pendingUpdates.values().iterator();
+            while (it.hasNext() && updates.size() < maxEntries) {
+                StorageSyncCodec.Update u = it.next();
+                it.remove();
+                StorageSyncCodec.Define d = w.pendingDefines.remove(u.id());
+                if (d != null) defines.add(d);
+                // 合并后增量为 0 的条目同样下发：其时间戳可能已变化（按时间排序依赖它），客户端对不存在的编号忽略
+                updates.add(u);
+            }
+            if (w.pendingUpdates.isEmpty()) {
+                // 更新已发完，剩余定义（没有对应更新的编号）随最后一包下发
+                defines.addAll(w.pendingDefines.values());
+                w.pendingDefines.clear();
+            }
+            if (defines.isEmpty() && updates.isEmpty()) continue;
+            int seq = nextSeq(player.getUuid());
+            IncrementalStorageSyncS2CPayload chunk = new IncrementalStorageSyncS2CPayload(sid, seq, defines, updates);
+            w.inflight.put(seq, chunk);
+            ServerPlayNetworking.send(player, chunk);
+            chunksSent++;
+        }
+    }
+
+    public static synchronized String getStats() {
+        int inflight = 0;
+        int queued = 0;
+        int stalled = 0;
+        for (SendWindow w : WINDOW_BY_PLAYER.values()) {
+            inflight += w.inflight.size();
+            queued += w.pendingUpdates.size();
+            if (!w.pendingUpdates.isEmpty()) stalled++;
+        }
+        double minutes = Math.max(1.0 / 60.0, (System.currentTimeMillis() - STARTED_AT) / 60000.0);
+        return String.format("inflight=%d, queueDepth=%d, stalledPlayers=%d, chunks=%d, coalesced=%d, retransmits=%d, resyncs=%d (%.2f/min)",
+            inflight, queued, stalled, chunksSent, updatesCoalesced, retransmits, resyncs, resyncs / minutes);
     }
 
     public static void cleanupPlayer(UUID playerId) {
         SESSION_BY_PLAYER.remove(playerId);
         LAST_SNAPSHOT_BY_PLAYER.remove(playerId);
+        DICTIONARY_BY_PLAYER.remove(playerId);
+        WINDOW_BY_PLAYER.remove(playerId);
+        HELD_KEYS_BY_PLAYER.remove(playerId);
+        HELD_REPORTS_BY_PLAYER.remove(playerId);
     }
 
     public static void forceFullSync(UUID playerId) {
@@ -69,13 +325,17 @@ public class StorageSyncManager {
     public static void shutdown() {
         SESSION_BY_PLAYER.clear();
         LAST_SNAPSHOT_BY_PLAYER.clear();
+        DICTIONARY_BY_PLAYER.clear();
+        WINDOW_BY_PLAYER.clear();
+        HELD_KEYS_BY_PLAYER.clear();
+        HELD_REPORTS_BY_PLAYER.clear();
     }
 
-    public static Map<String, SnapshotEntry> getLastSnapshot(UUID playerId) {
+    public static Map<ItemKey, SnapshotEntry> getLastSnapshot(UUID playerId) {
         return LAST_SNAPSHOT_BY_PLAYER.get(playerId);
     }
 
-    public static void setLastSnapshot(UUID playerId, Map<String, SnapshotEntry> snapshot) {
+    public static void setLastSnapshot(UUID playerId, Map<ItemKey, SnapshotEntry> snapshot) {
         if (snapshot == null) {
             LAST_SNAPSHOT_BY_PLAYER.remove(playerId);
         } else {
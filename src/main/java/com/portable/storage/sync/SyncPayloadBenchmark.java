@@ -0,0 +1,151 @@
+package com.portable.storage.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.portable.storage.net.ServerNetworkingHandlers;
+import com.portable.storage.net.payload.IncrementalStorageSyncS2CPayload;
+import com.portable.storage.net.payload.StorageSyncCodec;
+import com.portable.storage.net.payload.StorageSyncS2CPayload;
+import com.portable.storage.newstore.ItemKey;
+import com.portable.storage.newstore.ItemKeyHasher;
+import com.portable.storage.storage.StorageInventory;
+
+import io.netty.buffer.Unpooled;
+import net.minecraft.component.DataComponentTypes;
+import net.minecraft.component.type.NbtComponent;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodecs;
+import net.minecraft.registry.DynamicRegistryManager;
+import net.minecraft.registry.Registries;
+import net.minecraft.registry.RegistryOps;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+/**
+ * 同步载荷大小基准：对同一份视图分别按旧版 NBT 格式与二进制编号格式编码，比较字节数与耗时。
+ * 覆盖全量同步与"全部条目仅数量变化"的增量同步两种情形；
+ * 除执行者自己的合并视图外，另构造一份指定规模的合成仓库以模拟大型存储。
+ * 使用独立的编号表，不影响任何玩家的同步会话。仅供调试命令使用。
+ */
+public final class SyncPayloadBenchmark {
+    private SyncPayloadBenchmark() {}
+
+    public static void run(ServerPlayerEntity player, int syntheticVariants, Consumer<String> out) {
+        DynamicRegistryManager registries = player.getRegistryManager();
+        measure("own view", ServerNetworkingHandlers.buildMergedSnapshot(player), registries, out);
+        measure(syntheticVariants + " synthetic variants", buildSynthetic(syntheticVariants), registries, out);
+    }
+
+    private static void measure(String label, StorageInventory view, DynamicRegistryManager registries, Consumer<String> out) {
+        long sessionId = 0x5EED_5EED_5EED_5EEDL;
+
+        // 旧格式：全量 NBT（item_full + 兼容 item 标签）与逐条 upsert（十六进制键 + 完整展示编码）
+        long t0 = System.nanoTime();
+        NbtCompound full = new NbtCompound();
+        full.putLong("sessionId", sessionId);
+        view.writeNbt(full, registries);
+        int legacyFull = nbtSize(full, registries);
+        long t1 = System.nanoTime();
+        int legacyCounts = nbtSize(buildLegacyCountsDiff(view, registries), registries);
+        long t2 = System.nanoTime();
+
+        // 新格式：全量定义一次模板，增量只发 (编号, 增量, 时间戳)
+        StorageSyncManager.KeyDictionary dictionary = new StorageSyncManager.KeyDictionary();
+        Map<ItemKey, StorageSyncManager.SnapshotEntry> snapshot = new HashMap<>();
+        StorageSyncS2CPayload payload = ServerNetworkingHandlers.encodeFullSync(view, sessionId, dictionary, snapshot, false);
+        RegistryByteBuf buf = new RegistryByteBuf(Unpooled.buffer(), registries);
+        StorageSyncS2CPayload.CODEC.encode(buf, payload);
+        int binaryFull = buf.readableBytes();
+        long t3 = System.nanoTime();
+        List<StorageSyncCodec.Update> updates = new ArrayList<>(payload.entries().size());
+        for (StorageSyncCodec.Update u : payload.entries()) {
+            updates.add(new StorageSyncCodec.Update(u.id(), 1L, u.ts() + 1));
+        }
+        buf = new RegistryByteBuf(Unpooled.buffer(), registries);
+        IncrementalStorageSyncS2CPayload.CODEC.encode(buf, new IncrementalStorageSyncS2CPayload(sessionId, 1, List.of(), updates));
+        int binaryCounts = buf.readableBytes();
+        long t4 = System.nanoTime();
+        buf = new RegistryByteBuf(Unpooled.buffer(), registries);
+        StorageSyncS2CPayload.CODEC.encode(buf, ServerNetworkingHandlers.encodeFullSync(view, sessionId, new StorageSyncManager.KeyDictionary(), null, true));
+        int windowedFull = buf.readableBytes();
+        // 重新连接且客户端模板缓存已包含全部键：定义只发送键
+        buf = new RegistryByteBuf(Unpooled.buffer(), registries);
+        StorageSyncS2CPayload.CODEC.encode(buf, ServerNetworkingHandlers.encodeFullSync(view, sessionId,
+            new StorageSyncManager.KeyDictionary(new java.util.HashSet<>(snapshot.keySet())), null, false));
+        int warmFull = buf.readableBytes();
+
+        int n = payload.entries().size();
+        out.accept(String.format("%s: %d entries", label, n));
+        out.accept(String.format("  full sync: NBT %s (%.2f ms) -> binary %s (%.2f ms), %.1fx smaller",
+            bytes(legacyFull), (t1 - t0) / 1e6, bytes(binaryFull), (t3 - t2) / 1e6, ratio(legacyFull, binaryFull)));
+        out.accept(String.format("  counts-only update of all entries: NBT %s (%.2f ms) -> binary %s (%.2f ms), %.1fx smaller",
+            bytes(legacyCounts), (t2 - t1) / 1e6, bytes(binaryCounts), (t4 - t3) / 1e6, ratio(legacyCounts, binaryCounts)));
+        out.accept(String.format("  windowed full sync (stubs only): %s, %.1fx smaller than NBT", bytes(windowedFull), ratio(legacyFull, windowedFull)));
+        out.accept(String.format("  full sync with warm client template cache: %s, %.1fx smaller than NBT", bytes(warmFull), ratio(legacyFull, warmFull)));
+    }
+
+    private static NbtCompound buildLegacyCountsDiff(StorageInventory view, DynamicRegistryManager registries) {
+        var ops = RegistryOps.of(NbtOps.INSTANCE, registries);
+        NbtList upserts = new NbtList();
+        for (int i = 0; i < view.getCapacity(); i++) {
+            ItemStack disp = view.getDisplayStack(i);
+            if (disp.isEmpty()) continue;
+            ItemKey key = ItemKeyHasher.hash(disp, null);
+            if (key == null) continue;
+            NbtCompound e = new NbtCompound();
+            e.putString("key", key.toHex());
+            e.putLong("count", view.getCountByIndex(i) + 1);
+            e.putLong("ts", view.getTimestampByIndex(i) + 1);
+            ItemStack.CODEC.encodeStart(ops, disp).result().ifPresent(nbt -> e.put("display", nbt));
+            upserts.add(e);
+        }
+        NbtCompound diff = new NbtCompound();
+        diff.put("upserts", upserts);
+        return diff;
+    }
+
+    private static StorageInventory buildSynthetic(int variants) {
+        StorageInventory inv = new StorageInventory(0);
+        List<Item> items = new ArrayList<>();
+        for (Item item : Registries.ITEM) {
+            if (item != Items.AIR) items.add(item);
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < variants; i++) {
+            ItemStack stack = new ItemStack(items.get(i % items.size()));
+            // 物品种类用尽后以自定义数据区分变体，模拟带 NBT 的物品
+            int round = i / items.size();
+            if (round > 0) {
+                NbtCompound custom = new NbtCompound();
+                custom.putInt("bench_variant", round);
+                stack.set(DataComponentTypes.CUSTOM_DATA, NbtComponent.of(custom));
+            }
+            stack.setCount(1 + (i % 64));
+            inv.insertItemStackWithOriginalTimestamp(stack, now - i * 1000L);
+        }
+        return inv;
+    }
+
+    private static int nbtSize(NbtCompound nbt, DynamicRegistryManager registries) {
+        RegistryByteBuf buf = new RegistryByteBuf(Unpooled.buffer(), registries);
+        PacketCodecs.NBT_COMPOUND.encode(buf, nbt);
+        return buf.readableBytes();
+    }
+
+    private static String bytes(int n) {
+        return n >= 1024 ? String.format("%.1f KiB", n / 1024.0) : n + " B";
+    }
+
+    private static double ratio(int before, int after) {
+        return after == 0 ? 0.0 : (double) before / after;
+    }
+}
@@ -0,0 +1,82 @@
+package com.portable.storage.sync;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import com.portable.storage.config.ServerConfig;
+import com.portable.storage.net.ServerNetworkingHandlers;
+
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+/**
+ * 去抖的仓库同步调度：高频路径（自动拾取、取箭、活塞补货、木桶提取等）只把玩家标记为脏，
+ * 每 tick 结束时对每名脏玩家至多同步一次。
+ * 客户端已有基线且启用了增量同步时发送增量 diff，否则只发送仓库全量同步（不重发升级与各项配置）。
+ * 同时标记订阅了该玩家仓库的其他查看者（见 {@link ViewSubscriptions}）。
+ */
+public final class SyncScheduler {
+    private static final Set<UUID> DIRTY = new LinkedHashSet<>();
+    private static long requests = 0L;
+    private static long coalesced = 0L;
+    private static long incrementalFlushes = 0L;
+    private static long fullFlushes = 0L;
+
+    private SyncScheduler() {}
+
+    public static void register() {
+        ServerTickEvents.END_SERVER_TICK.register(SyncScheduler::flush);
+    }
+
+    /**
+     * 请求在本 tick 结束时同步该玩家的仓库视图（同一 tick 内的多次请求合并为一次）
+     */
+    public static synchronized void requestStorageSync(ServerPlayerEntity player) {
+        if (player == null) return;
+        requests++;
+        if (!DIRTY.add(player.getUuid())) coalesced++;
+        DIRTY.addAll(ViewSubscriptions.subscribersOf(List.of(player.getUuid())));
+    }
+
+    private static void flush(MinecraftServer server) {
+        List<UUID> batch;
+        synchronized (SyncScheduler.class) {
+            if (DIRTY.isEmpty()) return;
+            batch = List.copyOf(DIRTY);
+            DIRTY.clear();
+        }
+        boolean incremental = false;
+        try {
+            incremental = ServerConfig.getInstance().isEnableIncrementalSync();
+        } catch (Throwable ignored) {}
+        for (UUID id : batch) {
+            ServerPlayerEntity player = server.getPlayerManager().getPlayer(id);
+            if (player == null) continue;
+            try {
+                if (incremental && StorageSyncManager.getLastSnapshot(id) != null) {
+                    ServerNetworkingHandlers.sendIncrementalSyncOnDemand(player);
+                    synchronized (SyncScheduler.class) { incrementalFlushes++; }
+                } else {
+                    ServerNetworkingHandlers.sendStorageSync(player);
+                    synchronized (SyncScheduler.class) { fullFlushes++; }
+                }
+            } catch (Throwable ignored) {}
+        }
+    }
+
+    public static synchronized void cleanupPlayer(UUID playerId) {
+        DIRTY.remove(playerId);
+    }
+
+    public static synchronized void clear() {
+        DIRTY.clear();
+    }
+
+    public static synchronized String getStats() {
+        return String.format("requests=%d, coalesced=%d, incrementalFlushes=%d, fullFlushes=%d, pending=%d",
+            requests, coalesced, incrementalFlushes, fullFlushes, DIRTY.size());
+    }
+}
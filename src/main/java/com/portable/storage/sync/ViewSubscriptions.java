@@ -0,0 +1,81 @@
+package com.portable.storage.sync;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 拥有者 -> 订阅者 注册表：记录每名查看者的合并视图包含哪些仓库拥有者。
+ * 某个拥有者的仓库变化时只需通知订阅了它的查看者，而不是遍历全部在线玩家，
+ * 开销与相关查看者数量成正比，不随在线人数增长。
+ * 查看者每次计算来源集合并同步时调用 {@link #update} 刷新订阅，断开连接时 {@link #remove}。
+ */
+public final class ViewSubscriptions {
+    private static final Map<UUID, Set<UUID>> SUBSCRIBERS_BY_OWNER = new HashMap<>();
+    private static final Map<UUID, Set<UUID>> OWNERS_BY_VIEWER = new HashMap<>();
+    private static long fanouts = 0L;
+    private static long notified = 0L;
+
+    private ViewSubscriptions() {}
+
+    /**
+     * 以查看者当前的来源集合替换其订阅；集合未变化时不做任何事
+     */
+    public static synchronized void update(UUID viewer, Collection<UUID> owners) {
+        Set<UUID> next = Set.copyOf(owners);
+        Set<UUID> prev = OWNERS_BY_VIEWER.get(viewer);
+        if (next.equals(prev)) return;
+        if (prev != null) {
+            for (UUID owner : prev) {
+                if (!next.contains(owner)) unsubscribe(owner, viewer);
+            }
+        }
+        for (UUID owner : next) {
+            if (prev == null || !prev.contains(owner)) {
+                SUBSCRIBERS_BY_OWNER.computeIfAbsent(owner, k -> new HashSet<>()).add(viewer);
+            }
+        }
+        OWNERS_BY_VIEWER.put(viewer, next);
+    }
+
+    /**
+     * 返回能看到任一给定拥有者的查看者（副本，调用方可在锁外遍历）
+     */
+    public static synchronized Set<UUID> subscribersOf(Collection<UUID> owners) {
+        Set<UUID> out = new LinkedHashSet<>();
+        for (UUID owner : owners) {
+            Set<UUID> subs = SUBSCRIBERS_BY_OWNER.get(owner);
+            if (subs != null) out.addAll(subs);
+        }
+        fanouts++;
+        notified += out.size();
+        return out;
+    }
+
+    public static synchronized void remove(UUID viewer) {
+        Set<UUID> prev = OWNERS_BY_VIEWER.remove(viewer);
+        if (prev == null) return;
+        for (UUID owner : prev) unsubscribe(owner, viewer);
+    }
+
+    public static synchronized void clear() {
+        SUBSCRIBERS_BY_OWNER.clear();
+        OWNERS_BY_VIEWER.clear();
+    }
+
+    public static synchronized String getStats() {
+        return String.format("owners=%d, viewers=%d, fanouts=%d, notified=%d",
+            SUBSCRIBERS_BY_OWNER.size(), OWNERS_BY_VIEWER.size(), fanouts, notified);
+    }
+
+    private static void unsubscribe(UUID owner, UUID viewer) {
+        Set<UUID> subs = SUBSCRIBERS_BY_OWNER.get(owner);
+        if (subs == null) return;
+        subs.remove(viewer);
+        if (subs.isEmpty()) SUBSCRIBERS_BY_OWNER.remove(owner);
+    }
+}
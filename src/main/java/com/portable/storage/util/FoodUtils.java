@@ -187,19 +187,11 @@ public class FoodUtils {
         
         // 循环进食直到达到目标饱食度
         while (needsFood(player, targetFoodLevel)) {
-            // 获取合并的存储视图（每次循环都重新获取，确保数据最新）
-            var storage = com.portable.storage.net.ServerNetworkingHandlers.buildMergedSnapshot(player);
-            
-            // 寻找数量最多的食物（应用筛选逻辑）
-            int bestFoodIndex = findMostAbundantFoodIndex(storage, player);
-            if (bestFoodIndex == -1) {
-                break; // 没有食物了
-            }
-            
-            // 先获取食物信息（在取出之前）
-            ItemStack templateStack = storage.getDisplayStack(bestFoodIndex);
+            // 查合并视图的食物索引，寻找数量最多的食物（应用筛选逻辑）；每次进食后索引随取出原地更新
+            ItemStack templateStack = com.portable.storage.net.ServerNetworkingHandlers.findMostAbundantFood(player,
+                stack -> FilterRuleManager.shouldPickupItem(player, stack));
             if (templateStack.isEmpty() || !isFood(templateStack)) {
-                break; // 不是食物，跳过
+                break; // 没有食物了
             }
             
             // 先获取食物名称（在取出之前）